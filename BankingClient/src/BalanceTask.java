@@ -1,7 +1,9 @@
-import javax.crypto.SecretKey;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
 
 /**
  * Handles retrieval of the user's balance.
@@ -9,34 +11,83 @@ import java.io.IOException;
 public class BalanceTask extends Task
 {
     /**
-     * Creates a new balance retrieval task.
+     * A scanner object to read terminal input, used for scrolling through the history.
+     */
+    private final Scanner _terminalScanner;
+
+    /**
+     * The number of history entries fetched at once, or 0 if the full history is fetched.
+     */
+    private final int _pageSize;
+
+    /**
+     * Creates a new balance retrieval task, which fetches the full history.
+     *
+     * @param socketInputStream  The socket input stream.
+     * @param socketOutputStream The socket output stream.
+     * @param config             The communication settings of the current connection.
+     */
+    public BalanceTask(DataInputStream socketInputStream, DataOutputStream socketOutputStream, ClientConfiguration clientConfiguration, Config config)
+    {
+        this(socketInputStream, socketOutputStream, null, 0, clientConfiguration, config);
+    }
+
+    /**
+     * Creates a new balance retrieval task, which fetches the history page by page while the user scrolls.
      *
      * @param socketInputStream  The socket input stream.
      * @param socketOutputStream The socket output stream.
+     * @param terminalScanner    A scanner object to read terminal input.
+     * @param pageSize           The number of history entries fetched at once, or 0 to fetch the full history.
+     * @param config             The communication settings of the current connection.
      */
-    public BalanceTask(DataInputStream socketInputStream, DataOutputStream socketOutputStream, ClientConfiguration clientConfiguration, SecretKey aesKey)
+    public BalanceTask(DataInputStream socketInputStream, DataOutputStream socketOutputStream, Scanner terminalScanner, int pageSize, ClientConfiguration clientConfiguration, Config config)
     {
         // Call superclass constructor
-        super(socketInputStream, socketOutputStream, clientConfiguration, aesKey);
+        super(socketInputStream, socketOutputStream, clientConfiguration, config);
+
+        // Save parameters
+        _terminalScanner = terminalScanner;
+        _pageSize = pageSize;
     }
 
     @Override
     public void run() throws IOException
     {
+        if (_pageSize > 0)
+        {
+            runPaged();
+            return;
+        }
+
         // Send request packet
         String requestPacket = "balance";
         Utility.safeDebugPrintln("Sending balance request packet...");
-        Utility.sendPacketAES(_socketOutputStream, requestPacket,_config.get_symmetricKey());
+        sendMessage(requestPacket);
+
+        // Newer servers send everything in a single packet
+        if (_config.get_protocolVersion() >= Protocol.VERSION_2)
+        {
+            Utility.safeDebugPrintln("Waiting for balance response packet...");
+            BalanceFrame frame = BalanceFrame.fromBytes(receivePacket(Protocol.OPCODE_BALANCE));
+            if (frame == null)
+                return;
+            Utility.safePrintln("Current money: " + frame.getMoney());
+            Utility.safePrintln("Past transactions:");
+            for (Tuple<String, Integer> entry : frame.getHistory())
+                printEntry(entry.x, entry.y);
+            return;
+        }
 
         // Read total money
         Utility.safeDebugPrintln("Waiting for first balance response packet...");
-        String balanceMoneyResponse = Utility.receivePacketAES(_socketInputStream, _config.get_symmetricKey());
+        String balanceMoneyResponse = receiveMessage();
         int balanceMoney = Integer.parseInt(balanceMoneyResponse);
         Utility.safePrintln("Current money: " + balanceMoney);
 
         // Wait for count response packet
         Utility.safeDebugPrintln("Waiting for balance count packet...");
-        String balanceCountResponse = Utility.receivePacketAES(_socketInputStream, _config.get_symmetricKey());
+        String balanceCountResponse = receiveMessage();
         int balanceCount = Integer.parseInt(balanceCountResponse);
         Utility.safeDebugPrintln("Balance entry count: " + balanceCount);
 
@@ -46,7 +97,7 @@ public class BalanceTask extends Task
         for (int i = 0; i < balanceCount; ++i)
         {
             // Receive & split entry data
-            String balanceEntry = Utility.receivePacketAES(_socketInputStream,_config.get_symmetricKey());
+            String balanceEntry = receiveMessage();
             String[] balanceEntryParts = balanceEntry.split(",");
             if (balanceEntryParts.length < 2)
             {
@@ -55,12 +106,81 @@ public class BalanceTask extends Task
             }
             String name = balanceEntryParts[0].trim();
             Integer amount = Integer.parseInt(balanceEntryParts[1].trim());
+            printEntry(name, amount);
+        }
+    }
 
-            // Print entry with appropriate whitespace padding
-            // group   | 5
-            // victim1 | -7
-            System.out.printf("%-7s | %d%n", name, amount);
+    /**
+     * Retrieves the balance and fetches the history pages lazily, as long as the user wants to see more.
+     */
+    private void runPaged() throws IOException
+    {
+        int cursor = 0;
+        while (true)
+        {
+            // Request next page
+            Utility.safeDebugPrintln("Requesting history page at " + cursor + "...");
+            sendMessage("history " + cursor + " " + _pageSize);
+            BalanceFrame frame = receiveHistoryPage();
+            if (frame == null)
+                return;
+
+            // Print page
+            if (cursor == 0)
+            {
+                Utility.safePrintln("Current money: " + frame.getMoney());
+                Utility.safePrintln("Past transactions:");
+            }
+            for (Tuple<String, Integer> entry : frame.getHistory())
+                printEntry(entry.x, entry.y);
+
+            // Scroll further?
+            cursor = frame.getNextCursor();
+            if (cursor < 0)
+                return;
+            Utility.safePrintln("Show more transactions? [y/n]");
+            if (!_terminalScanner.next().startsWith("y"))
+                return;
         }
     }
 
+    /**
+     * Receives the response to a history command.
+     *
+     * @return The received history page, or null if the response is malformed.
+     */
+    private BalanceFrame receiveHistoryPage() throws IOException
+    {
+        if (_config.get_protocolVersion() >= Protocol.VERSION_2)
+            return BalanceFrame.fromBytes(receivePacket(Protocol.OPCODE_BALANCE));
+
+        // Older servers send one message per value
+        int money = Integer.parseInt(receiveMessage());
+        int nextCursor = Integer.parseInt(receiveMessage());
+        int count = Integer.parseInt(receiveMessage());
+        List<Tuple<String, Integer>> history = new ArrayList<>();
+        for (int i = 0; i < count; ++i)
+        {
+            String[] balanceEntryParts = receiveMessage().split(",");
+            if (balanceEntryParts.length < 2)
+                return null;
+            history.add(new Tuple<>(balanceEntryParts[0].trim(), Integer.parseInt(balanceEntryParts[1].trim())));
+        }
+        return new BalanceFrame(money, history, nextCursor);
+    }
+
+    /**
+     * Prints a transaction history entry.
+     *
+     * @param name   The name of the other user.
+     * @param amount The transferred amount.
+     */
+    private void printEntry(String name, int amount)
+    {
+        // Print entry with appropriate whitespace padding
+        // group   | 5
+        // victim1 | -7
+        System.out.printf("%-7s | %d%n", name, amount);
+    }
+
 }
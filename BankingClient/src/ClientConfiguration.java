@@ -24,6 +24,11 @@ public class ClientConfiguration
      */
     private PublicKey _serverPublicKey;
 
+    /**
+     * The static X25519 public key of the server, or null if the configuration has none.
+     */
+    private PublicKey _serverAgreementKey;
+
     /**
      * Reads the configuration data from the given JSON file.
      */
@@ -54,6 +59,19 @@ public class ClientConfiguration
             }
 
 
+            //Read Server X25519 key, missing in older configurations
+            if (rootObj.containsKey("xpK"))
+            {
+                try
+                {
+                    _serverAgreementKey = KeyAgreementHelper.stringToPublicKey(rootObj.getString("xpK"));
+                }
+                catch (InvalidKeySpecException | NoSuchAlgorithmException e)
+                {
+                    Utility.safeDebugPrintln("error: " +e.getMessage());
+                }
+            }
+
             // Release reader resources
             jsonReader.close();
         }
@@ -82,4 +100,13 @@ public class ClientConfiguration
         return _serverPublicKey;
     }
 
+    /** Returns the static X25519 public key of the server
+     *
+     * @return the static X25519 public key of the server, or null if the configuration has none
+     */
+    public PublicKey get_serverAgreementKey()
+    {
+        return _serverAgreementKey;
+    }
+
 }
@@ -1,8 +1,10 @@
-import javax.crypto.SecretKey;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.security.GeneralSecurityException;
 import java.util.Scanner;
 
 public class ClientMain
@@ -17,6 +19,13 @@ public class ClientMain
         {
             // Crash
             Utility.safePrintln("Please provide the client configuration file, the server's host name or IP address, its port and a directory for storing device codes.");
+            Utility.safePrintln("Options: --protocol=<version> (highest protocol version offered to the server, default: " + Protocol.CURRENT_VERSION + ")");
+            Utility.safePrintln("         --login-timeout=<ms> (maximum wait for each server response during the login, default: 60000, 0 = unlimited)");
+            Utility.safePrintln("         --tcp-nodelay=true|false (disable Nagle's algorithm, default: true)");
+            Utility.safePrintln("         --handshake=x25519|rsa (key exchange with the server, default: x25519 if the configuration contains the server's X25519 key)");
+            Utility.safePrintln("         --page-size=<n> (fetch the transaction history in pages of <n> entries, default: 0 = all at once)");
+            Utility.safePrintln("         --tls=true|false (connect via TLS 1.3 without the protocol's own encryption, default: false)");
+            Utility.safePrintln("         --tls-truststore=<file> --tls-password=<password> (trust store containing the server certificate, default: JDK trust store)");
             return;
         }
         Utility.safeDebugPrintln("args1:" + args[0]);
@@ -25,6 +34,16 @@ public class ClientMain
         Utility.safeDebugPrintln("args4:" + args[3]);
 
 
+        // Parse options
+        CommandLineOptions options = new CommandLineOptions(args, 4);
+        int protocolVersion = Protocol.negotiate(options.getInt("protocol", Protocol.CURRENT_VERSION));
+        int historyPageSize = options.getInt("page-size", 0);
+        boolean keyAgreement = !options.getString("handshake", "x25519").equalsIgnoreCase("rsa");
+        boolean tls = options.getBoolean("tls", false);
+        int loginTimeout = options.getInt("login-timeout", 60000);
+        if (tls)
+            protocolVersion = Math.max(Protocol.VERSION_2, protocolVersion);
+
         // Create scanner for terminal input
         Scanner terminalScanner = new Scanner(System.in);
 
@@ -37,22 +56,29 @@ public class ClientMain
 
         // Connect to server
         Utility.safePrintln("Connecting to server '" + args[1] + "' on port " + args[2]);
-        try (Socket socket = new Socket(args[1], Integer.parseInt(args[2])))
+        ConnectionStatistics statistics = new ConnectionStatistics();
+        try (Socket socket = connect(args[1], Integer.parseInt(args[2]), tls, options))
         {
-            // Get I/O streams
-            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
-            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+            socket.setTcpNoDelay(options.getBoolean("tcp-nodelay", true));
+
+            // Get buffered I/O streams; tasks flush before waiting for a response
+            DataInputStream inputStream = new DataInputStream(new BufferedInputStream(statistics.wrap(socket.getInputStream())));
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(statistics.wrap(socket.getOutputStream())));
 
             // Run login task
-            LoginTask loginTask = new LoginTask(inputStream, outputStream, terminalScanner, clientConfiguration);
+            // Resumption tickets are not needed with TLS, which has its own session resumption
+            // Servers that do not support the offered protocol version never answer, so limit the waits of the login
+            LoginTask loginTask = new LoginTask(inputStream, outputStream, terminalScanner, clientConfiguration, protocolVersion, keyAgreement, tls ? null : args[3], tls);
+            socket.setSoTimeout(loginTimeout);
             loginTask.run();
+            socket.setSoTimeout(0);
             if (!loginTask.getSuccessful())
             {
                 Utility.safePrintln("Login not successful, exiting...");
                 return;
             }
             String userName = loginTask.getName();
-            SecretKey symmetricAESKey = loginTask.getSymmetricKey();
+            Config config = loginTask.getConfig();
 
             // Run until exit
             boolean deviceAuthenticated = false;
@@ -68,7 +94,7 @@ public class ClientMain
                     case 'b' -> {
                         // Run balance retrieval task
                         Utility.safeDebugPrintln("Starting balance task...");
-                        new BalanceTask(inputStream, outputStream, clientConfiguration,symmetricAESKey).run();
+                        new BalanceTask(inputStream, outputStream, terminalScanner, historyPageSize, clientConfiguration, config).run();
                     }
                     case 't' -> {
                         // Check for device authentication
@@ -76,7 +102,7 @@ public class ClientMain
                         {
                             // Run registration
                             Utility.safeDebugPrintln("Starting registration task...");
-                            RegistrationTask registrationTask = new RegistrationTask(inputStream, outputStream, terminalScanner, userName, args[3], clientConfiguration, symmetricAESKey);
+                            RegistrationTask registrationTask = new RegistrationTask(inputStream, outputStream, terminalScanner, userName, args[3], clientConfiguration, config);
                             registrationTask.run();
                             if (!registrationTask.getSuccessful())
                                 break;
@@ -85,7 +111,7 @@ public class ClientMain
 
                         // Run transaction task
                         Utility.safeDebugPrintln("Starting transaction task...");
-                        TransactionTask transactionTask = new TransactionTask(inputStream, outputStream, terminalScanner, clientConfiguration, symmetricAESKey);
+                        TransactionTask transactionTask = new TransactionTask(inputStream, outputStream, terminalScanner, clientConfiguration, config);
                         transactionTask.run();
 
                         if (transactionTask.getSuccessful())
@@ -105,6 +131,34 @@ public class ClientMain
         {
             Utility.safeDebugPrintln("error l99: " +e.getMessage());
         }
+        finally
+        {
+            Utility.safeDebugPrintln("Connection statistics: " + statistics);
+        }
+    }
+
+    /**
+     * Connects to the server, either directly or via TLS.
+     *
+     * @param host    The host name or IP address of the server.
+     * @param port    The port of the server.
+     * @param tls     Determines whether the connection is secured by TLS.
+     * @param options The command line options.
+     * @return The connected socket.
+     */
+    private static Socket connect(String host, int port, boolean tls, CommandLineOptions options) throws IOException
+    {
+        if (!tls)
+            return new Socket(host, port);
+        try
+        {
+            String trustStore = options.getString("tls-truststore", null);
+            return TlsSupport.connect(TlsSupport.createClientContext(trustStore, options.getString("tls-password", "")), host, port, true);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IOException("Could not set up TLS: " + e.getMessage(), e);
+        }
     }
 
 }
@@ -13,6 +13,16 @@ public class Config
 
     private SecretKey _symmetricKey;
 
+    /**
+     * Encrypts the communication with the session key; reused for all messages of the connection.
+     */
+    private CryptoContext _cryptoContext;
+
+    /**
+     * The protocol version used with the server; the offered version until the server has announced its choice.
+     */
+    private int _protocolVersion;
+
     public PublicKey get_serverPublicKey()
     {
         return _serverPublicKey;
@@ -23,10 +33,57 @@ public class Config
         return _symmetricKey;
     }
 
-    public Config(PublicKey serverPublicKey, SecretKey symmetricKey)
+    public void set_symmetricKey(SecretKey symmetricKey)
     {
-        _serverPublicKey = serverPublicKey;
         _symmetricKey = symmetricKey;
+        _cryptoContext = symmetricKey == null ? null : new CryptoContext(symmetricKey);
+    }
+
+    /**
+     * Replaces the crypto context, e.g. when switching to AES/GCM with a key derived from the session key.
+     *
+     * @param cryptoContext The new crypto context.
+     */
+    public void set_cryptoContext(CryptoContext cryptoContext)
+    {
+        _cryptoContext = cryptoContext;
+    }
+
+    /**
+     * Returns the crypto context of the session key.
+     *
+     * @return The crypto context of the session key.
+     */
+    public CryptoContext get_cryptoContext()
+    {
+        return _cryptoContext;
+    }
+
+    /**
+     * Returns the protocol version used with the server.
+     *
+     * @return The protocol version used with the server.
+     */
+    public int get_protocolVersion()
+    {
+        return _protocolVersion;
+    }
+
+    /**
+     * Sets the protocol version chosen by the server.
+     *
+     * @param protocolVersion The protocol version used with the server.
+     */
+    public void set_protocolVersion(int protocolVersion)
+    {
+        _protocolVersion = protocolVersion;
+    }
+
+    public Config(PublicKey serverPublicKey, SecretKey symmetricKey, int protocolVersion)
+    {
+        _serverPublicKey = serverPublicKey;
+        set_symmetricKey(symmetricKey);
+        _protocolVersion = protocolVersion;
     }
 
 }
@@ -2,7 +2,18 @@ import javax.crypto.SecretKey;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Scanner;
 
 /**
@@ -24,9 +35,24 @@ public class LoginTask extends Task
     private String _name = "";
 
     /**
-     * the newly created AED Key
+     * Determines whether the session key is agreed on with X25519 instead of being sent RSA encrypted.
      */
-    SecretKey symmetricKey = null;
+    private final boolean _keyAgreement;
+
+    /**
+     * Determines whether the connection is secured by TLS, so the key exchange is skipped.
+     */
+    private final boolean _tls;
+
+    /**
+     * Directory of the resumption ticket files (next to the device code files), or null if tickets are not used.
+     */
+    private final String _ticketDirectory;
+
+    /**
+     * The highest protocol version offered to the server; the server announces the version actually used.
+     */
+    private final int _offeredVersion;
 
     /**
      * Creates a new login task.
@@ -34,14 +60,22 @@ public class LoginTask extends Task
      * @param socketInputStream  The socket input stream.
      * @param socketOutputStream The socket output stream.
      * @param terminalScanner    A scanner object to read terminal input.
+     * @param protocolVersion    The protocol version offered to the server.
+     * @param keyAgreement       Determines whether the session key is agreed on with X25519, if the configuration contains the server's X25519 key.
+     * @param ticketDirectory    Directory of the resumption ticket files, or null if tickets are not used.
+     * @param tls                Determines whether the connection is secured by TLS (protocol version 2 and later).
      */
-    public LoginTask(DataInputStream socketInputStream, DataOutputStream socketOutputStream, Scanner terminalScanner,  ClientConfiguration clientConfiguration)
+    public LoginTask(DataInputStream socketInputStream, DataOutputStream socketOutputStream, Scanner terminalScanner,  ClientConfiguration clientConfiguration, int protocolVersion, boolean keyAgreement, String ticketDirectory, boolean tls)
     {
         // Call superclass constructor
-        super(socketInputStream, socketOutputStream, clientConfiguration, null);
+        super(socketInputStream, socketOutputStream, clientConfiguration, new Config(clientConfiguration.get_serverPublicKey(), null, protocolVersion));
 
         // Save parameters
         _terminalScanner = terminalScanner;
+        _keyAgreement = keyAgreement && clientConfiguration.get_serverAgreementKey() != null;
+        _ticketDirectory = protocolVersion >= Protocol.VERSION_2 ? ticketDirectory : null;
+        _tls = tls;
+        _offeredVersion = protocolVersion;
     }
 
     /**
@@ -49,38 +83,253 @@ public class LoginTask extends Task
      */
     public void run() throws IOException
     {
-        //symmetric Key vereinbaren
+        // Read user name
+        Utility.safePrint("User: ");
+        _name = _terminalScanner.next();
 
-        try
-        {
-            symmetricKey = AESHelper.generateKey(128);
-            String message = "OUR_KEY: " + AESHelper.secretKeyToString(symmetricKey);
-            //System.out.println("login:"  + symmetricKey.toString());
-            Utility.sendRSAPackage(_socketOutputStream, message, _config.get_serverPublicKey());
-        }
-        catch (NoSuchAlgorithmException e)
+        // Skip key exchange and password if a resumption ticket is accepted
+        if (_ticketDirectory != null && resumeSession())
         {
-            e.printStackTrace();
+            Utility.safePrintln("Session resumed.");
+            _successful = true;
+            requestTicket();
+            return;
         }
 
+        //symmetric Key vereinbaren
+        if (_tls)
+            announceTls();
+        else if (!_keyAgreement || !agreeSessionKey())
+            sendSessionKey();
 
-
-
-        // Read credentials
+        // Read password
         String password;
-        Utility.safePrint("User: ");
-        _name = _terminalScanner.next();
         Utility.safePrint("Password: ");
         password = _terminalScanner.next();
 
         // Send login packet
         String loginPacket = _name + "," + password;
-        Utility.sendPacketAES(_socketOutputStream, loginPacket,symmetricKey);
+        sendMessage(loginPacket);
 
         // Wait for response packet
-        String loginResponse = Utility.receivePacketAES(_socketInputStream,symmetricKey);
+        String loginResponse = receiveMessage();
         Utility.safeDebugPrintln("Server response: " + loginResponse);
         _successful = loginResponse.equals("Login OK.");
+        if (_successful && _ticketDirectory != null && _config.get_protocolVersion() >= Protocol.VERSION_2)
+            requestTicket();
+    }
+
+    /**
+     * Tells the server that the connection is secured by TLS, so packets are sent without the AES layer.
+     */
+    private void announceTls() throws IOException
+    {
+        String tls = Protocol.TLS_PREFIX + " " + _offeredVersion;
+        Utility.sendPacket(_socketOutputStream, tls.getBytes(StandardCharsets.US_ASCII));
+        _socketOutputStream.flush();
+        receiveVersion();
+        _config.set_cryptoContext(new CryptoContext());
+    }
+
+    /**
+     * Tries to resume a session with the ticket stored for the current user (see TicketKeyRing).
+     *
+     * @return Whether the server accepted the ticket; if not, a full login is needed.
+     */
+    private boolean resumeSession() throws IOException
+    {
+        // Read ticket file
+        Path ticketFilename = getTicketFilename();
+        if (!Files.exists(ticketFilename))
+            return false;
+        String[] ticketFileParts = Files.readString(ticketFilename, StandardCharsets.US_ASCII).trim().split(" ");
+        if (ticketFileParts.length < 2)
+            return false;
+
+        try
+        {
+            // Present ticket
+            byte[] secret = Base64.getDecoder().decode(ticketFileParts[0]);
+            byte[] clientNonce = new byte[Protocol.RESUME_NONCE_SIZE];
+            new SecureRandom().nextBytes(clientNonce);
+            String resume = Protocol.RESUME_PREFIX + " " + ticketFileParts[1] + " " + _offeredVersion + " " + Base64.getEncoder().encodeToString(clientNonce);
+            Utility.sendPacket(_socketOutputStream, resume.getBytes(StandardCharsets.US_ASCII));
+            _socketOutputStream.flush();
+
+            // Receive the server's nonce
+            byte[] resumePacket = Utility.receivePacketBinary(_socketInputStream);
+            if (resumePacket.length < 1 || resumePacket[0] != Protocol.OPCODE_RESUME)
+                throw new IOException("Invalid resumption packet.");
+            if (resumePacket.length == 1)
+            {
+                Utility.safeDebugPrintln("Server rejected the resumption ticket.");
+                Files.deleteIfExists(ticketFilename);
+                return false;
+            }
+            adoptVersion(resumePacket[1]);
+            byte[] serverNonce = Arrays.copyOfRange(resumePacket, 2, resumePacket.length);
+
+            // Derive session key
+            SecretKey sessionKey = TicketKeyRing.deriveSessionKey(secret, clientNonce, serverNonce);
+            _config.set_symmetricKey(sessionKey);
+            if (_config.get_protocolVersion() >= Protocol.VERSION_3)
+                _config.set_cryptoContext(new CryptoContext(sessionKey, serverNonce, false));
+            return true;
+        }
+        catch (GeneralSecurityException | IllegalArgumentException e)
+        {
+            throw new IOException("Session resumption failed.", e);
+        }
+    }
+
+    /**
+     * Requests a new resumption ticket and stores it for the current user.
+     */
+    private void requestTicket() throws IOException
+    {
+        sendMessage("ticket");
+        byte[] body = receivePacket(Protocol.OPCODE_TICKET);
+        if (body.length <= TicketKeyRing.SECRET_SIZE)
+            return;
+
+        // Save secret and ticket
+        String secret = Base64.getEncoder().encodeToString(Arrays.copyOf(body, TicketKeyRing.SECRET_SIZE));
+        String ticket = Base64.getEncoder().encodeToString(Arrays.copyOfRange(body, TicketKeyRing.SECRET_SIZE, body.length));
+        try
+        {
+            Files.writeString(getTicketFilename(), secret + " " + ticket, StandardCharsets.US_ASCII);
+        }
+        catch (IOException e)
+        {
+            Utility.safeDebugPrintln("error: " +e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the path of the current user's ticket file, next to the device code file.
+     *
+     * @return The path of the ticket file.
+     */
+    private Path getTicketFilename()
+    {
+        return Paths.get(_ticketDirectory, "banking_ticket_" + _name + ".txt");
+    }
+
+    /**
+     * Agrees on the session key with an X25519 handshake (see KeyAgreementHelper).
+     *
+     * @return Whether the server accepted the handshake; if not, the session key must be sent with RSA.
+     */
+    private boolean agreeSessionKey() throws IOException
+    {
+        try
+        {
+            // Send ephemeral key
+            KeyPair ephemeralKeyPair = KeyAgreementHelper.generateKeyPair();
+            byte[] clientKey = ephemeralKeyPair.getPublic().getEncoded();
+            String handshake = Protocol.HANDSHAKE_PREFIX + " " + Base64.getEncoder().encodeToString(clientKey) + " " + _offeredVersion;
+            Utility.sendPacket(_socketOutputStream, handshake.getBytes(StandardCharsets.US_ASCII));
+            _socketOutputStream.flush();
+
+            // Receive the server's ephemeral key
+            byte[] handshakePacket = Utility.receivePacketBinary(_socketInputStream);
+            if (handshakePacket.length < 1 || handshakePacket[0] != Protocol.OPCODE_HANDSHAKE)
+                throw new IOException("Invalid handshake packet.");
+            if (handshakePacket.length == 1)
+            {
+                Utility.safeDebugPrintln("Server rejected the X25519 handshake, using RSA.");
+                return false;
+            }
+            adoptVersion(handshakePacket[1]);
+            byte[] serverKey = Arrays.copyOfRange(handshakePacket, 2, handshakePacket.length);
+
+            // Derive session key
+            PublicKey serverPublicKey = KeyAgreementHelper.decodePublicKey(serverKey);
+            SecretKey sessionKey = KeyAgreementHelper.deriveSessionKey(
+                    KeyAgreementHelper.agree(ephemeralKeyPair.getPrivate(), _clientConfiguration.get_serverAgreementKey()),
+                    KeyAgreementHelper.agree(ephemeralKeyPair.getPrivate(), serverPublicKey),
+                    clientKey, serverKey);
+            _config.set_symmetricKey(sessionKey);
+            if (_config.get_protocolVersion() >= Protocol.VERSION_3)
+                _config.set_cryptoContext(new CryptoContext(sessionKey, serverKey, false));
+            return true;
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IOException("X25519 handshake failed.", e);
+        }
+    }
+
+    /**
+     * Generates the session key and sends it RSA encrypted to the server.
+     */
+    private void sendSessionKey() throws IOException
+    {
+        try
+        {
+            SecretKey symmetricKey = AESHelper.generateKey(128);
+            _config.set_symmetricKey(symmetricKey);
+            String message = "OUR_KEY: " + AESHelper.secretKeyToString(symmetricKey);
+            if (_offeredVersion > Protocol.VERSION_1)
+                message += " " + _offeredVersion;
+            //System.out.println("login:"  + symmetricKey.toString());
+            Utility.sendRSAPackage(_socketOutputStream, message, _config.get_serverPublicKey());
+
+            // The server announces the chosen version, unless version 1 was offered
+            _config.set_protocolVersion(Protocol.VERSION_1);
+            if (_offeredVersion > Protocol.VERSION_1)
+            {
+                _socketOutputStream.flush();
+                receiveVersion();
+            }
+
+            // Version 3 derives the GCM key from the session key and a salt chosen by the server
+            if (_config.get_protocolVersion() >= Protocol.VERSION_3)
+            {
+                byte[] saltPacket = Utility.receivePacketBinary(_socketInputStream);
+                if (saltPacket.length != 1 + Protocol.SALT_SIZE || saltPacket[0] != Protocol.OPCODE_SESSION_SALT)
+                    throw new IOException("Invalid session salt packet.");
+                byte[] salt = Arrays.copyOfRange(saltPacket, 1, saltPacket.length);
+                _config.set_cryptoContext(new CryptoContext(symmetricKey, salt, false));
+            }
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Receives the protocol version chosen by the server (see Protocol.OPCODE_VERSION). Servers without version
+     * support never answer, so the wait is limited by the read timeout of the socket.
+     */
+    private void receiveVersion() throws IOException
+    {
+        byte[] versionPacket;
+        try
+        {
+            versionPacket = Utility.receivePacketBinary(_socketInputStream);
+        }
+        catch (SocketTimeoutException e)
+        {
+            throw new IOException("The server did not announce a protocol version; it may only support version 1 (try --protocol=1).", e);
+        }
+        if (versionPacket.length != 2 || versionPacket[0] != Protocol.OPCODE_VERSION)
+            throw new IOException("Invalid protocol version packet.");
+        adoptVersion(versionPacket[1]);
+    }
+
+    /**
+     * Switches to the protocol version chosen by the server.
+     *
+     * @param version The version chosen by the server.
+     */
+    private void adoptVersion(byte version) throws IOException
+    {
+        if (version < Protocol.VERSION_1 || version > _offeredVersion)
+            throw new IOException("The server chose the unsupported protocol version " + version + ".");
+        _config.set_protocolVersion(version);
+        Utility.safeDebugPrintln("Using protocol version " + version + ".");
     }
 
     /**
@@ -103,8 +352,13 @@ public class LoginTask extends Task
         return _name;
     }
 
-    public SecretKey getSymmetricKey()
+    /**
+     * Returns the communication settings negotiated in the login, to be used by subsequent tasks.
+     *
+     * @return The communication settings negotiated in the login.
+     */
+    public Config getConfig()
     {
-        return symmetricKey;
+        return _config;
     }
 }
@@ -1,4 +1,3 @@
-import javax.crypto.SecretKey;
 import java.io.*;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -35,11 +34,12 @@ public class RegistrationTask extends Task
      * @param userName                 The name of the user currently logged in.
      * @param deviceCodeFilePathPrefix Base path of the device code file (default is
      *                                 the working directory).
+     * @param config                   The communication settings of the current connection.
      */
-    public RegistrationTask(DataInputStream socketInputStream, DataOutputStream socketOutputStream, Scanner terminalScanner, String userName, String deviceCodeFilePathPrefix, ClientConfiguration clientConfiguration, SecretKey aesKey)
+    public RegistrationTask(DataInputStream socketInputStream, DataOutputStream socketOutputStream, Scanner terminalScanner, String userName, String deviceCodeFilePathPrefix, ClientConfiguration clientConfiguration, Config config)
     {
         // Call superclass constructor
-        super(socketInputStream, socketOutputStream,  clientConfiguration, aesKey);
+        super(socketInputStream, socketOutputStream,  clientConfiguration, config);
 
         // Save parameters
         _terminalScanner = terminalScanner;
@@ -72,15 +72,15 @@ public class RegistrationTask extends Task
             // Inform server about authentication
             String prePacket = "authentication";
             Utility.safeDebugPrintln("Sending authentication header packet...");
-            Utility.sendPacketAES(_socketOutputStream, prePacket, _config.get_symmetricKey());
+            sendMessage(prePacket);
 
             // Send authentication code
             Utility.safeDebugPrintln("Sending authentication code...");
-            Utility.sendPacketAES(_socketOutputStream, authenticationCode, _config.get_symmetricKey());
+            sendMessage(authenticationCode);
 
             // Wait for confirmation by server
             Utility.safeDebugPrintln("Waiting for server confirmation...");
-            String serverConfirmation = Utility.receivePacketAES(_socketInputStream, _config.get_symmetricKey());
+            String serverConfirmation = receiveMessage();
             Utility.safeDebugPrintln("Server response: " + serverConfirmation);
             if (!serverConfirmation.equals("Authentication successful."))
             {
@@ -94,16 +94,16 @@ public class RegistrationTask extends Task
             // Inform server about registration
             String prePacket = "registration";
             Utility.safeDebugPrintln("Sending registration header packet...");
-            Utility.sendPacketAES(_socketOutputStream, prePacket, _config.get_symmetricKey());
+            sendMessage(prePacket);
 
             // Generate half of registration code
             Utility.safeDebugPrintln("Generating and sending registration code part 1/2...");
             String registrationCodePart1 = Utility.getRandomString(4);
-            Utility.sendPacketAES(_socketOutputStream, registrationCodePart1, _config.get_symmetricKey());
+            sendMessage(registrationCodePart1);
 
             // Receive other half of registration code from server
             Utility.safeDebugPrintln("Waiting for registration code part 2/2...");
-            String registrationCodePart2 = Utility.receivePacketAES(_socketInputStream, _config.get_symmetricKey());
+            String registrationCodePart2 = receiveMessage();
             if (registrationCodePart2.length() != 4)
             {
                 // Output response and stop registration process
@@ -119,11 +119,11 @@ public class RegistrationTask extends Task
 
             // Send confirmation code
             Utility.safeDebugPrintln("Sending confirmation code...");
-            Utility.sendPacketAES(_socketOutputStream, confirmationCode, _config.get_symmetricKey());
+            sendMessage(confirmationCode);
 
             // Wait for confirmation by server
             Utility.safeDebugPrintln("Waiting for server confirmation...");
-            String serverConfirmation = Utility.receivePacketAES(_socketInputStream, _config.get_symmetricKey());
+            String serverConfirmation = receiveMessage();
             Utility.safeDebugPrintln("Server response: " + serverConfirmation);
             if (!serverConfirmation.equals("Registration successful."))
                 return;
@@ -1,4 +1,3 @@
-import javax.crypto.SecretKey;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -33,14 +32,15 @@ public abstract class Task
      *
      * @param socketInputStream  The socket input stream.
      * @param socketOutputStream The socket output stream.
+     * @param config             The communication settings of the current connection.
      */
-    public Task(DataInputStream socketInputStream, DataOutputStream socketOutputStream, ClientConfiguration clientConfiguration, SecretKey symmetricKey)
+    public Task(DataInputStream socketInputStream, DataOutputStream socketOutputStream, ClientConfiguration clientConfiguration, Config config)
     {
         // Save parameters
         _socketInputStream = socketInputStream;
         _socketOutputStream = socketOutputStream;
         _clientConfiguration = clientConfiguration;
-        _config = new Config(clientConfiguration.get_serverPublicKey(),symmetricKey);
+        _config = config;
     }
 
     /**
@@ -49,4 +49,42 @@ public abstract class Task
      * @throws IOException
      */
     public abstract void run() throws IOException;
+
+    /**
+     * Sends the given message to the server, encrypted with the session key.
+     *
+     * @param message The message to be sent.
+     */
+    protected void sendMessage(String message) throws IOException
+    {
+        Utility.sendMessage(_socketOutputStream, message, _config.get_cryptoContext(), _config.get_protocolVersion());
+    }
+
+    /**
+     * Receives the next message from the server, encrypted with the session key.
+     * The output stream is buffered, so all messages sent since the last receive are flushed first.
+     *
+     * @return The received message.
+     */
+    protected String receiveMessage() throws IOException
+    {
+        _socketOutputStream.flush();
+        return Utility.receiveMessage(_socketInputStream, _config.get_cryptoContext(), _config.get_protocolVersion());
+    }
+
+    /**
+     * Receives the next binary packet from the server (protocol version 2 only).
+     * The output stream is flushed first, as in receiveMessage().
+     *
+     * @param opcode The expected packet opcode.
+     * @return The decrypted packet body.
+     */
+    protected byte[] receivePacket(byte opcode) throws IOException
+    {
+        _socketOutputStream.flush();
+        Packet packet = Utility.receivePacketV2(_socketInputStream, _config.get_cryptoContext());
+        if (packet.getOpcode() != opcode)
+            throw new IOException("Unexpected packet opcode " + packet.getOpcode() + ".");
+        return packet.getBody();
+    }
 }
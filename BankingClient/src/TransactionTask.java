@@ -1,4 +1,3 @@
-import javax.crypto.SecretKey;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -24,11 +23,12 @@ public class TransactionTask extends Task
      * @param socketInputStream  The socket input stream.
      * @param socketOutputStream The socket output stream.
      * @param terminalScanner    A scanner object to read terminal input.
+     * @param config             The communication settings of the current connection.
      */
-    public TransactionTask(DataInputStream socketInputStream, DataOutputStream socketOutputStream, Scanner terminalScanner, ClientConfiguration clientConfiguration, SecretKey aesKEy)
+    public TransactionTask(DataInputStream socketInputStream, DataOutputStream socketOutputStream, Scanner terminalScanner, ClientConfiguration clientConfiguration, Config config)
     {
         // Call superclass constructor
-        super(socketInputStream, socketOutputStream, clientConfiguration, aesKEy);
+        super(socketInputStream, socketOutputStream, clientConfiguration, config);
 
         // Save parameters
         _terminalScanner = terminalScanner;
@@ -50,15 +50,15 @@ public class TransactionTask extends Task
         // Inform server about transaction
         String prePacket = "transaction";
         Utility.safeDebugPrintln("Sending transaction header packet...");
-        Utility.sendPacketAES(_socketOutputStream, prePacket, _config.get_symmetricKey());
+        sendMessage(prePacket);
 
         // Send packet
         String transactionPacket = recipient + "," + amount;
         Utility.safeDebugPrintln("Sending transaction packet...");
-        Utility.sendPacketAES(_socketOutputStream, transactionPacket, _config.get_symmetricKey());
+        sendMessage(transactionPacket);
 
         // Wait for response packet
-        String moneySendResponse = Utility.receivePacketAES(_socketInputStream, _config.get_symmetricKey());
+        String moneySendResponse = receiveMessage();
         Utility.safeDebugPrintln("Server response: " + moneySendResponse);
         _successful = moneySendResponse.equals("Transaction successful.");
     }
@@ -0,0 +1,106 @@
+/**
+ * Executes the operations of the database that read or change account data, so different concurrency
+ * strategies can be selected at startup. Implementations must be thread safe.
+ */
+public interface AccountEngine
+{
+    /**
+     * Reserves the journal record of a transfer (see Journal). Engines call it while they apply the transfer:
+     * after the balance check, and before the credit is visible to other threads. So a transfer that spends
+     * received money is always recorded after the transfer that brought the money, and replaying the journal
+     * never overdraws an account.
+     */
+    @FunctionalInterface
+    interface TransferRecorder
+    {
+        /**
+         * Records the given transfer.
+         *
+         * @param sourceUserId The ID of the user where the money comes from.
+         * @param targetUserId The ID of the user where the money is sent to.
+         * @param amount       The amount of money.
+         * @return Whether the transfer was recorded; if not, the engine does not apply it.
+         */
+        boolean record(int sourceUserId, int targetUserId, int amount);
+    }
+
+    /**
+     * Returns the amount of money of the given user.
+     *
+     * @param userId The user ID.
+     * @param user   The user.
+     * @return The amount of money.
+     */
+    int getMoney(int userId, UserData user);
+
+    /**
+     * Sends money from the given source user to the given target user, if the source user has enough money,
+     * and tracks the transfer in both histories.
+     *
+     * @param sourceUserId The ID of the user where the money comes from.
+     * @param source       The user where the money comes from.
+     * @param targetUserId The ID of the user where the money is sent to.
+     * @param target       The user where the money is sent to.
+     * @param amount       The (positive) amount of money.
+     * @param recorder     Records the transfer before it becomes visible, or null.
+     * @return Whether the source user had enough money, and the transfer was recorded.
+     */
+    boolean transfer(int sourceUserId, UserData source, int targetUserId, UserData target, int amount, TransferRecorder recorder);
+
+    /**
+     * Adds the device with the given authentication code to the given user.
+     *
+     * @param userId     The user ID.
+     * @param user       The user.
+     * @param deviceCode The device code to be added.
+     */
+    void addDevice(int userId, UserData user, String deviceCode);
+
+    /**
+     * Checks whether the given user has a device with the given code.
+     *
+     * @param userId     The user ID.
+     * @param user       The user.
+     * @param deviceCode The device code to be checked.
+     * @return Whether the given user has a device with the given code.
+     */
+    boolean hasDevice(int userId, UserData user, String deviceCode);
+
+    /**
+     * Stops the background threads of the engine, if any. The engine must not be used afterwards.
+     */
+    default void close()
+    {
+    }
+
+    /**
+     * Creates the engine selected by the "engine" command line option.
+     *
+     * @param options The command line options.
+     * @return The selected engine, or null if the name is unknown.
+     */
+    static AccountEngine fromOptions(CommandLineOptions options)
+    {
+        String name = options.getString("engine", "locking");
+        if (name.equalsIgnoreCase("ledger"))
+            return new LedgerAccountEngine(options.getInt("ledger-ring-size", LedgerAccountEngine.DEFAULT_RING_SIZE));
+        return create(name);
+    }
+
+    /**
+     * Creates the engine with the given name.
+     *
+     * @param name The engine name: "locking", "lockfree" or "ledger".
+     * @return The engine, or null if the name is unknown.
+     */
+    static AccountEngine create(String name)
+    {
+        if (name.equalsIgnoreCase("locking"))
+            return new LockingAccountEngine();
+        if (name.equalsIgnoreCase("lockfree"))
+            return new LockFreeAccountEngine();
+        if (name.equalsIgnoreCase("ledger"))
+            return new LedgerAccountEngine(LedgerAccountEngine.DEFAULT_RING_SIZE);
+        return null;
+    }
+}
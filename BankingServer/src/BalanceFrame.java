@@ -0,0 +1,148 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The body of a balance packet (protocol version 2), containing the current money and the
+ * transaction history of a user, or one page of it.
+ * <p>
+ * Format: "&lt;int money&gt;&lt;int next cursor&gt;&lt;int count&gt;" followed by count entries
+ * "&lt;UTF name&gt;&lt;int amount&gt;". The next cursor is -1 if there are no further history entries.
+ */
+public class BalanceFrame
+{
+    /**
+     * The current money of the user.
+     */
+    private final int _money;
+
+    /**
+     * The transaction history, as pairs of user names and amounts.
+     */
+    private final List<Tuple<String, Integer>> _history;
+
+    /**
+     * The cursor of the next history page, or -1 if there are no further entries.
+     */
+    private final int _nextCursor;
+
+    /**
+     * Creates a new balance frame.
+     *
+     * @param money      The current money of the user.
+     * @param history    The transaction history, as pairs of user names and amounts.
+     * @param nextCursor The cursor of the next history page, or -1 if there are no further entries.
+     */
+    public BalanceFrame(int money, List<Tuple<String, Integer>> history, int nextCursor)
+    {
+        _money = money;
+        _history = history;
+        _nextCursor = nextCursor;
+    }
+
+    /**
+     * Creates a new balance frame from the given history map.
+     *
+     * @param money   The current money of the user.
+     * @param history The transaction history, mapping user names to amounts.
+     */
+    public BalanceFrame(int money, Map<String, Integer> history)
+    {
+        this(money, new ArrayList<>(), -1);
+        for (Map.Entry<String, Integer> entry : history.entrySet())
+            _history.add(new Tuple<>(entry.getKey(), entry.getValue()));
+    }
+
+    /**
+     * Returns the current money of the user.
+     *
+     * @return The current money of the user.
+     */
+    public int getMoney()
+    {
+        return _money;
+    }
+
+    /**
+     * Returns the transaction history.
+     *
+     * @return The transaction history, as pairs of user names and amounts.
+     */
+    public List<Tuple<String, Integer>> getHistory()
+    {
+        return _history;
+    }
+
+    /**
+     * Returns the cursor of the next history page.
+     *
+     * @return The cursor of the next history page, or -1 if there are no further entries.
+     */
+    public int getNextCursor()
+    {
+        return _nextCursor;
+    }
+
+    /**
+     * Encodes this frame as packet body.
+     *
+     * @return The packet body.
+     */
+    public byte[] toBytes()
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(12 + 16 * _history.size());
+        try (DataOutputStream out = new DataOutputStream(buffer))
+        {
+            out.writeInt(_money);
+            out.writeInt(_nextCursor);
+            out.writeInt(_history.size());
+            for (Tuple<String, Integer> entry : _history)
+            {
+                out.writeUTF(entry.x);
+                out.writeInt(entry.y);
+            }
+        }
+        catch (IOException e)
+        {
+            // Cannot happen with an in-memory stream
+            throw new IllegalStateException(e);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Decodes a frame from the given packet body.
+     *
+     * @param body The packet body.
+     * @return The decoded frame, or null if the body is malformed.
+     */
+    public static BalanceFrame fromBytes(byte[] body)
+    {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(body)))
+        {
+            int money = in.readInt();
+            int nextCursor = in.readInt();
+            int count = in.readInt();
+            if (count < 0 || count > body.length / 6)
+                return null;
+
+            List<Tuple<String, Integer>> history = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i)
+            {
+                String name = in.readUTF();
+                history.add(new Tuple<>(name, in.readInt()));
+            }
+            return new BalanceFrame(money, history, nextCursor);
+        }
+        catch (IOException e)
+        {
+            Utility.safeDebugPrintln("Received malformed balance frame: " + e.getMessage());
+            return null;
+        }
+    }
+}
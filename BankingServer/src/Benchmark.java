@@ -0,0 +1,814 @@
+import javax.crypto.SecretKey;
+import javax.net.ssl.SSLContext;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Micro benchmarks for the server, run by the "benchmark" command of ServerMain.
+ */
+public class Benchmark
+{
+    /**
+     * Runs the benchmark given in the command line.
+     *
+     * @param args The command line arguments: "benchmark &lt;kind&gt; ...".
+     */
+    public static void run(String[] args)
+    {
+        String kind = args[1];
+        if (kind.equalsIgnoreCase("handshake") && args.length >= 3)
+            handshake(args[2], new CommandLineOptions(args, 3));
+        else if (kind.equalsIgnoreCase("transport") && args.length >= 3)
+            transport(args[2], new CommandLineOptions(args, 3));
+        else if (kind.equalsIgnoreCase("accounts"))
+            accounts(new CommandLineOptions(args, 2));
+        else if (kind.equalsIgnoreCase("transfers"))
+            transfers(new CommandLineOptions(args, 2));
+        else if (kind.equalsIgnoreCase("startup"))
+            startup(new CommandLineOptions(args, 2));
+        else if (kind.equalsIgnoreCase("load"))
+            load(new CommandLineOptions(args, 2));
+        else if (kind.equalsIgnoreCase("store"))
+            store(new CommandLineOptions(args, 2));
+        else if (kind.equalsIgnoreCase("history"))
+            history(new CommandLineOptions(args, 2));
+        else if (kind.equalsIgnoreCase("journal") && args.length >= 3)
+            journal(args[2], new CommandLineOptions(args, 3));
+        else
+            Utility.safePrintln("Unknown benchmark.");
+    }
+
+    /**
+     * Measures the server side cost of the RSA and the X25519 login handshake.
+     *
+     * @param databaseFile The database containing the server keys.
+     * @param options      The command line options.
+     */
+    private static void handshake(String databaseFile, CommandLineOptions options)
+    {
+        int iterations = options.getInt("iterations", 200);
+        Database database = new Database(databaseFile);
+        if (database.get_agreementPrivateKey() == null)
+        {
+            Utility.safePrintln("The database has no X25519 key, please generate a new one.");
+            return;
+        }
+
+        try
+        {
+            // Prepare client messages; the public key is recovered from the private CRT key
+            RSAPrivateCrtKey rsaKey = (RSAPrivateCrtKey) database.get_privateKey();
+            PublicKey rsaPublicKey = KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(rsaKey.getModulus(), rsaKey.getPublicExponent()));
+            String rsaMessage = GenerateKeys.encryptMessage("OUR_KEY: " + AESHelper.secretKeyToString(AESHelper.generateKey(128)) + " " + Protocol.CURRENT_VERSION, rsaPublicKey);
+            byte[] rsaPayload = rsaMessage.getBytes();
+            String clientKey = Base64.getEncoder().encodeToString(KeyAgreementHelper.generateKeyPair().getPublic().getEncoded());
+            PrivateKey staticKey = database.get_agreementPrivateKey();
+
+            // Warm up, then measure
+            for (int round = 0; round < 2; ++round)
+            {
+                int count = round == 0 ? Math.max(1, iterations / 10) : iterations;
+
+                long start = System.nanoTime();
+                for (int i = 0; i < count; ++i)
+                    Utility.decodePacketRSA(rsaPayload, rsaKey);
+                long rsaNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < count; ++i)
+                {
+                    // Same steps as ClientSession.handleHandshake
+                    byte[] clientKeyBytes = Base64.getDecoder().decode(clientKey);
+                    PublicKey clientPublicKey = KeyAgreementHelper.decodePublicKey(clientKeyBytes);
+                    KeyPair ephemeralKeyPair = KeyAgreementHelper.generateKeyPair();
+                    KeyAgreementHelper.deriveSessionKey(
+                            KeyAgreementHelper.agree(staticKey, clientPublicKey),
+                            KeyAgreementHelper.agree(ephemeralKeyPair.getPrivate(), clientPublicKey),
+                            clientKeyBytes, ephemeralKeyPair.getPublic().getEncoded());
+                }
+                long x25519Nanos = System.nanoTime() - start;
+
+                if (round == 1)
+                {
+                    printResult("rsa", count, rsaNanos);
+                    printResult("x25519", count, x25519Nanos);
+                }
+            }
+        }
+        catch (GeneralSecurityException e)
+        {
+            e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+        }
+    }
+
+    /**
+     * Measures how the account lookups of the database scale with the number of accounts, compared to a linear
+     * search over the user names as done before the name index existed.
+     *
+     * @param options The command line options.
+     */
+    private static void accounts(CommandLineOptions options)
+    {
+        int maxAccounts = options.getInt("max-accounts", 10_000_000);
+        int lookups = options.getInt("lookups", 1_000_000);
+        Random random = new Random(1);
+        for (int accounts = 10; accounts <= maxAccounts; accounts *= 10)
+        {
+            // Fill database
+            long start = System.nanoTime();
+            Database database = new Database(new LockingAccountEngine());
+            for (int i = 0; i < accounts; ++i)
+                database.addUser(new UserData("user" + i, "0000", 1000, -1));
+            long buildNanos = System.nanoTime() - start;
+
+            // Indexed lookups, as done by verifyLogin and sendMoney
+            String[] names = new String[1024];
+            for (int i = 0; i < names.length; ++i)
+                names[i] = "USER" + random.nextInt(accounts);
+            long checksum = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; ++i)
+            {
+                int userId = database.getUserId(names[i & (names.length - 1)]);
+                checksum += database.getMoney(userId) + database.getUserName(userId).length();
+            }
+            long indexNanos = System.nanoTime() - start;
+
+            // Linear search, with a bounded total number of comparisons
+            int scans = Math.max(3, Math.min(lookups, 10_000_000 / accounts));
+            start = System.nanoTime();
+            for (int i = 0; i < scans; ++i)
+            {
+                String name = names[i & (names.length - 1)];
+                for (int u = 0; u < accounts; ++u)
+                    if (database.getUserName(u).equalsIgnoreCase(name))
+                    {
+                        checksum += u;
+                        break;
+                    }
+            }
+            long linearNanos = System.nanoTime() - start;
+
+            Utility.safePrintln(String.format("%,12d accounts   build %8.1f ms   index %8.1f ns/lookup   linear %14.1f ns/lookup   (checksum %d)",
+                    accounts, buildNanos / 1e6, (double) indexNanos / lookups, (double) linearNanos / scans, checksum % 10));
+        }
+    }
+
+    /**
+     * Stress test of concurrent transfers: many threads send random amounts between random accounts. Afterwards the
+     * total money must be unchanged and no account may be overdrawn. Few accounts mean heavy lock contention.
+     * With --hot, every other transfer credits account 0 and the others debit it, as with the "group" account.
+     * Each selected account engine is measured with each of the given thread counts.
+     *
+     * @param options The command line options.
+     */
+    private static void transfers(CommandLineOptions options)
+    {
+        int accounts = Math.max(2, options.getInt("accounts", 1000));
+        int transfers = options.getInt("transfers", 200_000);
+        String engineName = options.getString("engine", "all");
+        String[] engineNames = engineName.equalsIgnoreCase("all") ? new String[]{"locking", "lockfree", "ledger"} : new String[]{engineName};
+        String[] threadCounts = options.getString("threads", "1,4,16,64").split(",");
+        boolean hot = options.getBoolean("hot", false);
+        UserData.setHotAccountThreshold(options.getInt("hot-account-threshold", 1000));
+
+        boolean passed = true;
+        for (String name : engineNames)
+        {
+            AccountEngine check = AccountEngine.create(name);
+            if (check == null)
+            {
+                Utility.safePrintln("Unknown engine '" + name + "'.");
+                return;
+            }
+            check.close();
+            for (String threadCount : threadCounts)
+            {
+                // Warm up, then measure
+                transfers(name, accounts, Integer.parseInt(threadCount.trim()), Math.max(1, transfers / 10), hot, false);
+                passed &= transfers(name, accounts, Integer.parseInt(threadCount.trim()), transfers, hot, true);
+            }
+        }
+        Utility.safePrintln(passed ? "PASSED" : "FAILED");
+    }
+
+    /**
+     * Runs one round of the transfer stress test.
+     *
+     * @param engineName  The name of the account engine.
+     * @param accounts    The number of accounts.
+     * @param threadCount The number of threads.
+     * @param transfers   The total number of transfers.
+     * @param hot         Determines whether half of the transfers credit account 0, and the others debit it.
+     * @param print       Determines whether the result is printed.
+     * @return Whether the total money was conserved and no account was overdrawn.
+     */
+    private static boolean transfers(String engineName, int accounts, int threadCount, int transfers, boolean hot, boolean print)
+    {
+        // Fill database
+        AccountEngine engine = AccountEngine.create(engineName);
+        Database database = new Database(engine);
+        String[] names = new String[accounts];
+        for (int i = 0; i < accounts; ++i)
+        {
+            names[i] = "user" + i;
+            database.addUser(new UserData(names[i], "0000", 1000, -1));
+        }
+        long expectedTotal = 1000L * accounts;
+
+        // Run transfers
+        int transfersPerThread = Math.max(1, transfers / Math.max(1, threadCount));
+        LongAdder successful = new LongAdder();
+        Thread[] threads = new Thread[Math.max(1, threadCount)];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads.length; ++t)
+        {
+            int seed = t;
+            threads[t] = new Thread(() ->
+            {
+                Random random = new Random(seed);
+                for (int i = 0; i < transfersPerThread; ++i)
+                {
+                    int source = random.nextInt(accounts);
+                    String target = names[random.nextInt(accounts)];
+                    if (hot)
+                    {
+                        // Credit account 0, or debit it
+                        if ((i & 1) == 0)
+                            target = names[0];
+                        else
+                            source = 0;
+                    }
+                    if (database.sendMoney(source, target, 1 + random.nextInt(100)))
+                        successful.increment();
+                }
+            }, "benchmark-transfer-" + t);
+            threads[t].start();
+        }
+        try
+        {
+            for (Thread thread : threads)
+                thread.join();
+        }
+        catch (InterruptedException e)
+        {
+            e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+            engine.close();
+            return false;
+        }
+        long nanos = System.nanoTime() - start;
+        engine.close();
+
+        // Check invariants
+        long total = 0;
+        int overdrawn = 0;
+        for (int i = 0; i < accounts; ++i)
+        {
+            int money = database.getMoney(i);
+            total += money;
+            if (money < 0)
+                ++overdrawn;
+        }
+        long done = (long) transfersPerThread * threads.length;
+        if (print)
+            Utility.safePrintln(String.format("%-10s %3d threads %8d accounts: %9d transfers (%9d successful) in %8.1f ms, %10.0f transfers/s, total money %s, %d overdrawn",
+                    engineName, threads.length, accounts, done, successful.sum(), nanos / 1e6, done / (nanos / 1e9), total == expectedTotal ? "conserved" : total + " instead of " + expectedTotal, overdrawn));
+        return total == expectedTotal && overdrawn == 0;
+    }
+
+    /**
+     * Measures the journal: many threads record transfers concurrently, and wait for their group commits.
+     * Prints throughput, batch sizes and commit latency percentiles for each fsync policy, and checks that the
+     * journal replays all records.
+     *
+     * @param file    The journal file to be created; it is deleted afterwards.
+     * @param options The command line options.
+     */
+    private static void journal(String file, CommandLineOptions options)
+    {
+        int threadCount = Math.max(1, options.getInt("threads", 16));
+        int records = Math.max(1, options.getInt("records", 20_000));
+        long batchWindow = options.getLong("journal-batch-window", 200);
+        String policy = options.getString("journal-fsync", "all");
+        String[] policies = policy.equalsIgnoreCase("all") ? new String[]{Journal.FSYNC_ALWAYS, Journal.FSYNC_INTERVAL, Journal.FSYNC_NONE} : new String[]{policy};
+        if (new File(file).exists())
+        {
+            Utility.safePrintln("The journal file '" + file + "' exists already.");
+            return;
+        }
+
+        boolean passed = true;
+        for (String fsyncPolicy : policies)
+        {
+            if (!Journal.isValidFsyncPolicy(fsyncPolicy))
+            {
+                Utility.safePrintln("Unknown fsync policy '" + fsyncPolicy + "'.");
+                return;
+            }
+            try
+            {
+                // Record transfers
+                Journal journal = new Journal(file, batchWindow, fsyncPolicy, options.getLong("journal-fsync-interval", 100));
+                journal.open(null, -1);
+                long batchesBefore = Metrics.counter("journal.batches").sum();
+                long forcesBefore = Metrics.counter("journal.forces").sum();
+                int recordsPerThread = Math.max(1, records / threadCount);
+                Thread[] threads = new Thread[threadCount];
+                long start = System.nanoTime();
+                for (int t = 0; t < threads.length; ++t)
+                {
+                    int seed = t;
+                    threads[t] = new Thread(() ->
+                    {
+                        Random random = new Random(seed);
+                        try
+                        {
+                            for (int i = 0; i < recordsPerThread; ++i)
+                                journal.appendTransfer(random.nextInt(1000), random.nextInt(1000), 1 + random.nextInt(100)).join();
+                        }
+                        catch (IOException e)
+                        {
+                            e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+                        }
+                    }, "benchmark-journal-" + t);
+                    threads[t].start();
+                }
+                for (Thread thread : threads)
+                    thread.join();
+                long nanos = System.nanoTime() - start;
+                journal.close();
+                long batches = Metrics.counter("journal.batches").sum() - batchesBefore;
+                long forces = Metrics.counter("journal.forces").sum() - forcesBefore;
+
+                // Replay
+                long written = (long) recordsPerThread * threadCount;
+                Journal replayJournal = new Journal(file, 0, Journal.FSYNC_NONE, 100);
+                long replayed = replayJournal.open(null, -1);
+                replayJournal.close();
+                passed &= replayed == written;
+
+                Utility.safePrintln(String.format("%-8s %3d threads: %7d records in %8.1f ms, %9.0f records/s, %6d batches (avg %.1f records), %6d forces, %s, %d replayed",
+                        fsyncPolicy, threadCount, written, nanos / 1e6, written / (nanos / 1e9), batches, written / (double) Math.max(1, batches), forces, journal.getCommitLatency().summary(), replayed));
+            }
+            catch (IOException | InterruptedException e)
+            {
+                e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+                passed = false;
+            }
+            new File(file).delete();
+        }
+        Utility.safePrintln(passed ? "PASSED" : "FAILED");
+    }
+
+    /**
+     * Compares the startup time of the JSON and the binary database loader: generates a database with the given
+     * number of users (each with one device and a few history entries), converts it into the binary format, and
+     * loads both files several times.
+     *
+     * @param options The command line options.
+     */
+    private static void startup(CommandLineOptions options)
+    {
+        int users = Math.max(1, options.getInt("users", 1_000_000));
+        int historyEntries = Math.max(0, options.getInt("history", 4));
+        int iterations = Math.max(1, options.getInt("iterations", 3));
+        Path jsonFile = null;
+        Path binaryFile = null;
+        try
+        {
+            // Generate JSON database
+            jsonFile = Files.createTempFile("benchmark-startup", ".json");
+            binaryFile = Files.createTempFile("benchmark-startup", ".bin");
+            generateDatabase(jsonFile, users, historyEntries);
+            DatabaseWriter.convert(jsonFile.toString(), binaryFile.toString(), true);
+            Utility.safePrintln(String.format("%d users with %d history entries each: JSON %.1f MB, binary %.1f MB",
+                    users, historyEntries, Files.size(jsonFile) / 1e6, Files.size(binaryFile) / 1e6));
+
+            // Load both files
+            for (Path file : new Path[]{jsonFile, binaryFile})
+            {
+                long best = Long.MAX_VALUE;
+                long heap = 0;
+                for (int i = 0; i < iterations; ++i)
+                {
+                    System.gc();
+                    long start = System.nanoTime();
+                    Database database = new Database(file.toString(), new LockingAccountEngine());
+                    best = Math.min(best, System.nanoTime() - start);
+                    System.gc();
+                    heap = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+                    if (database.getUserCount() != users)
+                        Utility.safePrintln("Loaded " + database.getUserCount() + " instead of " + users + " users.");
+                }
+                Utility.safePrintln(String.format("%-6s loader: best of %d loads %8.1f ms, heap after load %.1f MB",
+                        file == jsonFile ? "JSON" : "binary", iterations, best / 1e6, heap / 1e6));
+            }
+        }
+        catch (IOException | GeneralSecurityException e)
+        {
+            e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+        }
+        finally
+        {
+            try
+            {
+                if (jsonFile != null)
+                    Files.deleteIfExists(jsonFile);
+                if (binaryFile != null)
+                    Files.deleteIfExists(binaryFile);
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Measures the time and the peak memory use of loading a large JSON database with the streaming loader:
+     * generates a database with the given number of users (each with one device and the given number of history
+     * entries) and loads it once. The defaults produce a file of several gigabytes; the heap must be large enough
+     * for the loaded data (-Xmx).
+     *
+     * @param options The command line options.
+     */
+    private static void load(CommandLineOptions options)
+    {
+        int users = Math.max(1, options.getInt("users", 10_000_000));
+        int historyEntries = Math.max(0, options.getInt("history", 16));
+        Path jsonFile = null;
+        try
+        {
+            // Generate JSON database
+            jsonFile = Files.createTempFile("benchmark-load", ".json");
+            generateDatabase(jsonFile, users, historyEntries);
+            Utility.safePrintln(String.format("%d users with %d history entries each: JSON %.1f MB",
+                    users, historyEntries, Files.size(jsonFile) / 1e6));
+
+            // Load, tracking the peak use of all heap pools
+            System.gc();
+            long heapBefore = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+                if (pool.getType() == MemoryType.HEAP)
+                    pool.resetPeakUsage();
+            long start = System.nanoTime();
+            Database database = new Database(jsonFile.toString(), new LockingAccountEngine());
+            long duration = System.nanoTime() - start;
+            long peak = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+                if (pool.getType() == MemoryType.HEAP)
+                    peak += pool.getPeakUsage().getUsed();
+            System.gc();
+            long heapAfter = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+            if (database.getUserCount() != users)
+                Utility.safePrintln("Loaded " + database.getUserCount() + " instead of " + users + " users.");
+
+            // The sum of the pool peaks is an upper bound of the peak heap use
+            Utility.safePrintln(String.format("Loaded in %.1f ms with %d threads: loaded data %.1f MB, peak heap at most %.1f MB (%.2fx)",
+                    duration / 1e6, ForkJoinPool.commonPool().getParallelism() + 1, (heapAfter - heapBefore) / 1e6,
+                    (peak - heapBefore) / 1e6, (double) (peak - heapBefore) / Math.max(1, heapAfter - heapBefore)));
+        }
+        catch (IOException | GeneralSecurityException e)
+        {
+            e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+        }
+        finally
+        {
+            try
+            {
+                if (jsonFile != null)
+                    Files.deleteIfExists(jsonFile);
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Generates a JSON database with the given number of users, each with one device and the given number of
+     * random history entries.
+     *
+     * @param file           The database file.
+     * @param users          The number of users.
+     * @param historyEntries The number of history entries per user.
+     */
+    private static void generateDatabase(Path file, int users, int historyEntries) throws IOException, GeneralSecurityException
+    {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        Random random = new Random(1);
+        try (DatabaseWriter writer = DatabaseWriter.create(file.toString(), false, -1))
+        {
+            for (int i = 0; i < users; ++i)
+            {
+                UserData user = new UserData("user" + i, String.valueOf(100000 + random.nextInt(900000)), 1000, -1);
+                user.addDevice(Long.toHexString(random.nextLong()));
+                for (int h = 0; h < historyEntries; ++h)
+                    user.changeMoney(random.nextInt(users), random.nextInt(201) - 100);
+                writer.write(user);
+            }
+            writer.finish(keyPairGenerator.generateKeyPair().getPrivate().getEncoded(), KeyAgreementHelper.generateKeyPair().getPrivate().getEncoded());
+        }
+    }
+
+    /**
+     * Measures the off-heap account store: fills it with the given number of accounts (each with one device), and
+     * measures the heap use, indexed lookups and transfers. For comparison, the heap use of accounts on the heap is
+     * measured with a smaller number of accounts.
+     *
+     * @param options The command line options.
+     */
+    private static void store(CommandLineOptions options)
+    {
+        int accounts = Math.max(1, options.getInt("accounts", 50_000_000));
+        int heapAccounts = Math.max(1, options.getInt("heap-accounts", 1_000_000));
+        int operations = Math.max(1, options.getInt("operations", 10_000_000));
+        Random random = new Random(1);
+        Path file = null;
+        try
+        {
+            // Accounts on the heap
+            long heapBefore = usedHeap();
+            Database database = new Database(new LockingAccountEngine());
+            for (int i = 0; i < heapAccounts; ++i)
+            {
+                UserData user = new UserData("user" + i, String.valueOf(100000 + random.nextInt(900000)), 1000, -1);
+                user.addDevice(Long.toHexString(random.nextLong()));
+                database.addUser(user);
+            }
+            long heapAfter = usedHeap();
+            Utility.safePrintln(String.format("heap store:   %,12d accounts   heap %8.1f bytes/account",
+                    database.getUserCount(), (double) (heapAfter - heapBefore) / heapAccounts));
+            database = null;
+
+            // Accounts in the off-heap store
+            file = Files.createTempFile("benchmark-store", ".accounts");
+            heapBefore = usedHeap();
+            long start = System.nanoTime();
+            MappedAccountStore store = new MappedAccountStore(file.toString());
+            for (int i = 0; i < accounts; ++i)
+            {
+                UserData user = new UserData("user" + i, String.valueOf(100000 + random.nextInt(900000)), 1000, -1);
+                user.addDevice(Long.toHexString(random.nextLong()));
+                store.add(user);
+            }
+            store.finish();
+            long buildNanos = System.nanoTime() - start;
+            heapAfter = usedHeap();
+            Utility.safePrintln(String.format("mapped store: %,12d accounts   heap %8.1f bytes/account   mapped %8.1f bytes/account   build %.1f s",
+                    accounts, (double) (heapAfter - heapBefore) / accounts, (double) store.getMappedSize() / accounts, buildNanos / 1e9));
+
+            // Indexed lookups, as done by verifyLogin and sendMoney
+            String[] names = new String[1024];
+            for (int i = 0; i < names.length; ++i)
+                names[i] = "USER" + random.nextInt(accounts);
+            long checksum = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < operations; ++i)
+                checksum += store.getUserId(names[i & (names.length - 1)]);
+            printResult("mapped store lookups", operations, System.nanoTime() - start);
+
+            // Transfers between random accounts
+            start = System.nanoTime();
+            for (int i = 0; i < operations; ++i)
+                if (store.transfer(random.nextInt(accounts), random.nextInt(accounts), 1, null))
+                    ++checksum;
+            printResult("mapped store transfers", operations, System.nanoTime() - start);
+            Utility.safePrintln("(checksum " + checksum % 10 + ")");
+            store.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+        }
+        finally
+        {
+            try
+            {
+                if (file != null)
+                    Files.deleteIfExists(file);
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Measures the history logs: fills the given number of logs with the given number of entries each, and reports
+     * the heap use and the allocated bytes per entry, and the append and scan times. For comparison, the heap use
+     * of the same entries as linked lists of boxed pairs (the former representation) is measured.
+     *
+     * @param options The command line options.
+     */
+    private static void history(CommandLineOptions options)
+    {
+        int logCount = Math.max(1, options.getInt("logs", 100_000));
+        int entries = Math.max(1, options.getInt("entries", 100));
+        long total = (long) logCount * entries;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        // Former representation
+        long heapBefore = usedHeap();
+        ArrayList<LinkedList<Tuple<Integer, Integer>>> lists = new ArrayList<>(logCount);
+        for (int i = 0; i < logCount; ++i)
+            lists.add(new LinkedList<>());
+        for (int e = 0; e < entries; ++e)
+            for (int i = 0; i < logCount; ++i)
+                lists.get(i).add(new Tuple<>(1000 + e, 1000 + i));
+        long heapAfter = usedHeap();
+        Utility.safePrintln(String.format("linked list:  %,d logs x %d entries   heap %6.1f bytes/entry", lists.size(), entries, (double) (heapAfter - heapBefore) / total));
+        lists = null;
+
+        // History logs, appended round robin like the histories of concurrently used accounts
+        heapBefore = usedHeap();
+        HistoryLog[] logs = new HistoryLog[logCount];
+        for (int i = 0; i < logCount; ++i)
+            logs[i] = new HistoryLog();
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int e = 0; e < entries; ++e)
+            for (int i = 0; i < logCount; ++i)
+                logs[i].append(1000 + e, 1000 + i);
+        long appendNanos = System.nanoTime() - start;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        heapAfter = usedHeap();
+        Utility.safePrintln(String.format("history log:  %,d logs x %d entries   heap %6.1f bytes/entry   allocated %6.1f bytes/append   append %6.1f ns/entry",
+                logs.length, entries, (double) (heapAfter - heapBefore) / total, (double) allocated / total, (double) appendNanos / total));
+
+        // Scans
+        LongAdder sum = new LongAdder();
+        allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        start = System.nanoTime();
+        for (HistoryLog log : logs)
+            log.forEach(0, Integer.MAX_VALUE, (userId, amount) -> sum.add(amount));
+        long scanNanos = System.nanoTime() - start;
+        allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        Utility.safePrintln(String.format("history log scan:   %6.1f ns/entry   allocated %6.1f bytes/entry   (checksum %d)",
+                (double) scanNanos / total, (double) allocated / total, sum.sum() % 10));
+    }
+
+    /**
+     * Returns the used heap after a garbage collection.
+     *
+     * @return The used heap in bytes.
+     */
+    private static long usedHeap()
+    {
+        System.gc();
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    }
+
+    /**
+     * Compares the throughput of the two transport modes over loopback: protocol version 3 packets with AES/GCM on a
+     * plain TCP connection, and plain packets over TLS 1.3. Each message is echoed back by the server side.
+     *
+     * @param keyStoreFile The TLS key store of the server, also used as trust store by the client side.
+     * @param options      The command line options.
+     */
+    private static void transport(String keyStoreFile, CommandLineOptions options)
+    {
+        int messages = options.getInt("messages", 20000);
+        int size = options.getInt("size", 256);
+        try
+        {
+            String password = options.getString("tls-password", "");
+            SSLContext serverContext = TlsSupport.createServerContext(keyStoreFile, password);
+            SSLContext clientContext = TlsSupport.createClientContext(keyStoreFile, password);
+            SecretKey sessionKey = AESHelper.generateKey(128);
+            byte[] salt = new byte[Protocol.SALT_SIZE];
+
+            // Warm up, then measure
+            for (int round = 0; round < 2; ++round)
+            {
+                int count = round == 0 ? Math.max(1, messages / 10) : messages;
+                long gcmNanos = echo(null, null, new CryptoContext(sessionKey, salt, true), new CryptoContext(sessionKey, salt, false), count, size);
+                long tlsNanos = echo(serverContext, clientContext, new CryptoContext(), new CryptoContext(), count, size);
+                if (round == 1)
+                {
+                    printThroughput("aes-gcm", count, size, gcmNanos);
+                    printThroughput("tls1.3", count, size, tlsNanos);
+                }
+            }
+        }
+        catch (IOException | GeneralSecurityException | InterruptedException e)
+        {
+            e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+        }
+    }
+
+    /**
+     * Sends the given number of messages over a loopback connection and waits for each echo.
+     *
+     * @param serverContext The SSL context of the server side, or null for a plain TCP connection.
+     * @param clientContext The SSL context of the client side, or null for a plain TCP connection.
+     * @param serverCrypto  The crypto context of the server side.
+     * @param clientCrypto  The crypto context of the client side.
+     * @param count         The number of messages.
+     * @param size          The size of the message bodies in bytes.
+     * @return The duration in nanoseconds, without connection setup.
+     */
+    private static long echo(SSLContext serverContext, SSLContext clientContext, CryptoContext serverCrypto, CryptoContext clientCrypto, int count, int size) throws IOException, InterruptedException
+    {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (ServerSocket serverSocket = serverContext != null ? TlsSupport.createServerSocket(serverContext, 0, loopback) : new ServerSocket(0, 0, loopback))
+        {
+            // Echo server
+            Thread serverThread = new Thread(() ->
+            {
+                try (Socket socket = serverSocket.accept())
+                {
+                    socket.setTcpNoDelay(true);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    for (int i = 0; i < count; ++i)
+                    {
+                        Packet packet = Utility.receivePacketV2(in, serverCrypto);
+                        Utility.sendPacketV2(out, packet.getOpcode(), packet.getBody(), serverCrypto);
+                        out.flush();
+                    }
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+                }
+            }, "benchmark-echo");
+            serverThread.start();
+
+            // Client side
+            try (Socket socket = clientContext != null ? TlsSupport.connect(clientContext, loopback.getHostAddress(), serverSocket.getLocalPort(), false) : new Socket(loopback, serverSocket.getLocalPort()))
+            {
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                byte[] body = new byte[size];
+                long start = System.nanoTime();
+                for (int i = 0; i < count; ++i)
+                {
+                    Utility.sendPacketV2(out, Protocol.OPCODE_MESSAGE, body, clientCrypto);
+                    out.flush();
+                    Utility.receivePacketV2(in, clientCrypto);
+                }
+                long nanos = System.nanoTime() - start;
+                serverThread.join();
+                return nanos;
+            }
+        }
+    }
+
+    /**
+     * Prints the result of a throughput measurement.
+     *
+     * @param name     The name of the measured transport.
+     * @param messages The number of echoed messages.
+     * @param size     The size of the message bodies in bytes.
+     * @param nanos    The total duration in nanoseconds.
+     */
+    private static void printThroughput(String name, int messages, int size, long nanos)
+    {
+        double seconds = nanos / 1e9;
+        Utility.safePrintln(String.format("%-10s %8d msgs %12.1f us/round trip %10.0f msgs/s %8.1f MB/s", name, messages, nanos / 1000.0 / messages, messages / seconds, 2.0 * messages * size / seconds / 1e6));
+    }
+
+    /**
+     * Prints the result of a measurement.
+     *
+     * @param name       The name of the measured operation.
+     * @param operations The number of operations.
+     * @param nanos      The total duration in nanoseconds.
+     */
+    private static void printResult(String name, int operations, long nanos)
+    {
+        double microsPerOperation = nanos / 1000.0 / operations;
+        Utility.safePrintln(String.format("%-10s %8d ops %12.1f us/op %10.0f ops/s per core", name, operations, microsPerOperation, 1e6 / microsPerOperation));
+    }
+}
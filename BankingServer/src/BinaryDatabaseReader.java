@@ -0,0 +1,276 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Reads a binary database file through a memory mapping. The binary format avoids parsing: a user is read from a
+ * fixed-width account record at a computable position, and strings are length-prefixed, so loading mostly copies
+ * bytes. The file is laid out as follows (all numbers big endian):
+ * <ul>
+ *     <li>Header (64 bytes): int magic "BNKD", int version, long journal sequence, int user count, int record size,
+ *         long offset of the account records, long offset of the RSA private key, long offset of the X25519
+ *         private key (-1 if there is none).</li>
+ *     <li>Heap: length-prefixed UTF-8 strings (int length, bytes), device lists (int count, strings), histories
+ *         (pairs of int other user ID and int amount) and the PKCS#8 encoded keys (int length, bytes).</li>
+ *     <li>Account records (48 bytes each, in user ID order): int money, int scenario ID, int name hash
+ *         (see hashName()), int number of history entries, long offsets of name, password, device list and history.</li>
+ * </ul>
+ * The version is increased with every incompatible change; readers refuse unknown versions.
+ */
+public class BinaryDatabaseReader implements DatabaseReader
+{
+    /**
+     * The magic number at the start of binary database files ("BNKD").
+     */
+    public static final int MAGIC = 0x424E4B44;
+
+    /**
+     * The current format version.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Size of the header in bytes.
+     */
+    public static final int HEADER_SIZE = 64;
+
+    /**
+     * Size of an account record in bytes.
+     */
+    public static final int RECORD_SIZE = 48;
+
+    /**
+     * Maximum size of a single heap entry (string or key) in bytes.
+     */
+    public static final int MAX_ENTRY_SIZE = 1 << 20;
+
+    /**
+     * Size of a mapped region; files larger than 2 GB are mapped in several regions.
+     */
+    private static final long REGION_SIZE = 1L << 30;
+
+    /**
+     * The mapped regions. Region i starts at i * REGION_SIZE and overlaps the next one by MAX_ENTRY_SIZE + 8 bytes,
+     * so each heap entry can be read from the region it starts in.
+     */
+    private final MappedByteBuffer[] _regions;
+
+    /**
+     * The number of users.
+     */
+    private final int _userCount;
+
+    /**
+     * The sequence of the last contained journal record.
+     */
+    private final long _journalSequence;
+
+    /**
+     * The offset of the account records.
+     */
+    private final long _recordsOffset;
+
+    /**
+     * The offset of the RSA private key.
+     */
+    private final long _privateKeyOffset;
+
+    /**
+     * The offset of the X25519 private key, or -1.
+     */
+    private final long _agreementKeyOffset;
+
+    /**
+     * The ID of the next user returned by next().
+     */
+    private int _nextUserId = 0;
+
+    /**
+     * Maps the given binary database file and checks its header.
+     *
+     * @param file The database file.
+     */
+    public BinaryDatabaseReader(String file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ))
+        {
+            // Map regions; the mapping stays valid after the channel is closed
+            long size = channel.size();
+            if (size < HEADER_SIZE)
+                throw new IOException("Invalid binary database file '" + file + "'.");
+            _regions = new MappedByteBuffer[(int) ((size + REGION_SIZE - 1) / REGION_SIZE)];
+            for (int i = 0; i < _regions.length; ++i)
+            {
+                long start = i * REGION_SIZE;
+                _regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, REGION_SIZE + MAX_ENTRY_SIZE + 8));
+            }
+        }
+
+        // Check header
+        if (getInt(0) != MAGIC)
+            throw new IOException("Invalid binary database file '" + file + "'.");
+        if (getInt(4) != VERSION)
+            throw new IOException("Unsupported version " + getInt(4) + " of binary database file '" + file + "'.");
+        _journalSequence = getLong(8);
+        _userCount = getInt(16);
+        if (getInt(20) != RECORD_SIZE)
+            throw new IOException("Invalid record size in binary database file '" + file + "'.");
+        _recordsOffset = getLong(24);
+        _privateKeyOffset = getLong(32);
+        _agreementKeyOffset = getLong(40);
+    }
+
+    /**
+     * Returns whether the given file is a binary database file.
+     *
+     * @param file The file.
+     * @return Whether the file starts with the magic number of binary database files.
+     */
+    public static boolean isBinary(String file) throws IOException
+    {
+        Path path = Paths.get(file);
+        if (!Files.isRegularFile(path) || Files.size(path) < 4)
+            return false;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            channel.read(magic, 0);
+            return magic.getInt(0) == MAGIC;
+        }
+    }
+
+    /**
+     * Returns the hash of the given user name, as stored in the account records.
+     *
+     * @param name The user name.
+     * @return The hash of the normalized (lower case) name.
+     */
+    public static int hashName(String name)
+    {
+        return name.toLowerCase(Locale.ROOT).hashCode();
+    }
+
+    /**
+     * Returns the number of users.
+     *
+     * @return The number of users.
+     */
+    public int getUserCount()
+    {
+        return _userCount;
+    }
+
+    /**
+     * Reads the user with the given ID.
+     *
+     * @param userId The user ID.
+     * @return The user, with devices and history.
+     */
+    public UserData readUser(int userId)
+    {
+        long record = _recordsOffset + (long) userId * RECORD_SIZE;
+        UserData user = new UserData(getString(getLong(record + 16)), getString(getLong(record + 24)), getInt(record), getInt(record + 4));
+
+        // Devices
+        long devicesOffset = getLong(record + 32);
+        int deviceCount = getInt(devicesOffset);
+        long position = devicesOffset + 4;
+        for (int i = 0; i < deviceCount; ++i)
+        {
+            String device = getString(position);
+            user.addDevice(device);
+            position += 4 + getInt(position);
+        }
+
+        // History
+        int historyCount = getInt(record + 12);
+        long historyOffset = getLong(record + 40);
+        for (int i = 0; i < historyCount; ++i)
+            user.getMoneyHistory().append(getInt(historyOffset + 8L * i), getInt(historyOffset + 8L * i + 4));
+        return user;
+    }
+
+    @Override
+    public UserData next()
+    {
+        return _nextUserId < _userCount ? readUser(_nextUserId++) : null;
+    }
+
+    @Override
+    public long getJournalSequence()
+    {
+        return _journalSequence;
+    }
+
+    @Override
+    public byte[] getPrivateKey()
+    {
+        return getBytes(_privateKeyOffset);
+    }
+
+    @Override
+    public byte[] getAgreementPrivateKey()
+    {
+        return _agreementKeyOffset < 0 ? null : getBytes(_agreementKeyOffset);
+    }
+
+    @Override
+    public void close()
+    {
+        // The mapping is released by the garbage collector
+    }
+
+    /**
+     * Reads an int at the given file offset.
+     *
+     * @param offset The file offset.
+     * @return The value.
+     */
+    private int getInt(long offset)
+    {
+        return _regions[(int) (offset / REGION_SIZE)].getInt((int) (offset % REGION_SIZE));
+    }
+
+    /**
+     * Reads a long at the given file offset.
+     *
+     * @param offset The file offset.
+     * @return The value.
+     */
+    private long getLong(long offset)
+    {
+        return _regions[(int) (offset / REGION_SIZE)].getLong((int) (offset % REGION_SIZE));
+    }
+
+    /**
+     * Reads a length-prefixed byte array at the given file offset.
+     *
+     * @param offset The file offset.
+     * @return The bytes.
+     */
+    private byte[] getBytes(long offset)
+    {
+        int length = getInt(offset);
+        byte[] bytes = new byte[length];
+        _regions[(int) (offset / REGION_SIZE)].get((int) (offset % REGION_SIZE) + 4, bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string at the given file offset.
+     *
+     * @param offset The file offset.
+     * @return The string.
+     */
+    private String getString(long offset)
+    {
+        return new String(getBytes(offset), StandardCharsets.UTF_8);
+    }
+}
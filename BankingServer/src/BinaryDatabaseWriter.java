@@ -0,0 +1,182 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * Writes a binary database file (see BinaryDatabaseReader for the layout) in one pass: strings, device lists and
+ * histories are appended to the heap of the file, while the fixed-width account records are collected in a
+ * temporary file and appended after the heap in finish(), followed by the header.
+ */
+public class BinaryDatabaseWriter implements DatabaseWriter
+{
+    /**
+     * The database file.
+     */
+    private final FileChannel _channel;
+
+    /**
+     * Stream appending to the heap.
+     */
+    private final DataOutputStream _heap;
+
+    /**
+     * The file position of the next heap entry.
+     */
+    private long _heapPosition = BinaryDatabaseReader.HEADER_SIZE;
+
+    /**
+     * The temporary file collecting the account records.
+     */
+    private final Path _recordsFile;
+
+    /**
+     * Stream writing the account records.
+     */
+    private final DataOutputStream _records;
+
+    /**
+     * The number of written users.
+     */
+    private int _userCount = 0;
+
+    /**
+     * The sequence of the last journal record contained in the file.
+     */
+    private final long _journalSequence;
+
+    /**
+     * Buffer for reading histories.
+     */
+    private final ArrayList<Tuple<Integer, Integer>> _history = new ArrayList<>();
+
+    /**
+     * Creates a new binary database file.
+     *
+     * @param file            The database file.
+     * @param journalSequence The sequence of the last journal record contained in the file, or -1.
+     */
+    public BinaryDatabaseWriter(String file, long journalSequence) throws IOException
+    {
+        _journalSequence = journalSequence;
+        _channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        _channel.position(BinaryDatabaseReader.HEADER_SIZE);
+        _heap = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(_channel), 1 << 16));
+        _recordsFile = Paths.get(file + ".records");
+        _records = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(_recordsFile), 1 << 16));
+    }
+
+    @Override
+    public void write(UserData user) throws IOException
+    {
+        // Heap entries
+        long nameOffset = writeString(user.getName());
+        long passwordOffset = writeString(user.getPassword());
+        long devicesOffset = _heapPosition;
+        ArrayList<String> devices = new ArrayList<>(user.getDevices());
+        _heap.writeInt(devices.size());
+        _heapPosition += 4;
+        for (String device : devices)
+            writeString(device);
+        long historyOffset = _heapPosition;
+        _history.clear();
+        user.getMoneyHistory().read(0, Integer.MAX_VALUE, _history);
+        for (Tuple<Integer, Integer> entry : _history)
+        {
+            _heap.writeInt(entry.x);
+            _heap.writeInt(entry.y);
+        }
+        _heapPosition += 8L * _history.size();
+
+        // Account record
+        _records.writeInt(user.getMoney());
+        _records.writeInt(user.getScenarioId());
+        _records.writeInt(BinaryDatabaseReader.hashName(user.getName()));
+        _records.writeInt(_history.size());
+        _records.writeLong(nameOffset);
+        _records.writeLong(passwordOffset);
+        _records.writeLong(devicesOffset);
+        _records.writeLong(historyOffset);
+        ++_userCount;
+    }
+
+    @Override
+    public void finish(byte[] privateKey, byte[] agreementPrivateKey) throws IOException
+    {
+        // Keys
+        long privateKeyOffset = writeBytes(privateKey);
+        long agreementKeyOffset = agreementPrivateKey == null ? -1 : writeBytes(agreementPrivateKey);
+        _heap.flush();
+
+        // Append account records
+        long recordsOffset = _heapPosition;
+        _records.close();
+        try (FileChannel recordsChannel = FileChannel.open(_recordsFile, StandardOpenOption.READ))
+        {
+            long size = recordsChannel.size();
+            long copied = 0;
+            while (copied < size)
+                copied += _channel.transferFrom(recordsChannel.position(copied), recordsOffset + copied, size - copied);
+        }
+        Files.delete(_recordsFile);
+
+        // Header
+        ByteBuffer header = ByteBuffer.allocate(BinaryDatabaseReader.HEADER_SIZE);
+        header.putInt(BinaryDatabaseReader.MAGIC);
+        header.putInt(BinaryDatabaseReader.VERSION);
+        header.putLong(_journalSequence);
+        header.putInt(_userCount);
+        header.putInt(BinaryDatabaseReader.RECORD_SIZE);
+        header.putLong(recordsOffset);
+        header.putLong(privateKeyOffset);
+        header.putLong(agreementKeyOffset);
+        header.clear();
+        while (header.hasRemaining())
+            _channel.write(header, header.position());
+        _channel.force(true);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        _records.close();
+        Files.deleteIfExists(_recordsFile);
+        _channel.close();
+    }
+
+    /**
+     * Appends a length-prefixed UTF-8 string to the heap.
+     *
+     * @param value The string.
+     * @return The file offset of the string.
+     */
+    private long writeString(String value) throws IOException
+    {
+        return writeBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Appends a length-prefixed byte array to the heap.
+     *
+     * @param value The bytes; at most BinaryDatabaseReader.MAX_ENTRY_SIZE.
+     * @return The file offset of the entry.
+     */
+    private long writeBytes(byte[] value) throws IOException
+    {
+        if (value.length > BinaryDatabaseReader.MAX_ENTRY_SIZE)
+            throw new IOException("Entry of " + value.length + " bytes is too large for the binary format.");
+        long offset = _heapPosition;
+        _heap.writeInt(value.length);
+        _heap.write(value);
+        _heapPosition += 4 + value.length;
+        return offset;
+    }
+}
@@ -0,0 +1,889 @@
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Implements the server side of the banking protocol for one client connection.
+ * The session is driven packet by packet, so it can be run by a blocking client thread as well
+ * as by a non-blocking event loop. This class is not thread safe; the driver must not pass
+ * packets concurrently.
+ */
+public class ClientSession
+{
+    /**
+     * Delay before a device authentication is processed, in milliseconds.
+     */
+    private static final long AUTHENTICATION_DELAY = 2000;
+
+    /**
+     * Delay before a device registration is processed, in milliseconds.
+     */
+    private static final long REGISTRATION_DELAY = 3000;
+
+    /**
+     * Maximum number of transaction history entries sent in one page.
+     */
+    private static final int MAX_HISTORY_PAGE_SIZE = 100;
+
+    /**
+     * Source of the GCM key derivation salts, shared by all sessions.
+     */
+    private static final SecureRandom SALT_RANDOM = new SecureRandom();
+
+    /**
+     * Number of RSA handshakes.
+     */
+    private static final LongAdder _rsaHandshakes = Metrics.counter("handshake.rsa.count");
+
+    /**
+     * Total duration of RSA handshakes, in microseconds.
+     */
+    private static final LongAdder _rsaHandshakeMicros = Metrics.counter("handshake.rsa.micros");
+
+    /**
+     * Number of X25519 handshakes.
+     */
+    private static final LongAdder _x25519Handshakes = Metrics.counter("handshake.x25519.count");
+
+    /**
+     * Total duration of X25519 handshakes, in microseconds.
+     */
+    private static final LongAdder _x25519HandshakeMicros = Metrics.counter("handshake.x25519.micros");
+
+    /**
+     * Number of sessions resumed with a ticket, which skipped the key exchange.
+     */
+    private static final LongAdder _resumeHits = Metrics.counter("resume.hits");
+
+    /**
+     * Number of rejected resumption tickets (invalid, expired or retired key).
+     */
+    private static final LongAdder _resumeMisses = Metrics.counter("resume.misses");
+
+    /**
+     * Total duration of successful resumptions, in microseconds.
+     */
+    private static final LongAdder _resumeMicros = Metrics.counter("resume.micros");
+
+    /**
+     * The protocol states of a session.
+     */
+    private enum State
+    {
+        /**
+         * Waiting for the RSA encrypted session key.
+         */
+        LOGIN_KEY,
+
+        /**
+         * Waiting for the login credentials.
+         */
+        LOGIN_CREDENTIALS,
+
+        /**
+         * Waiting for the next command.
+         */
+        COMMAND,
+
+        /**
+         * Waiting for the device code of an authentication.
+         */
+        AUTHENTICATION,
+
+        /**
+         * Waiting for the first part of the registration ID.
+         */
+        REGISTRATION_ID,
+
+        /**
+         * Waiting for the confirmation code of a registration.
+         */
+        REGISTRATION_CONFIRMATION,
+
+        /**
+         * Waiting for the transaction packet.
+         */
+        TRANSACTION,
+
+        /**
+         * A delayed step is pending, no packets are expected.
+         */
+        DELAYED
+    }
+
+    /**
+     * The driver running this session.
+     */
+    private final SessionDriver _driver;
+
+    /**
+     * The database containing user data.
+     */
+    private final Database _database;
+
+    /**
+     * Decides about delays of login attempts.
+     */
+    private final LoginPenaltyPolicy _loginPenaltyPolicy;
+
+    /**
+     * Issues and checks session resumption tickets.
+     */
+    private final TicketKeyRing _ticketKeyRing;
+
+    /**
+     * The current protocol state.
+     */
+    private State _state = State.DELAYED;
+
+    /**
+     * The ID of the user that logged in.
+     */
+    private int _userId = -1;
+
+    /**
+     * Determines whether the client device has been authenticated.
+     */
+    private boolean _deviceAuthenticated = false;
+
+    /**
+     * Encrypts the communication with the session key, reciced in login
+     */
+    private CryptoContext _crypto;
+
+    /**
+     * The protocol version negotiated in the login.
+     */
+    private int _protocolVersion = Protocol.VERSION_1;
+
+    /**
+     * The confirmation code of a pending device registration.
+     */
+    private String _confirmationCode;
+
+    /**
+     * Creates a new session.
+     *
+     * @param driver  The driver running this session.
+     * @param context The shared server state.
+     */
+    public ClientSession(SessionDriver driver, ServerContext context)
+    {
+        // Save parameters
+        _driver = driver;
+        _database = context.getDatabase();
+        _loginPenaltyPolicy = context.getLoginPenaltyPolicy();
+        _ticketKeyRing = context.getTicketKeyRing();
+    }
+
+    /**
+     * Starts the session by waiting for the first login attempt.
+     */
+    public void start() throws IOException
+    {
+        beginLogin();
+    }
+
+    /**
+     * Returns the ID of the user that logged in.
+     *
+     * @return The ID of the user that logged in, or -1 if no login happened yet.
+     */
+    public int getUserId()
+    {
+        return _userId;
+    }
+
+    /**
+     * Processes the given packet payload received from the client.
+     *
+     * @param payload The raw packet payload.
+     */
+    public void handlePacket(byte[] payload) throws IOException
+    {
+        switch (_state)
+        {
+            case LOGIN_KEY -> handleLoginKey(payload);
+            case LOGIN_CREDENTIALS -> handleLoginCredentials(receive(payload));
+            case COMMAND -> handleCommand(receive(payload).trim());
+            case AUTHENTICATION -> handleAuthentication(receive(payload));
+            case REGISTRATION_ID -> handleRegistrationId(receive(payload).trim());
+            case REGISTRATION_CONFIRMATION -> handleRegistrationConfirmation(receive(payload).trim());
+            case TRANSACTION -> handleTransaction(receive(payload));
+            default -> throw new IOException("Unexpected packet while a delayed step is pending.");
+        }
+    }
+
+    /**
+     * Decrypts the given packet payload with the session key.
+     *
+     * @param payload The raw packet payload.
+     * @return The decrypted packet.
+     */
+    private String receive(byte[] payload) throws IOException
+    {
+        String message = Utility.decodeMessage(payload, _crypto, _protocolVersion);
+        if (message == null)
+            throw new IOException("Could not decrypt packet.");
+        return message;
+    }
+
+    /**
+     * Sends the given message encrypted with the session key.
+     *
+     * @param message The message to be sent.
+     */
+    private void send(String message) throws IOException
+    {
+        Utility.sendMessage(_driver.getOutputStream(), message, _crypto, _protocolVersion);
+    }
+
+    /**
+     * Waits for the next login attempt. Clients whose address recently failed to log in are delayed.
+     */
+    private void beginLogin() throws IOException
+    {
+        long delay = _loginPenaltyPolicy.getAddressDelay(_driver.getRemoteAddress());
+        if (delay > 0)
+        {
+            _state = State.DELAYED;
+            _driver.delay(delay, () -> _state = State.LOGIN_KEY);
+        }
+        else
+            _state = State.LOGIN_KEY;
+    }
+
+    /**
+     * Handles the first login packet: either the RSA encrypted packet containing the session key, an X25519 handshake,
+     * or a resumption message.
+     *
+     * @param payload The raw packet payload.
+     */
+    private void handleLoginKey(byte[] payload) throws IOException
+    {
+        // Base64 never contains ':', so the prefixes are unambiguous
+        if (hasPrefix(payload, Protocol.HANDSHAKE_PREFIX))
+        {
+            handleHandshake(new String(payload, StandardCharsets.US_ASCII));
+            return;
+        }
+        if (hasPrefix(payload, Protocol.RESUME_PREFIX))
+        {
+            handleResume(new String(payload, StandardCharsets.US_ASCII));
+            return;
+        }
+        if (hasPrefix(payload, Protocol.TLS_PREFIX))
+        {
+            handleTls(new String(payload, StandardCharsets.US_ASCII));
+            return;
+        }
+
+        // Decrypt on the handshake executor, so login floods do not slow down logged-in sessions
+        PrivateKey privateKey = _database.get_privateKey();
+        _state = State.DELAYED;
+        _driver.offload(() ->
+        {
+            long start = System.nanoTime();
+            String keyMessage = Utility.decodePacketRSA(payload, privateKey);
+            _rsaHandshakes.increment();
+            _rsaHandshakeMicros.add((System.nanoTime() - start) / 1000);
+            return keyMessage;
+        }, this::handleSessionKey);
+    }
+
+    /**
+     * Handles the decrypted RSA login packet "OUR_KEY: &lt;key&gt; &lt;version&gt;" containing the session key.
+     *
+     * @param symmetricKeyTransaction The decrypted packet, or null if it could not be decrypted.
+     */
+    private void handleSessionKey(String symmetricKeyTransaction) throws IOException
+    {
+        //get SecretKey
+        if (symmetricKeyTransaction != null && symmetricKeyTransaction.startsWith("OUR_KEY:")){
+            String[] keyParts = symmetricKeyTransaction.split(" ");
+            String key = keyParts[1];
+
+            // Clients supporting newer protocol versions append their version, and learn the chosen one
+            negotiateVersion(keyParts);
+            if (keyParts.length > 2)
+                sendVersion();
+            try
+            {
+                SecretKey symmetricKey = AESHelper.stringToSecreteKey(key);
+                if (_protocolVersion >= Protocol.VERSION_3)
+                {
+                    // Send a fresh salt, so a replayed session key never results in a reused GCM key
+                    byte[] saltPacket = new byte[1 + Protocol.SALT_SIZE];
+                    saltPacket[0] = Protocol.OPCODE_SESSION_SALT;
+                    byte[] salt = new byte[Protocol.SALT_SIZE];
+                    SALT_RANDOM.nextBytes(salt);
+                    System.arraycopy(salt, 0, saltPacket, 1, salt.length);
+                    Utility.sendPacket(_driver.getOutputStream(), saltPacket);
+                    _crypto = new CryptoContext(symmetricKey, salt, true);
+                }
+                else
+                    _crypto = new CryptoContext(symmetricKey);
+            }
+            catch (InvalidKeySpecException e)
+            {
+                e.printStackTrace();
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                e.printStackTrace();
+            }
+            _state = State.LOGIN_CREDENTIALS;
+        }else {
+            send("No symmetric Key provided");
+            beginLogin();
+        }
+    }
+
+    /**
+     * Handles an X25519 handshake message "X25519: &lt;client key&gt; &lt;version&gt;" and answers with the ephemeral key
+     * of the server (see KeyAgreementHelper).
+     *
+     * @param handshake The handshake message.
+     */
+    private void handleHandshake(String handshake) throws IOException
+    {
+        String[] handshakeParts = handshake.split(" ");
+        negotiateVersion(handshakeParts);
+        PrivateKey staticKey = _database.get_agreementPrivateKey();
+        if (staticKey == null || handshakeParts.length < 2)
+        {
+            // Reject, the client may retry with RSA
+            Utility.safeDebugPrintln("X25519 handshake is not supported or invalid.");
+            Utility.sendPacket(_driver.getOutputStream(), new byte[]{Protocol.OPCODE_HANDSHAKE});
+            beginLogin();
+            return;
+        }
+
+        long start = System.nanoTime();
+        byte[] serverKey;
+        SecretKey sessionKey;
+        try
+        {
+            // Agree on the session key with the static and a fresh ephemeral key
+            byte[] clientKey = Base64.getDecoder().decode(handshakeParts[1]);
+            PublicKey clientPublicKey = KeyAgreementHelper.decodePublicKey(clientKey);
+            KeyPair ephemeralKeyPair = KeyAgreementHelper.generateKeyPair();
+            serverKey = ephemeralKeyPair.getPublic().getEncoded();
+            sessionKey = KeyAgreementHelper.deriveSessionKey(
+                    KeyAgreementHelper.agree(staticKey, clientPublicKey),
+                    KeyAgreementHelper.agree(ephemeralKeyPair.getPrivate(), clientPublicKey),
+                    clientKey, serverKey);
+        }
+        catch (GeneralSecurityException | IllegalArgumentException e)
+        {
+            Utility.safeDebugPrintln("Invalid X25519 handshake: " + e.getMessage());
+            Utility.sendPacket(_driver.getOutputStream(), new byte[]{Protocol.OPCODE_HANDSHAKE});
+            beginLogin();
+            return;
+        }
+        _x25519Handshakes.increment();
+        _x25519HandshakeMicros.add((System.nanoTime() - start) / 1000);
+
+        // Send chosen version and ephemeral key, which is also the salt of the GCM key derivation
+        byte[] handshakePacket = new byte[2 + serverKey.length];
+        handshakePacket[0] = Protocol.OPCODE_HANDSHAKE;
+        handshakePacket[1] = (byte) _protocolVersion;
+        System.arraycopy(serverKey, 0, handshakePacket, 2, serverKey.length);
+        Utility.sendPacket(_driver.getOutputStream(), handshakePacket);
+        if (_protocolVersion >= Protocol.VERSION_3)
+            _crypto = new CryptoContext(sessionKey, serverKey, true);
+        else
+            _crypto = new CryptoContext(sessionKey);
+        _state = State.LOGIN_CREDENTIALS;
+    }
+
+    /**
+     * Handles the first message "TLS: &lt;version&gt;" of a client connected via TLS. The key exchange is skipped,
+     * and packets are sent without the AES layer.
+     *
+     * @param tls The first message.
+     */
+    private void handleTls(String tls) throws IOException
+    {
+        // Never send plain packets over an unprotected connection
+        if (!_driver.isSecure())
+            throw new IOException("TLS login on a connection without TLS.");
+
+        String[] tlsParts = tls.split(" ");
+        _protocolVersion = Protocol.VERSION_2;
+        if (tlsParts.length > 1)
+            negotiateVersion(tlsParts[1]);
+
+        // The AES layer of protocol version 1 can not be skipped
+        _protocolVersion = Math.max(Protocol.VERSION_2, _protocolVersion);
+        sendVersion();
+        _crypto = new CryptoContext();
+        _state = State.LOGIN_CREDENTIALS;
+    }
+
+    /**
+     * Handles a resumption message "RESUME: &lt;ticket&gt; &lt;version&gt; &lt;nonce&gt;". If the ticket is valid, the session
+     * continues logged in, without key exchange and password check.
+     *
+     * @param resume The resumption message.
+     */
+    private void handleResume(String resume) throws IOException
+    {
+        String[] resumeParts = resume.split(" ");
+        negotiateVersion(resumeParts);
+
+        // Check ticket
+        long start = System.nanoTime();
+        Tuple<Integer, byte[]> ticketContent = null;
+        byte[] clientNonce = null;
+        if (resumeParts.length > 3)
+        {
+            try
+            {
+                ticketContent = _ticketKeyRing.open(Base64.getDecoder().decode(resumeParts[1]));
+                clientNonce = Base64.getDecoder().decode(resumeParts[3]);
+            }
+            catch (IllegalArgumentException e)
+            {
+                Utility.safeDebugPrintln("Invalid resumption message: " + e.getMessage());
+            }
+        }
+        if (ticketContent == null || clientNonce == null || _database.getUserName(ticketContent.x) == null)
+        {
+            // Reject, the client falls back to a full login
+            _resumeMisses.increment();
+            Utility.sendPacket(_driver.getOutputStream(), new byte[]{Protocol.OPCODE_RESUME});
+            beginLogin();
+            return;
+        }
+
+        // Derive session key
+        byte[] serverNonce = new byte[Protocol.RESUME_NONCE_SIZE];
+        SALT_RANDOM.nextBytes(serverNonce);
+        SecretKey sessionKey;
+        try
+        {
+            sessionKey = TicketKeyRing.deriveSessionKey(ticketContent.y, clientNonce, serverNonce);
+        }
+        catch (GeneralSecurityException e)
+        {
+            e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+            Utility.sendPacket(_driver.getOutputStream(), new byte[]{Protocol.OPCODE_RESUME});
+            beginLogin();
+            return;
+        }
+        _resumeHits.increment();
+        _resumeMicros.add((System.nanoTime() - start) / 1000);
+
+        // Send chosen version and server nonce, which is also the salt of the GCM key derivation
+        byte[] resumePacket = new byte[2 + serverNonce.length];
+        resumePacket[0] = Protocol.OPCODE_RESUME;
+        resumePacket[1] = (byte) _protocolVersion;
+        System.arraycopy(serverNonce, 0, resumePacket, 2, serverNonce.length);
+        Utility.sendPacket(_driver.getOutputStream(), resumePacket);
+        if (_protocolVersion >= Protocol.VERSION_3)
+            _crypto = new CryptoContext(sessionKey, serverNonce, true);
+        else
+            _crypto = new CryptoContext(sessionKey);
+
+        _userId = ticketContent.x;
+        Utility.safeDebugPrintln("User " + _userId + " resumed session.");
+        _state = State.COMMAND;
+    }
+
+    /**
+     * Sends the current user a resumption secret and a new ticket (protocol version 2 and later).
+     */
+    private void sendTicket() throws IOException
+    {
+        // Tickets are sent as binary packets
+        if (_protocolVersion < Protocol.VERSION_2)
+        {
+            send("Invalid command:ticket");
+            return;
+        }
+
+        byte[] secret = new byte[TicketKeyRing.SECRET_SIZE];
+        SALT_RANDOM.nextBytes(secret);
+        byte[] ticket = _ticketKeyRing.issue(_userId, secret);
+        if (ticket == null)
+            throw new IOException("Could not issue ticket.");
+
+        byte[] body = new byte[secret.length + ticket.length];
+        System.arraycopy(secret, 0, body, 0, secret.length);
+        System.arraycopy(ticket, 0, body, secret.length, ticket.length);
+        Utility.sendPacketV2(_driver.getOutputStream(), Protocol.OPCODE_TICKET, body, _crypto);
+    }
+
+    /**
+     * Returns whether the given raw packet payload starts with the given ASCII prefix.
+     *
+     * @param payload The raw packet payload.
+     * @param prefix  The prefix.
+     * @return Whether the payload starts with the prefix.
+     */
+    private static boolean hasPrefix(byte[] payload, String prefix)
+    {
+        return payload.length > prefix.length() && new String(payload, 0, prefix.length(), StandardCharsets.US_ASCII).equals(prefix);
+    }
+
+    /**
+     * Sets the protocol version from the version offered in the third part of the first login message.
+     *
+     * @param messageParts The parts of the first login message.
+     */
+    private void negotiateVersion(String[] messageParts)
+    {
+        _protocolVersion = Protocol.VERSION_1;
+        if (messageParts.length > 2)
+            negotiateVersion(messageParts[2]);
+    }
+
+    /**
+     * Sets the protocol version from the given version offered by the client. Keeps the current version if the offer is invalid.
+     *
+     * @param offeredVersion The offered version.
+     */
+    private void negotiateVersion(String offeredVersion)
+    {
+        try
+        {
+            _protocolVersion = Protocol.negotiate(Integer.parseInt(offeredVersion));
+        }
+        catch (NumberFormatException e)
+        {
+            Utility.safeDebugPrintln("Invalid protocol version '" + offeredVersion + "', using version " + _protocolVersion + ".");
+        }
+    }
+
+    /**
+     * Tells the client the negotiated protocol version, in an unencrypted packet.
+     */
+    private void sendVersion() throws IOException
+    {
+        Utility.sendPacket(_driver.getOutputStream(), new byte[]{Protocol.OPCODE_VERSION, (byte) _protocolVersion});
+    }
+
+    /**
+     * Handles the login packet and checks the credentials.
+     *
+     * @param loginRequest The decrypted login packet.
+     */
+    private void handleLoginCredentials(String loginRequest) throws IOException
+    {
+        // Split packet
+        String[] loginRequestParts = loginRequest.split(",");
+        if (loginRequestParts.length < 2)
+        {
+            send("Invalid login packet format.");
+            beginLogin();
+            return;
+        }
+        String name = loginRequestParts[0].trim();
+        String password = loginRequestParts[1].trim();
+
+        // Delay the check if this account recently had failed logins
+        long delay = _loginPenaltyPolicy.getAccountDelay(name);
+        if (delay > 0)
+        {
+            _state = State.DELAYED;
+            _driver.delay(delay, () -> checkLogin(name, password));
+        }
+        else
+            checkLogin(name, password);
+    }
+
+    /**
+     * Checks the given credentials and completes the login.
+     *
+     * @param name     The name of the user.
+     * @param password The password of the user.
+     */
+    private void checkLogin(String name, String password) throws IOException
+    {
+        _userId = _database.verifyLogin(name, password);
+        if (_userId == -1)
+        {
+            _loginPenaltyPolicy.recordFailure(name, _driver.getRemoteAddress());
+            send("Login invalid.");
+            beginLogin();
+            return;
+        }
+        _loginPenaltyPolicy.recordSuccess(name);
+        send("Login OK.");
+        Utility.safeDebugPrintln("User " + _userId + " logged in.");
+        _state = State.COMMAND;
+    }
+
+    /**
+     * Dispatches the given command.
+     *
+     * @param command The received command.
+     */
+    private void handleCommand(String command) throws IOException
+    {
+        Utility.safeDebugPrintln("User " + _userId + " sent command '" + command + "'.");
+        if (command.startsWith("history "))
+        {
+            sendHistoryPage(command);
+            return;
+        }
+        switch (command)
+        {
+            case "balance":
+            {
+                sendBalance();
+                break;
+            }
+
+            case "ticket":
+            {
+                sendTicket();
+                break;
+            }
+
+            case "authentication":
+            {
+                _state = State.DELAYED;
+                _driver.delay(AUTHENTICATION_DELAY, () -> _state = State.AUTHENTICATION);
+                break;
+            }
+
+            case "registration":
+            {
+                _state = State.DELAYED;
+                _driver.delay(REGISTRATION_DELAY, () -> _state = State.REGISTRATION_ID);
+                break;
+            }
+
+            case "transaction":
+            {
+                if (!_deviceAuthenticated)
+                    Utility.safeDebugPrintln("User " + _userId + " requested transaction without device authentication.");
+                else
+                    _state = State.TRANSACTION;
+                break;
+            }
+
+            default:
+            {
+                // This command does not exist, notify client
+                Utility.safeDebugPrintln("Command is invalid.");
+                send("Invalid command:" + command);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Sends the balance to the current user.
+     */
+    private void sendBalance() throws IOException
+    {
+        // Send money and transaction history in a single packet, if the client supports it
+        Map<String, Integer> balance = _database.getUserMoneyHistory(_userId);
+        if (_protocolVersion >= Protocol.VERSION_2)
+        {
+            BalanceFrame frame = new BalanceFrame(_database.getMoney(_userId), balance);
+            Utility.sendPacketV2(_driver.getOutputStream(), Protocol.OPCODE_BALANCE, frame.toBytes(), _crypto);
+            return;
+        }
+
+        // First send current money
+        send(Integer.toString(_database.getMoney(_userId)));
+
+        // Then send the transaction history
+        send(Integer.toString(balance.size()));
+        for (Map.Entry<String, Integer> entry : balance.entrySet())
+            send(entry.getKey() + "," + entry.getValue());
+    }
+
+    /**
+     * Sends one page of the transaction history to the current user, as requested by a
+     * "history &lt;cursor&gt; &lt;page size&gt;" command.
+     *
+     * @param command The received command.
+     */
+    private void sendHistoryPage(String command) throws IOException
+    {
+        // Parse cursor and page size
+        String[] commandParts = command.split(" ");
+        int cursor;
+        int pageSize;
+        try
+        {
+            cursor = Integer.parseInt(commandParts[1]);
+            pageSize = Math.max(1, Math.min(Integer.parseInt(commandParts[2]), MAX_HISTORY_PAGE_SIZE));
+        }
+        catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+        {
+            Utility.safeDebugPrintln("History command is invalid.");
+            send("Invalid command:" + command);
+            return;
+        }
+
+        // Retrieve page
+        List<Tuple<String, Integer>> page = new ArrayList<>(pageSize);
+        int nextCursor = _database.getUserMoneyHistoryPage(_userId, cursor, pageSize, page);
+        int money = _database.getMoney(_userId);
+        if (_protocolVersion >= Protocol.VERSION_2)
+        {
+            BalanceFrame frame = new BalanceFrame(money, page, nextCursor);
+            Utility.sendPacketV2(_driver.getOutputStream(), Protocol.OPCODE_BALANCE, frame.toBytes(), _crypto);
+            return;
+        }
+
+        // Older clients get one message per value
+        send(Integer.toString(money));
+        send(Integer.toString(nextCursor));
+        send(Integer.toString(page.size()));
+        for (Tuple<String, Integer> entry : page)
+            send(entry.x + "," + entry.y);
+    }
+
+    /**
+     * Checks the device code of an authentication.
+     *
+     * @param deviceCode The received device code.
+     */
+    private void handleAuthentication(String deviceCode) throws IOException
+    {
+        // Check device code
+        if (_database.userHasDevice(_userId, deviceCode.trim()))
+        {
+            // Send success message
+            send("Authentication successful.");
+            _deviceAuthenticated = true;
+            Utility.safeDebugPrintln("User " + _userId + " successfully authenticated.");
+        }
+        _state = State.COMMAND;
+    }
+
+    /**
+     * Handles the first part of the registration ID of a client device and sends the confirmation code.
+     *
+     * @param registrationIdPart1 The first part of the registration ID.
+     */
+    private void handleRegistrationId(String registrationIdPart1) throws IOException
+    {
+        _state = State.COMMAND;
+        if (registrationIdPart1.length() != 4)
+            return;
+
+        // Generate and send registration ID part 2 packet
+        String registrationIdPart2 = Utility.getRandomString(4);
+        send(registrationIdPart2);
+        String registrationId = registrationIdPart1 + registrationIdPart2;
+        _driver.await(_database.addUserDeviceAsync(_userId, registrationId), this::sendConfirmationCode);
+    }
+
+    /**
+     * Sends the confirmation code of a device registration, once the device has been added.
+     *
+     * @param deviceAdded Whether the device has been added and journaled; if not, the registration fails.
+     */
+    private void sendConfirmationCode(boolean deviceAdded) throws IOException
+    {
+        // Without a code, the confirmation fails
+        _state = State.REGISTRATION_CONFIRMATION;
+        if (!deviceAdded)
+        {
+            _confirmationCode = null;
+            return;
+        }
+
+        // Send confirmation code via e-mail or display it in server terminal
+        StringBuilder builder = new StringBuilder();
+        SecureRandom r = new SecureRandom();
+        for(int i = 0; i < 4; i++){
+            if(r.nextInt(100)<40)
+            {
+                builder.append((char) ((int) (r.nextInt(26) + 'a')));
+            }else if(r.nextInt(100)<80){
+                builder.append((char) ((int) (r.nextInt(26) + 'A')));
+            }
+            else{
+                builder.append((char) ((int) (r.nextInt(10) + '0')));
+            }
+        }
+        _confirmationCode = builder.toString();
+        LabEnvironment.sendConfirmationCode(_database.getUserName(_userId), _confirmationCode);
+    }
+
+    /**
+     * Checks the confirmation code of a device registration.
+     *
+     * @param clientConfirmationCode The confirmation code entered by the user.
+     */
+    private void handleRegistrationConfirmation(String clientConfirmationCode) throws IOException
+    {
+        _state = State.COMMAND;
+        if (clientConfirmationCode.equals(_confirmationCode))
+        {
+            // Update database, send success message
+            send("Registration successful.");
+            _deviceAuthenticated = true;
+            Utility.safeDebugPrintln("User " + _userId + " successfully registered a new device and authenticated.");
+        }
+        else
+            send("Registration failed.");
+        _confirmationCode = null;
+    }
+
+    /**
+     * Handles a transaction issued by the current user.
+     *
+     * @param transactionRequest The decrypted transaction packet.
+     */
+    private void handleTransaction(String transactionRequest) throws IOException
+    {
+        _state = State.COMMAND;
+
+        // Split packet
+        String[] transactionRequestParts = transactionRequest.split(",");
+        if (transactionRequestParts.length != 2)
+        {
+            send("Invalid transaction packet format.");
+            return;
+        }
+        String recipient = transactionRequestParts[0].trim();
+
+        // Parse and check money amount parameter
+        int amount;
+        try
+        {
+            // Parse
+            amount = Integer.parseInt(transactionRequestParts[1].trim());
+
+            // Check range
+            if (amount < 0 || amount > 10)
+                amount = 10;
+        }
+        catch (NumberFormatException e)
+        {
+            send("Invalid number format.");
+            return;
+        }
+
+        // Send money, and answer once it is journaled
+        _driver.await(_database.sendMoneyAsync(_userId, recipient, amount), success ->
+        {
+            if (success)
+                send("Transaction successful.");
+            else
+                send("Transaction failed.");
+        });
+    }
+}
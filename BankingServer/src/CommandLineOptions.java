@@ -0,0 +1,113 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses optional command line parameters of the form <code>--name=value</code>.
+ */
+public class CommandLineOptions
+{
+    /**
+     * The parsed options, mapped by name (without leading dashes).
+     */
+    private final Map<String, String> _options = new HashMap<>();
+
+    /**
+     * Parses the given command line arguments, starting at the given index.
+     *
+     * @param args       The command line arguments.
+     * @param firstIndex The index of the first optional argument.
+     */
+    public CommandLineOptions(String[] args, int firstIndex)
+    {
+        for (int i = firstIndex; i < args.length; ++i)
+        {
+            // Check format
+            String arg = args[i];
+            if (!arg.startsWith("--"))
+            {
+                Utility.safePrintln("Ignoring malformed option '" + arg + "'.");
+                continue;
+            }
+
+            // Options without value are treated as boolean flags
+            int separatorIndex = arg.indexOf('=');
+            if (separatorIndex < 0)
+                _options.put(arg.substring(2).toLowerCase(), "true");
+            else
+                _options.put(arg.substring(2, separatorIndex).toLowerCase(), arg.substring(separatorIndex + 1));
+        }
+    }
+
+    /**
+     * Checks whether the given option was specified.
+     *
+     * @param name The option name.
+     * @return Whether the given option was specified.
+     */
+    public boolean has(String name)
+    {
+        return _options.containsKey(name);
+    }
+
+    /**
+     * Returns the value of the given option.
+     *
+     * @param name         The option name.
+     * @param defaultValue The value returned if the option was not specified.
+     * @return The value of the given option.
+     */
+    public String getString(String name, String defaultValue)
+    {
+        return _options.getOrDefault(name, defaultValue);
+    }
+
+    /**
+     * Returns the value of the given integer option.
+     *
+     * @param name         The option name.
+     * @param defaultValue The value returned if the option was not specified or is invalid.
+     * @return The value of the given option.
+     */
+    public int getInt(String name, int defaultValue)
+    {
+        return (int) getLong(name, defaultValue);
+    }
+
+    /**
+     * Returns the value of the given integer option.
+     *
+     * @param name         The option name.
+     * @param defaultValue The value returned if the option was not specified or is invalid.
+     * @return The value of the given option.
+     */
+    public long getLong(String name, long defaultValue)
+    {
+        String value = _options.get(name);
+        if (value == null)
+            return defaultValue;
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            Utility.safePrintln("Invalid number '" + value + "' for option --" + name + ", using default " + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value of the given boolean option.
+     *
+     * @param name         The option name.
+     * @param defaultValue The value returned if the option was not specified.
+     * @return The value of the given option.
+     */
+    public boolean getBoolean(String name, boolean defaultValue)
+    {
+        String value = _options.get(name);
+        if (value == null)
+            return defaultValue;
+        return Boolean.parseBoolean(value.trim());
+    }
+}
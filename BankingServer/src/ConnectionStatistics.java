@@ -0,0 +1,144 @@
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the socket read and write calls (i.e. system calls) and the transferred bytes of one connection.
+ * The totals over all connections are additionally exported via Metrics.
+ * An instance must only be used by the thread serving the connection.
+ */
+public class ConnectionStatistics
+{
+    /**
+     * Total number of socket read calls.
+     */
+    private static final LongAdder _totalReadCalls = Metrics.counter("io.read.calls");
+
+    /**
+     * Total number of socket write calls.
+     */
+    private static final LongAdder _totalWriteCalls = Metrics.counter("io.write.calls");
+
+    /**
+     * Total number of bytes read.
+     */
+    private static final LongAdder _totalBytesRead = Metrics.counter("io.read.bytes");
+
+    /**
+     * Total number of bytes written.
+     */
+    private static final LongAdder _totalBytesWritten = Metrics.counter("io.write.bytes");
+
+    /**
+     * Number of socket read calls of this connection.
+     */
+    private long _readCalls = 0;
+
+    /**
+     * Number of socket write calls of this connection.
+     */
+    private long _writeCalls = 0;
+
+    /**
+     * Number of bytes read from this connection.
+     */
+    private long _bytesRead = 0;
+
+    /**
+     * Number of bytes written to this connection.
+     */
+    private long _bytesWritten = 0;
+
+    /**
+     * Records a socket read call.
+     *
+     * @param bytes The number of bytes read (negative at the end of the stream).
+     */
+    public void recordRead(int bytes)
+    {
+        ++_readCalls;
+        _totalReadCalls.increment();
+        if (bytes > 0)
+        {
+            _bytesRead += bytes;
+            _totalBytesRead.add(bytes);
+        }
+    }
+
+    /**
+     * Records a socket write call.
+     *
+     * @param bytes The number of bytes written.
+     */
+    public void recordWrite(int bytes)
+    {
+        ++_writeCalls;
+        _totalWriteCalls.increment();
+        _bytesWritten += bytes;
+        _totalBytesWritten.add(bytes);
+    }
+
+    /**
+     * Returns a stream that counts the read calls on the given socket stream.
+     *
+     * @param socketInputStream The socket input stream.
+     * @return A counting stream.
+     */
+    public InputStream wrap(InputStream socketInputStream)
+    {
+        return new FilterInputStream(socketInputStream)
+        {
+            @Override
+            public int read() throws IOException
+            {
+                int value = super.read();
+                recordRead(value < 0 ? -1 : 1);
+                return value;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException
+            {
+                int count = super.read(buffer, offset, length);
+                recordRead(count);
+                return count;
+            }
+        };
+    }
+
+    /**
+     * Returns a stream that counts the write calls on the given socket stream.
+     *
+     * @param socketOutputStream The socket output stream.
+     * @return A counting stream.
+     */
+    public OutputStream wrap(OutputStream socketOutputStream)
+    {
+        return new FilterOutputStream(socketOutputStream)
+        {
+            @Override
+            public void write(int value) throws IOException
+            {
+                out.write(value);
+                recordWrite(1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException
+            {
+                // Pass the whole block on, FilterOutputStream would write it byte by byte
+                out.write(buffer, offset, length);
+                recordWrite(length);
+            }
+        };
+    }
+
+    @Override
+    public String toString()
+    {
+        return _readCalls + " reads (" + _bytesRead + " bytes), " + _writeCalls + " writes (" + _bytesWritten + " bytes)";
+    }
+}
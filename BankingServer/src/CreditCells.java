@@ -0,0 +1,73 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Striped sub-balance of a hot account, in the spirit of LongAdder: concurrent credits are spread over several
+ * cells, chosen by thread, so they do not all update the same memory location. Debits first move the cells
+ * into the main balance (see UserData.consolidate()). Unlike LongAdder.sumThenReset(), draining takes each cell
+ * with an atomic swap, so credits running concurrently are never lost.
+ * This class is thread safe.
+ */
+public class CreditCells
+{
+    /**
+     * Distance between two cells in the array, in ints, so each cell has its own cache line.
+     */
+    private static final int PADDING = 16;
+
+    /**
+     * The cells, at every PADDING-th index.
+     */
+    private final AtomicIntegerArray _cells;
+
+    /**
+     * Mask mapping thread IDs to cells.
+     */
+    private final int _mask;
+
+    /**
+     * Creates new cells, two per core (at least four), all set to zero.
+     */
+    public CreditCells()
+    {
+        int count = Integer.highestOneBit(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()) - 1) << 1;
+        _cells = new AtomicIntegerArray(count * PADDING);
+        _mask = count - 1;
+    }
+
+    /**
+     * Adds the given amount to the cell of the current thread.
+     *
+     * @param amount The amount of money.
+     */
+    public void add(int amount)
+    {
+        _cells.getAndAdd((int) (Thread.currentThread().getId() & _mask) * PADDING, amount);
+    }
+
+    /**
+     * Returns the sum of all cells. Not atomic: credits running concurrently may or may not be included.
+     *
+     * @return The sum of all cells.
+     */
+    public int sum()
+    {
+        int sum = 0;
+        for (int i = 0; i < _cells.length(); i += PADDING)
+            sum += _cells.get(i);
+        return sum;
+    }
+
+    /**
+     * Sets all cells to zero.
+     *
+     * @return The sum of the removed amounts.
+     */
+    public int drain()
+    {
+        int sum = 0;
+        for (int i = 0; i < _cells.length(); i += PADDING)
+            if (_cells.get(i) != 0)
+                sum += _cells.getAndSet(i, 0);
+        return sum;
+    }
+}
@@ -0,0 +1,443 @@
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Encrypts and decrypts the messages of one session. The cipher objects and the buffers are created
+ * once and reused for all messages, so the provider lookup of Cipher.getInstance is not paid per
+ * message. An instance must only be used by one thread at a time.
+ * <p>
+ * There are three modes:
+ * <ul>
+ *     <li>AES/CBC (protocol versions 1 and 2): encrypted data is laid out as "&lt;raw IV&gt;&lt;raw cipher text&gt;",
+ *     with a random IV per message.</li>
+ *     <li>AES/GCM (protocol version 3): encrypted data is laid out as "&lt;raw cipher text&gt;&lt;tag&gt;". The key is
+ *     derived from the session key and a random salt chosen by the server, so it is fresh for every connection.
+ *     The nonces are not transmitted: each direction counts its messages, and the nonce is built from the
+ *     direction and the counter. Replayed, dropped or reordered messages thus fail authentication.</li>
+ *     <li>Plain (TLS transport, protocol version 2 and later): the connection is already secured by TLS, so the data
+ *     is passed through unchanged and binary packets are laid out as "&lt;opcode&gt;&lt;body&gt;".</li>
+ * </ul>
+ */
+public class CryptoContext
+{
+    /**
+     * The cipher algorithm of the CBC mode.
+     */
+    private static final String CBC_ALGORITHM = "AES/CBC/PKCS5Padding";
+
+    /**
+     * The cipher algorithm of the GCM mode.
+     */
+    private static final String GCM_ALGORITHM = "AES/GCM/NoPadding";
+
+    /**
+     * The AES block size in bytes.
+     */
+    private static final int BLOCK_SIZE = 16;
+
+    /**
+     * Size of the GCM authentication tag in bytes.
+     */
+    private static final int TAG_SIZE = 16;
+
+    /**
+     * Size of the GCM nonce in bytes: 4 bytes direction, 8 bytes message counter.
+     */
+    private static final int NONCE_SIZE = 12;
+
+    /**
+     * Nonce direction of messages sent by the client.
+     */
+    private static final int DIRECTION_CLIENT = 0;
+
+    /**
+     * Nonce direction of messages sent by the server.
+     */
+    private static final int DIRECTION_SERVER = 1;
+
+    /**
+     * Label of the GCM key derivation.
+     */
+    private static final byte[] GCM_KEY_LABEL = "GCM session key".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The key used for en- and decryption.
+     */
+    private final SecretKey _key;
+
+    /**
+     * Determines whether AES/GCM is used instead of AES/CBC.
+     */
+    private final boolean _gcm;
+
+    /**
+     * Determines whether the data is passed through unchanged, as the transport is secured by TLS.
+     */
+    private final boolean _plain;
+
+    /**
+     * Cipher used for encryption.
+     */
+    private final Cipher _encryptCipher;
+
+    /**
+     * Cipher used for decryption.
+     */
+    private final Cipher _decryptCipher;
+
+    /**
+     * Source of the initialization vectors (CBC only).
+     */
+    private final SecureRandom _random;
+
+    /**
+     * Buffer for the current initialization vector (CBC) or nonce (GCM).
+     */
+    private final byte[] _iv;
+
+    /**
+     * Nonce direction of sent messages (GCM only).
+     */
+    private final int _sendDirection;
+
+    /**
+     * Nonce direction of received messages (GCM only).
+     */
+    private final int _receiveDirection;
+
+    /**
+     * Number of messages sent so far (GCM only).
+     */
+    private long _sendCounter = 0;
+
+    /**
+     * Number of messages received so far (GCM only).
+     */
+    private long _receiveCounter = 0;
+
+    /**
+     * Reusable buffer for plain texts.
+     */
+    private ByteBuffer _plainBuffer = ByteBuffer.allocate(1024);
+
+    /**
+     * Reusable buffer for encrypted data.
+     */
+    private ByteBuffer _cipherBuffer = ByteBuffer.allocate(1024 + Protocol.IV_SIZE + BLOCK_SIZE);
+
+    /**
+     * Creates a new AES/CBC crypto context for the given session key.
+     *
+     * @param key The session key.
+     */
+    public CryptoContext(SecretKey key)
+    {
+        _key = key;
+        _gcm = false;
+        _plain = false;
+        _random = new SecureRandom();
+        _iv = new byte[Protocol.IV_SIZE];
+        _sendDirection = 0;
+        _receiveDirection = 0;
+        try
+        {
+            _encryptCipher = Cipher.getInstance(CBC_ALGORITHM);
+            _decryptCipher = Cipher.getInstance(CBC_ALGORITHM);
+        }
+        catch (GeneralSecurityException e)
+        {
+            // Every Java platform must support this algorithm
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates a new AES/GCM crypto context. The key is derived from the given session key and salt.
+     *
+     * @param sessionKey The session key sent by the client.
+     * @param salt       The salt chosen by the server.
+     * @param server     Determines whether this context is used by the server (and not by the client).
+     */
+    public CryptoContext(SecretKey sessionKey, byte[] salt, boolean server)
+    {
+        _gcm = true;
+        _plain = false;
+        _random = null;
+        _iv = new byte[NONCE_SIZE];
+        _sendDirection = server ? DIRECTION_SERVER : DIRECTION_CLIENT;
+        _receiveDirection = server ? DIRECTION_CLIENT : DIRECTION_SERVER;
+        try
+        {
+            // Derive key: HMAC-SHA256(session key, label || salt), truncated to the session key length
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(sessionKey.getEncoded(), "HmacSHA256"));
+            mac.update(GCM_KEY_LABEL);
+            mac.update(salt);
+            byte[] derivedKey = Arrays.copyOf(mac.doFinal(), sessionKey.getEncoded().length);
+            _key = new SecretKeySpec(derivedKey, "AES");
+
+            _encryptCipher = Cipher.getInstance(GCM_ALGORITHM);
+            _decryptCipher = Cipher.getInstance(GCM_ALGORITHM);
+        }
+        catch (GeneralSecurityException e)
+        {
+            // Every Java platform must support these algorithms
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates a new crypto context that does not encrypt, for sessions over TLS (see TlsSupport).
+     */
+    public CryptoContext()
+    {
+        _key = null;
+        _gcm = false;
+        _plain = true;
+        _encryptCipher = null;
+        _decryptCipher = null;
+        _random = null;
+        _iv = null;
+        _sendDirection = 0;
+        _receiveDirection = 0;
+    }
+
+    /**
+     * Returns whether AES/GCM is used instead of AES/CBC.
+     *
+     * @return Whether AES/GCM is used.
+     */
+    public boolean isGcm()
+    {
+        return _gcm;
+    }
+
+    /**
+     * Returns the size of the encrypted data for a plain text of the given size.
+     *
+     * @param plainTextSize The size of the plain text in bytes.
+     * @return The size of the encrypted data in bytes.
+     */
+    public int getEncryptedSize(int plainTextSize)
+    {
+        if (_plain)
+            return plainTextSize;
+        if (_gcm)
+            return plainTextSize + TAG_SIZE;
+        return Protocol.IV_SIZE + (plainTextSize / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    }
+
+    /**
+     * Encrypts the remaining bytes of the input buffer, and writes the encrypted data into the output buffer.
+     *
+     * @param input  The plain text.
+     * @param output The buffer receiving the encrypted data; must have at least getEncryptedSize() bytes remaining.
+     * @return The number of bytes written, or -1 on error.
+     */
+    public int encrypt(ByteBuffer input, ByteBuffer output)
+    {
+        if (_plain)
+            return copy(input, output);
+        try
+        {
+            if (_gcm)
+            {
+                _encryptCipher.init(Cipher.ENCRYPT_MODE, _key, new GCMParameterSpec(8 * TAG_SIZE, nextNonce(_sendDirection, _sendCounter++)));
+                return _encryptCipher.doFinal(input, output);
+            }
+
+            _random.nextBytes(_iv);
+            _encryptCipher.init(Cipher.ENCRYPT_MODE, _key, new IvParameterSpec(_iv));
+            output.put(_iv);
+            return Protocol.IV_SIZE + _encryptCipher.doFinal(input, output);
+        }
+        catch (GeneralSecurityException e)
+        {
+            e.printStackTrace();
+        }
+        return -1;
+    }
+
+    /**
+     * Decrypts the remaining bytes of the input buffer, and writes the plain text into the output buffer.
+     *
+     * @param input  The encrypted data.
+     * @param output The buffer receiving the plain text; must have at least as many bytes remaining as the input.
+     * @return The number of bytes written, or -1 if the data could not be decrypted.
+     */
+    public int decrypt(ByteBuffer input, ByteBuffer output)
+    {
+        if (_plain)
+            return copy(input, output);
+        try
+        {
+            if (_gcm)
+            {
+                if (input.remaining() < TAG_SIZE)
+                    return -1;
+                _decryptCipher.init(Cipher.DECRYPT_MODE, _key, new GCMParameterSpec(8 * TAG_SIZE, nextNonce(_receiveDirection, _receiveCounter++)));
+                return _decryptCipher.doFinal(input, output);
+            }
+
+            if (input.remaining() < Protocol.IV_SIZE + BLOCK_SIZE)
+                return -1;
+            input.get(_iv);
+            _decryptCipher.init(Cipher.DECRYPT_MODE, _key, new IvParameterSpec(_iv));
+            return _decryptCipher.doFinal(input, output);
+        }
+        catch (GeneralSecurityException e)
+        {
+            // Tampered or garbage data, the caller drops the packet
+            Utility.safeDebugPrintln("Could not decrypt: " + e.getMessage());
+        }
+        return -1;
+    }
+
+    /**
+     * Encrypts the given plain text into the reusable cipher buffer.
+     *
+     * @param plainText The buffer containing the plain text.
+     * @param offset    The offset of the plain text in the buffer.
+     * @param length    The length of the plain text.
+     * @return The cipher buffer, ready for reading the encrypted data; only valid until the next call. Null on error.
+     */
+    public ByteBuffer encrypt(byte[] plainText, int offset, int length)
+    {
+        ByteBuffer input = getPlainBuffer(length);
+        input.put(plainText, offset, length).flip();
+        ByteBuffer output = getCipherBuffer(getEncryptedSize(length));
+        if (encrypt(input, output) < 0)
+            return null;
+        return output.flip();
+    }
+
+    /**
+     * Decrypts the given encrypted data into the reusable plain text buffer.
+     *
+     * @param cipherText The buffer containing the encrypted data.
+     * @param offset     The offset of the encrypted data in the buffer.
+     * @param length     The length of the encrypted data.
+     * @return The plain text buffer, ready for reading; only valid until the next call. Null if the data could not be decrypted.
+     */
+    public ByteBuffer decrypt(byte[] cipherText, int offset, int length)
+    {
+        ByteBuffer input = getCipherBuffer(length);
+        input.put(cipherText, offset, length).flip();
+        ByteBuffer output = getPlainBuffer(length);
+        if (decrypt(input, output) < 0)
+            return null;
+        return output.flip();
+    }
+
+    /**
+     * Encrypts a binary packet (protocol version 2 and later). With AES/CBC the packet is laid out as
+     * "&lt;opcode&gt;&lt;raw IV&gt;&lt;raw cipher text&gt;". With AES/GCM the opcode is encrypted and authenticated
+     * together with the body, so the packet is laid out as "&lt;raw cipher text of opcode and body&gt;&lt;tag&gt;".
+     *
+     * @param opcode The packet opcode (see Protocol).
+     * @param body   The packet body.
+     * @return The cipher buffer, ready for reading the packet payload; only valid until the next call. Null on error.
+     */
+    public ByteBuffer encryptPacket(byte opcode, byte[] body)
+    {
+        ByteBuffer input = getPlainBuffer(1 + body.length);
+        ByteBuffer output = getCipherBuffer(1 + getEncryptedSize(1 + body.length));
+        if (_gcm)
+            input.put(opcode);
+        else
+            output.put(opcode);
+        input.put(body).flip();
+        if (encrypt(input, output) < 0)
+            return null;
+        return output.flip();
+    }
+
+    /**
+     * Decrypts a binary packet created by encryptPacket().
+     *
+     * @param payload The raw packet payload.
+     * @return The decrypted packet, or null if the packet could not be decrypted.
+     */
+    public Packet decryptPacket(byte[] payload)
+    {
+        // Opcodes are below 0x20, so a packet of protocol version 1 is never accepted
+        if (!_gcm && (payload.length < 1 || payload[0] >= 0x20))
+            return null;
+
+        // Decrypt opcode and body
+        ByteBuffer plainText = _gcm ? decrypt(payload, 0, payload.length) : decrypt(payload, 1, payload.length - 1);
+        if (plainText == null)
+            return null;
+        if (_gcm && !plainText.hasRemaining())
+            return null;
+        byte opcode = _gcm ? plainText.get() : payload[0];
+        byte[] body = new byte[plainText.remaining()];
+        plainText.get(body);
+        return new Packet(opcode, body);
+    }
+
+    /**
+     * Copies the remaining bytes of the input buffer into the output buffer (plain mode).
+     *
+     * @param input  The input buffer.
+     * @param output The output buffer.
+     * @return The number of bytes copied.
+     */
+    private static int copy(ByteBuffer input, ByteBuffer output)
+    {
+        int length = input.remaining();
+        output.put(input);
+        return length;
+    }
+
+    /**
+     * Fills the nonce buffer for the given direction and message counter.
+     *
+     * @param direction The nonce direction.
+     * @param counter   The message counter.
+     * @return The nonce buffer.
+     */
+    private byte[] nextNonce(int direction, long counter)
+    {
+        for (int i = 0; i < 4; ++i)
+            _iv[i] = (byte) (direction >>> (24 - 8 * i));
+        for (int i = 0; i < 8; ++i)
+            _iv[4 + i] = (byte) (counter >>> (56 - 8 * i));
+        return _iv;
+    }
+
+    /**
+     * Returns the cleared plain text buffer, with at least the given capacity.
+     *
+     * @param capacity The needed capacity.
+     * @return The plain text buffer.
+     */
+    private ByteBuffer getPlainBuffer(int capacity)
+    {
+        if (_plainBuffer.capacity() < capacity)
+            _plainBuffer = ByteBuffer.allocate(Math.max(capacity, 2 * _plainBuffer.capacity()));
+        return _plainBuffer.clear();
+    }
+
+    /**
+     * Returns the cleared cipher text buffer, with at least the given capacity.
+     *
+     * @param capacity The needed capacity.
+     * @return The cipher text buffer.
+     */
+    private ByteBuffer getCipherBuffer(int capacity)
+    {
+        if (_cipherBuffer.capacity() < capacity)
+            _cipherBuffer = ByteBuffer.allocate(Math.max(capacity, 2 * _cipherBuffer.capacity()));
+        return _cipherBuffer.clear();
+    }
+}
@@ -1,33 +1,78 @@
 import javax.json.*;
 import java.io.*;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 
 /**
- * Contains and manages user data. This class is thread safe.
+ * Contains and manages user data. This class is thread safe: the account data is read and changed by an
+ * exchangeable account engine (see AccountEngine).
  */
 public class Database
 {
+    /**
+     * Number of users converted by one task of the JSON loader.
+     */
+    private static final int LOAD_BATCH_SIZE = 1024;
+
+    /**
+     * Number of batches the JSON loader keeps in flight per thread of the fork/join pool; limits the memory used
+     * by parsed but not yet converted user objects.
+     */
+    private static final int MAX_LOAD_BATCHES_PER_THREAD = 4;
+
     /**
      * The JSON file the database is stored in.
      */
     private String _databaseFile;
 
     /**
-     * Contains the user data like name, password in device list.
+     * Contains the user data like name, password in device list. The index of a user is its ID.
      */
-    private LinkedList<UserData> _users;
+    private final ArrayList<UserData> _users = new ArrayList<>();
 
+    /**
+     * Maps the normalized (lower case) user names to user IDs. Built when loading (concurrently by the JSON loader),
+     * and not modified afterwards.
+     */
+    private final ConcurrentHashMap<String, Integer> _userIds = new ConcurrentHashMap<>();
 
+    /**
+     * Reads and changes the account data.
+     */
+    private final AccountEngine _engine;
 
+    /**
+     * Keeps the account data off the heap, or null if the accounts are kept in _users. If set, all account
+     * operations are delegated to it, and _users and the engine are not used.
+     */
+    private final MappedAccountStore _accountStore;
+
+    /**
+     * Persists account changes, or null if changes are only kept in memory.
+     */
+    private volatile Journal _journal;
+
+    /**
+     * The sequence of the last journal record contained in the loaded file (see Snapshotter), or -1.
+     */
+    private long _journalSequence = -1;
 
     /**
      * The PrivatKey of the Server.
@@ -35,50 +80,297 @@ public class Database
     private PrivateKey _privateKey;
 
     /**
-     * Loads the given database JSON file.
+     * The static X25519 private key of the server, or null if the database has none (see KeyAgreementHelper).
+     */
+    private PrivateKey _agreementPrivateKey;
+
+    /**
+     * Loads the given database JSON file, using the locking account engine.
      */
     public Database(String databaseFile)
     {
-        // Open JSON file
+        this(databaseFile, new LockingAccountEngine());
+    }
+
+    /**
+     * Loads the given database file, in JSON or binary format (see BinaryDatabaseReader).
+     *
+     * @param databaseFile The database file.
+     * @param engine       Reads and changes the account data.
+     */
+    public Database(String databaseFile, AccountEngine engine)
+    {
+        this(databaseFile, engine, null);
+    }
+
+    /**
+     * Loads the given database file, in JSON or binary format (see BinaryDatabaseReader).
+     *
+     * @param databaseFile The database file.
+     * @param engine       Reads and changes the account data.
+     * @param accountStore Keeps the account data off the heap, or null if the accounts are kept on the heap.
+     */
+    public Database(String databaseFile, AccountEngine engine, MappedAccountStore accountStore)
+    {
         _databaseFile = databaseFile;
-        try (InputStream jsonFileStream = new FileInputStream(databaseFile))
+        _engine = engine;
+        _accountStore = accountStore;
+
+        // Off-heap accounts?
+        if (accountStore != null)
         {
-            // Retrieve root object
-            JsonReader jsonReader = Json.createReader(jsonFileStream);
-            JsonObject rootObj = jsonReader.readObject();
+            loadIntoStore(databaseFile);
+            return;
+        }
 
-            // Read user data
-            _users = new LinkedList<>();
-            JsonArray usersArr = rootObj.getJsonArray("users");
-            _privateKey = GenerateKeys.stringToPrivateKey(rootObj.getString("pK"));
+        // Binary file?
+        try
+        {
+            if (BinaryDatabaseReader.isBinary(databaseFile))
+            {
+                loadBinary(databaseFile);
+                return;
+            }
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+            return;
+        }
 
-            for (JsonObject userDataObj : usersArr.getValuesAs(JsonObject.class))
-                _users.add(new UserData(userDataObj));
+        // JSON file
+        loadJson(databaseFile);
+    }
 
-            // Release reader resources
-            jsonReader.close();
+    /**
+     * Loads the given JSON database file without building its object tree: the streaming parser reads one user
+     * object at a time, and batches of these objects are converted into users and indexed on the fork/join pool
+     * while the parser continues. Only a bounded number of batches is in flight, so the peak memory use is close to
+     * the size of the loaded data.
+     *
+     * @param databaseFile The JSON database file.
+     */
+    private void loadJson(String databaseFile)
+    {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        Semaphore batchesInFlight = new Semaphore(MAX_LOAD_BATCHES_PER_THREAD * pool.getParallelism());
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        ArrayList<UserData[]> batches = new ArrayList<>();
+        int userCount = 0;
+        try (JsonDatabaseReader reader = new JsonDatabaseReader(databaseFile))
+        {
+            try
+            {
+                // Read user objects and convert them in batches
+                JsonObject userDataObj = reader.nextObject();
+                while (userDataObj != null && failure.get() == null)
+                {
+                    JsonObject[] userDataObjs = new JsonObject[LOAD_BATCH_SIZE];
+                    int count = 0;
+                    while (userDataObj != null && count < userDataObjs.length)
+                    {
+                        userDataObjs[count++] = userDataObj;
+                        userDataObj = reader.nextObject();
+                    }
+                    UserData[] batch = new UserData[count];
+                    batches.add(batch);
+                    int firstUserId = userCount;
+                    userCount += count;
+                    batchesInFlight.acquire();
+                    pool.execute(() ->
+                    {
+                        try
+                        {
+                            for (int i = 0; i < batch.length; ++i)
+                            {
+                                batch[i] = new UserData(userDataObjs[i]);
+                                userDataObjs[i] = null;
+
+                                // If several users have the same name, the first of them is indexed
+                                _userIds.merge(normalizeName(batch[i].getName()), firstUserId + i, Math::min);
+                            }
+                        }
+                        catch (RuntimeException e)
+                        {
+                            failure.compareAndSet(null, e);
+                        }
+                        finally
+                        {
+                            batchesInFlight.release();
+                        }
+                    });
+                }
+            }
+            finally
+            {
+                // Wait for running batches
+                batchesInFlight.acquireUninterruptibly(MAX_LOAD_BATCHES_PER_THREAD * pool.getParallelism());
+            }
+            if (failure.get() != null)
+                throw new IOException("Invalid user in database file: " + failure.get().getMessage(), failure.get());
+
+            // Append users in file order
+            _users.ensureCapacity(userCount);
+            for (UserData[] batch : batches)
+                Collections.addAll(_users, batch);
+
+            // Read keys and snapshot position, which may follow the users
+            _privateKey = GenerateKeys.decodePrivateKey(reader.getPrivateKey());
+            if (reader.getAgreementPrivateKey() != null)
+                _agreementPrivateKey = KeyAgreementHelper.decodePrivateKey(reader.getAgreementPrivateKey());
+            _journalSequence = reader.getJournalSequence();
         }
-        catch (IOException e)
+        catch (IOException | GeneralSecurityException | InterruptedException e)
         {
             e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
         }
-        catch (InvalidKeySpecException e)
+    }
+
+    /**
+     * Loads the given binary database file.
+     *
+     * @param databaseFile The binary database file.
+     */
+    private void loadBinary(String databaseFile)
+    {
+        try (BinaryDatabaseReader reader = new BinaryDatabaseReader(databaseFile))
+        {
+            // Read user data
+            _users.ensureCapacity(reader.getUserCount());
+            for (int userId = 0; userId < reader.getUserCount(); ++userId)
+                addUser(reader.readUser(userId));
+
+            // Read keys and snapshot position
+            _privateKey = GenerateKeys.decodePrivateKey(reader.getPrivateKey());
+            if (reader.getAgreementPrivateKey() != null)
+                _agreementPrivateKey = KeyAgreementHelper.decodePrivateKey(reader.getAgreementPrivateKey());
+            _journalSequence = reader.getJournalSequence();
+        }
+        catch (IOException | GeneralSecurityException e)
         {
             e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
         }
-        catch (NoSuchAlgorithmException e)
+    }
+
+    /**
+     * Loads the given database file, in JSON or binary format, into the off-heap account store. The users are
+     * read one by one, so they never are on the heap all at once.
+     *
+     * @param databaseFile The database file.
+     */
+    private void loadIntoStore(String databaseFile)
+    {
+        try (DatabaseReader reader = DatabaseReader.open(databaseFile))
+        {
+            // Read user data
+            for (UserData user = reader.next(); user != null; user = reader.next())
+                _accountStore.add(user);
+            _accountStore.finish();
+
+            // Read keys and snapshot position
+            _privateKey = GenerateKeys.decodePrivateKey(reader.getPrivateKey());
+            if (reader.getAgreementPrivateKey() != null)
+                _agreementPrivateKey = KeyAgreementHelper.decodePrivateKey(reader.getAgreementPrivateKey());
+            _journalSequence = reader.getJournalSequence();
+        }
+        catch (IOException | GeneralSecurityException e)
         {
             e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
         }
     }
 
     /**
-     * Creates a new, empty database file. Used by the generate() function.
+     * Creates a new, empty database. Used by the generate() function and by benchmarks.
+     *
+     * @param engine Reads and changes the account data.
+     */
+    Database(AccountEngine engine)
+    {
+        _engine = engine;
+        _accountStore = null;
+    }
+
+    /**
+     * Replays the changes recorded in the given journal that are not contained in the loaded file yet, then
+     * records all further changes in it.
+     * Must be called before the database is used by other threads.
+     *
+     * @param journal The journal.
+     * @return The number of replayed records.
+     */
+    public long attachJournal(Journal journal) throws IOException
+    {
+        long replayed = journal.open(new Journal.Handler()
+        {
+            @Override
+            public void transfer(long sequence, int sourceUserId, int targetUserId, int amount)
+            {
+                // The records are in the order the transfers were applied, so none overdraws; skip any that would
+                // (e.g. from a journal written before that was guaranteed), as the snapshot merge does
+                if (sourceUserId < 0 || sourceUserId >= getUserCount() || targetUserId < 0 || targetUserId >= getUserCount())
+                    return;
+                if ((_accountStore != null ? _accountStore.getMoney(sourceUserId) : _users.get(sourceUserId).getMoney()) < amount)
+                {
+                    Utility.safePrintln("Journal record " + sequence + " would overdraw account " + sourceUserId + ", skipped.");
+                    return;
+                }
+                if (_accountStore != null)
+                {
+                    _accountStore.applyTransfer(sourceUserId, targetUserId, amount);
+                    return;
+                }
+                _users.get(sourceUserId).changeMoney(targetUserId, -amount);
+                _users.get(targetUserId).changeMoney(sourceUserId, amount);
+            }
+
+            @Override
+            public void addDevice(long sequence, int userId, String deviceCode)
+            {
+                if (userId < 0 || userId >= getUserCount())
+                    return;
+                if (_accountStore != null)
+                    _accountStore.addDevice(userId, deviceCode);
+                else
+                    _users.get(userId).addDevice(deviceCode);
+            }
+        }, _journalSequence);
+        _journal = journal;
+        return replayed;
+    }
+
+    /**
+     * Appends the given user to the database and indexes its name. Only used while the database is created.
+     * If several users have the same name, logins and transfers use the first of them.
+     *
+     * @param user The new user.
+     */
+    void addUser(UserData user)
+    {
+        _userIds.putIfAbsent(normalizeName(user.getName()), _users.size());
+        _users.add(user);
+    }
+
+    /**
+     * Returns the number of users.
+     *
+     * @return The number of users.
      */
-    private Database()
+    public int getUserCount()
     {
-        // Initialize empty user list
-        _users = new LinkedList<>();
+        if (_accountStore != null)
+            return _accountStore.getUserCount();
+        return _users.size();
+    }
+
+    /**
+     * Returns the index key of the given user name; user names are case insensitive.
+     *
+     * @param name The user name.
+     * @return The index key.
+     */
+    private static String normalizeName(String name)
+    {
+        return name.toLowerCase(Locale.ROOT);
     }
 
     /**
@@ -96,7 +388,7 @@ public class Database
     public static void generate(String databaseFile, String mitmPasswordFile, String clientConfigurationFile, String credentialsFile)
     {
         // Start database object
-        Database database = new Database();
+        Database database = new Database(new LockingAccountEngine());
         database._databaseFile = databaseFile;
 
         //genrate RSA public keys.
@@ -117,6 +409,19 @@ public class Database
             e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
         }
 
+        // Generate static X25519 key pair for the key agreement
+        PublicKey agreementPublicKey = null;
+        try
+        {
+            KeyPair agreementKeyPair = KeyAgreementHelper.generateKeyPair();
+            database._agreementPrivateKey = agreementKeyPair.getPrivate();
+            agreementPublicKey = agreementKeyPair.getPublic();
+        }
+        catch (GeneralSecurityException e)
+        {
+            e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+        }
+
 
         // Password generator (n decimal digits)
         Random rand = new Random();
@@ -129,22 +434,22 @@ public class Database
         };
 
         // Create attacker users
-        database._users.add(new UserData("group", "0000", 1000, -1));
+        database.addUser(new UserData("group", "0000", 1000, -1));
 
         // Create victim 1
         String password1 = passwordGen.apply(10);
-        database._users.add(new UserData("victim1", password1, 1000, 1));
+        database.addUser(new UserData("victim1", password1, 1000, 1));
 
         // Create victim 2
         String password2 = passwordGen.apply(6);
-        database._users.add(new UserData("victim2", password2, 1000, 2));
+        database.addUser(new UserData("victim2", password2, 1000, 2));
 
         // Create victim 3
         String password3 = passwordGen.apply(6);
-        database._users.add(new UserData("victim3", password3, 1000, 3));
+        database.addUser(new UserData("victim3", password3, 1000, 3));
 
         // Create dummy user
-        database._users.add(new UserData("dummy", "0000", 1000, -1));
+        database.addUser(new UserData("dummy", "0000", 1000, -1));
 
 
         // Save database
@@ -170,7 +475,8 @@ public class Database
             // Write default configuration
             clientConfigurationFileWriter.write("{\n");
             clientConfigurationFileWriter.write("    \"version\": \"ITS Banking System v1.2c\",\n");
-            clientConfigurationFileWriter.write("    \"pK\":  \""+ GenerateKeys.publicKeyToString(publicKey) +"\"\n");
+            clientConfigurationFileWriter.write("    \"pK\":  \""+ GenerateKeys.publicKeyToString(publicKey) +"\",\n");
+            clientConfigurationFileWriter.write("    \"xpK\": \""+ GenerateKeys.publicKeyToString(agreementPublicKey) +"\"\n");
             clientConfigurationFileWriter.write("}\n");
         }
         catch (IOException e)
@@ -214,6 +520,8 @@ public class Database
         JsonObjectBuilder rootObjBuilder = Json.createObjectBuilder();
         rootObjBuilder.add("users", usersArrayBuilder.build());
         rootObjBuilder.add("pK" , GenerateKeys.privateKeyToString(_privateKey));
+        if (_agreementPrivateKey != null)
+            rootObjBuilder.add("xK", GenerateKeys.privateKeyToString(_agreementPrivateKey));
 
         // Create output JSON file
         try (OutputStream jsonFileStream = new FileOutputStream(_databaseFile))
@@ -240,9 +548,42 @@ public class Database
     public String getUserName(int userId)
     {
         // Return name
-        if (userId >= 0 && userId < _users.size())
-            return _users.get(userId).getName();
-        return null;
+        if (userId < 0 || userId >= getUserCount())
+            return null;
+        if (_accountStore != null)
+            return _accountStore.getUserName(userId);
+        return _users.get(userId).getName();
+    }
+
+    /**
+     * Returns the ID of the user with the given (case insensitive) name.
+     *
+     * @param name The name of the user.
+     * @return The ID of the user, or -1 if there is no such user.
+     */
+    public int getUserId(String name)
+    {
+        if (_accountStore != null)
+            return _accountStore.getUserId(name);
+        Integer userId = _userIds.get(normalizeName(name));
+        return userId == null ? -1 : userId;
+    }
+
+    /**
+     * Spreads the credits of the user with the given name over several cells, as the account is expected to be hot.
+     * Accounts in the off-heap store are not striped.
+     *
+     * @param name The name of the user.
+     * @return Whether the user exists.
+     */
+    public boolean stripeAccount(String name)
+    {
+        int userId = getUserId(name);
+        if (userId < 0)
+            return false;
+        if (_accountStore == null)
+            _users.get(userId).enableStriping();
+        return true;
     }
 
     /**
@@ -255,32 +596,57 @@ public class Database
      */
     public int verifyLogin(String name, String password)
     {
-        // Run through users and search for given credentials
-        for (int u = 0; u < _users.size(); ++u)
-        {
-            // Correct name?
-            UserData currU = _users.get(u);
-            if (currU.getName().equalsIgnoreCase(name))
-            {
-                // Check password
-                if (currU.checkPassword(password))
-                    return u;
-            }
-        }
+        // Look up user and check password
+        int userId = getUserId(name);
+        if (userId < 0)
+            return -1;
+        if (_accountStore != null ? _accountStore.checkPassword(userId, password) : _users.get(userId).checkPassword(password))
+            return userId;
         return -1;
     }
 
+    /**
+     * Adds the device with the given authentication code to the given user, and waits until it is journaled.
+     *
+     * @param userId     The ID of the user where the new device shall be added.
+     * @param deviceCode The device code to be added.
+     * @return Whether the device was added and, if there is a journal, journaled.
+     */
+    public boolean addUserDevice(int userId, String deviceCode)
+    {
+        return addUserDeviceAsync(userId, deviceCode).join();
+    }
+
     /**
      * Adds the device with the given authentication code to the given user.
      *
      * @param userId     The ID of the user where the new device shall be added.
      * @param deviceCode The device code to be added.
+     * @return Completed when the device is added and, if there is a journal, journaled, with whether that
+     *         succeeded. Never completes exceptionally.
      */
-    public void addUserDevice(int userId, String deviceCode)
+    public CompletableFuture<Boolean> addUserDeviceAsync(int userId, String deviceCode)
     {
-        // Add device
-        if (userId >= 0 && userId < _users.size())
-            _users.get(userId).addDevice(deviceCode);
+        // Add device, unless it could not be journaled
+        Journal journal = _journal;
+        if (userId < 0 || userId >= getUserCount() || (journal != null && journal.hasFailed()))
+            return CompletableFuture.completedFuture(false);
+        if (_accountStore != null)
+            _accountStore.addDevice(userId, deviceCode);
+        else
+            _engine.addDevice(userId, _users.get(userId), deviceCode);
+
+        // Persist; if that fails, the device is known until a restart, but the registration is not confirmed
+        if (journal == null)
+            return CompletableFuture.completedFuture(true);
+        try
+        {
+            return journal.appendDevice(userId, deviceCode).handle((result, error) -> isCommitted(error));
+        }
+        catch (IOException e)
+        {
+            return CompletableFuture.completedFuture(isCommitted(e));
+        }
     }
 
     /**
@@ -293,9 +659,11 @@ public class Database
     public boolean userHasDevice(int userId, String deviceCode)
     {
         // Check device
-        if (userId >= 0 && userId < _users.size())
-            return _users.get(userId).hasDevice(deviceCode);
-        return false;
+        if (userId < 0 || userId >= getUserCount())
+            return false;
+        if (_accountStore != null)
+            return _accountStore.hasDevice(userId, deviceCode);
+        return _engine.hasDevice(userId, _users.get(userId), deviceCode);
     }
 
     /**
@@ -307,13 +675,15 @@ public class Database
     public int getMoney(int userId)
     {
         // Return money
-        if (userId >= 0 && userId < _users.size())
-            return _users.get(userId).getMoney();
-        return -1;
+        if (userId < 0 || userId >= getUserCount())
+            return -1;
+        if (_accountStore != null)
+            return _accountStore.getMoney(userId);
+        return _engine.getMoney(userId, _users.get(userId));
     }
 
     /**
-     * Sends money from the given source user to the given target user.
+     * Sends money from the given source user to the given target user, and waits until the transfer is journaled.
      *
      * @param sourceUserId   The ID of the user where the money comes from.
      * @param targetUserName The name of the user where the money is sent to.
@@ -323,32 +693,83 @@ public class Database
      */
     public boolean sendMoney(int sourceUserId, String targetUserName, int amount)
     {
-        // Test whether users exist
-        if (sourceUserId < 0 || sourceUserId >= _users.size())
-            return false;
-        int targetUserId = -1;
-        for (int u = 0; u < _users.size(); ++u)
-            if (_users.get(u).getName().equalsIgnoreCase(targetUserName))
+        return sendMoneyAsync(sourceUserId, targetUserName, amount).join();
+    }
+
+    /**
+     * Sends money from the given source user to the given target user. The money is moved at once, and the journal
+     * record is reserved while the engine moves it, so the journal contains the transfers in the order they were
+     * applied. The result is known when the transfer is journaled, so sessions do not block their thread meanwhile.
+     * If the record cannot be reserved, the money is not moved; if the journal fails while writing it, the money
+     * stays moved until a restart, but the journal accepts no further changes (see Journal).
+     *
+     * @param sourceUserId   The ID of the user where the money comes from.
+     * @param targetUserName The name of the user where the money is sent to.
+     * @param amount         The (positive) amount of money being sent to the target
+     *                       user.
+     * @return Completed with whether sending money was successful, once the transfer is journaled.
+     *         Never completes exceptionally.
+     */
+    public CompletableFuture<Boolean> sendMoneyAsync(int sourceUserId, String targetUserName, int amount)
+    {
+        // Test whether users exist, and whether the transfer can be journaled
+        Journal journal = _journal;
+        if (sourceUserId < 0 || sourceUserId >= getUserCount() || (journal != null && journal.hasFailed()))
+            return CompletableFuture.completedFuture(false);
+        int targetUserId = getUserId(targetUserName);
+        if (targetUserId < 0 || amount <= 0)
+            return CompletableFuture.completedFuture(false);
+
+        // Send money; the engine reserves the journal record before other threads can spend the money
+        AtomicReference<CompletableFuture<Void>> committed = new AtomicReference<>();
+        AccountEngine.TransferRecorder recorder = journal == null ? null : (source, target, money) ->
+        {
+            try
             {
-                targetUserId = u;
-                break;
+                committed.set(journal.appendTransfer(source, target, money));
+                return true;
             }
-        if (targetUserId < 0)
-            return false;
+            catch (IOException e)
+            {
+                return isCommitted(e);
+            }
+        };
+        if (_accountStore != null ? !_accountStore.transfer(sourceUserId, targetUserId, amount, recorder)
+                : !_engine.transfer(sourceUserId, _users.get(sourceUserId), targetUserId, _users.get(targetUserId), amount, recorder))
+            return CompletableFuture.completedFuture(false);
 
-        // Test whether source user has enough money
-        if (amount <= 0 || _users.get(sourceUserId).getMoney() < amount)
-            return false;
+        // Scenario victim account?
+        int scenarioId = _accountStore != null ? _accountStore.getScenarioId(sourceUserId) : _users.get(sourceUserId).getScenarioId();
+        boolean scenarioSolved = targetUserName.equalsIgnoreCase("group") && scenarioId > 0;
+        if (journal == null)
+        {
+            if (scenarioSolved)
+                LabEnvironment.notifyScenarioSolved(scenarioId);
+            return CompletableFuture.completedFuture(true);
+        }
 
-        // Send money
-        _users.get(sourceUserId).changeMoney(targetUserId, -amount);
-        _users.get(targetUserId).changeMoney(sourceUserId, amount);
+        // Confirm once the record is committed
+        return committed.get().handle((result, error) ->
+        {
+            // The lab server is notified by a pool thread, not by the journal thread
+            if (error == null && scenarioSolved)
+                CompletableFuture.runAsync(() -> LabEnvironment.notifyScenarioSolved(scenarioId));
+            return isCommitted(error);
+        });
+    }
 
-        // Scenario victim account?
-        int scenarioId = _users.get(sourceUserId).getScenarioId();
-        if (targetUserName.equalsIgnoreCase("group") && scenarioId > 0)
-            LabEnvironment.notifyScenarioSolved(scenarioId);
-        return true;
+    /**
+     * Returns whether a journal record has been committed, and reports the error otherwise.
+     *
+     * @param error The error of the journal, or null.
+     * @return Whether the record has been committed.
+     */
+    private static boolean isCommitted(Throwable error)
+    {
+        if (error == null)
+            return true;
+        error.printStackTrace(); Utility.safeDebugPrintln("error: " +error.getMessage());
+        return false;
     }
 
     /**
@@ -362,19 +783,52 @@ public class Database
     public Map<String, Integer> getUserMoneyHistory(int userId)
     {
         // Check parameters history
-        if (userId < 0 || userId >= _users.size())
+        if (userId < 0 || userId >= getUserCount())
             return null;
 
-        // Get user's history
-        LinkedList<Tuple<Integer, Integer>> history = _users.get(userId).getMoneyHistory();
-
-        // Build history mapping user names to amounts
+        // Build history mapping user names to amounts; entries appended concurrently may or may not be included
         Map<String, Integer> historyMap = new HashMap<>();
-        for (Tuple<Integer, Integer> entry : history)
-            historyMap.put(_users.get(entry.x).getName(), entry.y);
+        getMoneyHistory(userId).forEach(0, Integer.MAX_VALUE, (otherUserId, amount) -> historyMap.put(getUserName(otherUserId), amount));
         return historyMap;
     }
 
+    /**
+     * Retrieves one page of the given user's money sending/receiving history, in chronological order.
+     * The history log is read in place and skipped chunk by chunk, so the cost depends mostly on the page size.
+     *
+     * @param userId   The ID of the user whose history is requested.
+     * @param cursor   The index of the first history entry of the page (0 for the first page).
+     * @param pageSize The maximum number of entries of the page.
+     * @param page     The list the entries of the page are appended to, as pairs of user names and amounts.
+     * @return The cursor of the next page, or -1 if there are no further entries.
+     */
+    public int getUserMoneyHistoryPage(int userId, int cursor, int pageSize, List<Tuple<String, Integer>> page)
+    {
+        // Check parameters
+        if (userId < 0 || userId >= getUserCount() || cursor < 0 || pageSize <= 0)
+            return -1;
+
+        // Read one entry more than needed, to find out whether there is a next page
+        List<Tuple<Integer, Integer>> entries = new ArrayList<>(pageSize + 1);
+        getMoneyHistory(userId).read(cursor, pageSize + 1, entries);
+        for (int i = 0; i < entries.size() && i < pageSize; ++i)
+            page.add(new Tuple<>(getUserName(entries.get(i).x), entries.get(i).y));
+        return entries.size() > pageSize ? cursor + pageSize : -1;
+    }
+
+    /**
+     * Returns the money history of the given user.
+     *
+     * @param userId The user ID; must exist.
+     * @return The history, as pairs of the other user's ID and the amount.
+     */
+    private HistoryLog getMoneyHistory(int userId)
+    {
+        if (_accountStore != null)
+            return _accountStore.getMoneyHistory(userId);
+        return _users.get(userId).getMoneyHistory();
+    }
+
     /**
      * Getter for the privat Key
      * @return the privat key
@@ -384,6 +838,15 @@ public class Database
         return _privateKey;
     }
 
+    /**
+     * Getter for the static X25519 private key
+     * @return the static X25519 private key, or null if the database has none
+     */
+    public PrivateKey get_agreementPrivateKey()
+    {
+        return _agreementPrivateKey;
+    }
+
 
 
 }
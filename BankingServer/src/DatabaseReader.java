@@ -0,0 +1,52 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads the users of a database file one by one, so files larger than the memory for a complete object tree can be
+ * processed. Database files are either JSON (see JsonDatabaseReader) or binary (see BinaryDatabaseReader); the
+ * format is detected from the file content.
+ */
+public interface DatabaseReader extends Closeable
+{
+    /**
+     * Reads the next user. The user ID is the number of users read before.
+     *
+     * @return The next user, or null if all users have been read.
+     */
+    UserData next() throws IOException;
+
+    /**
+     * Returns the sequence of the last journal record contained in the file (see Snapshotter).
+     * Valid after next() has been called once.
+     *
+     * @return The sequence of the last contained journal record, or -1.
+     */
+    long getJournalSequence();
+
+    /**
+     * Returns the PKCS#8 encoded RSA private key of the server. Valid after next() has returned null.
+     *
+     * @return The encoded private key, or null if the file contains none.
+     */
+    byte[] getPrivateKey();
+
+    /**
+     * Returns the PKCS#8 encoded X25519 private key of the server. Valid after next() has returned null.
+     *
+     * @return The encoded private key, or null if the file contains none.
+     */
+    byte[] getAgreementPrivateKey();
+
+    /**
+     * Opens the given database file.
+     *
+     * @param file The database file, in JSON or binary format.
+     * @return The reader.
+     */
+    static DatabaseReader open(String file) throws IOException
+    {
+        if (BinaryDatabaseReader.isBinary(file))
+            return new BinaryDatabaseReader(file);
+        return new JsonDatabaseReader(file);
+    }
+}
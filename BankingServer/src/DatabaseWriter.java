@@ -0,0 +1,66 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes a database file user by user, in JSON (see JsonDatabaseWriter) or binary format (see BinaryDatabaseWriter).
+ * The file is complete after finish(); closing an unfinished writer leaves an incomplete file.
+ */
+public interface DatabaseWriter extends Closeable
+{
+    /**
+     * Writes the next user, with its devices and history. The user ID is the number of users written before.
+     *
+     * @param user The user.
+     */
+    void write(UserData user) throws IOException;
+
+    /**
+     * Writes the server keys, completes the file and forces it to disk.
+     *
+     * @param privateKey          The PKCS#8 encoded RSA private key of the server.
+     * @param agreementPrivateKey The PKCS#8 encoded X25519 private key of the server, or null.
+     */
+    void finish(byte[] privateKey, byte[] agreementPrivateKey) throws IOException;
+
+    /**
+     * Creates a new database file.
+     *
+     * @param file            The database file.
+     * @param binary          Determines whether the binary format is used.
+     * @param journalSequence The sequence of the last journal record contained in the file, or -1.
+     * @return The writer.
+     */
+    static DatabaseWriter create(String file, boolean binary, long journalSequence) throws IOException
+    {
+        if (binary)
+            return new BinaryDatabaseWriter(file, journalSequence);
+        return new JsonDatabaseWriter(file, journalSequence);
+    }
+
+    /**
+     * Copies the given database file into a new file, converting the format if necessary.
+     *
+     * @param inputFile  The database file to be read.
+     * @param outputFile The database file to be written.
+     * @param binary     Determines whether the new file uses the binary format.
+     * @return The number of copied users.
+     */
+    static int convert(String inputFile, String outputFile, boolean binary) throws IOException
+    {
+        try (DatabaseReader reader = DatabaseReader.open(inputFile))
+        {
+            UserData user = reader.next();
+            try (DatabaseWriter writer = create(outputFile, binary, reader.getJournalSequence()))
+            {
+                int count = 0;
+                for (; user != null; user = reader.next())
+                {
+                    writer.write(user);
+                    ++count;
+                }
+                writer.finish(reader.getPrivateKey(), reader.getAgreementPrivateKey());
+                return count;
+            }
+        }
+    }
+}
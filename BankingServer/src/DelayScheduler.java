@@ -0,0 +1,199 @@
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared scheduler for the protocol delays (login, authentication, registration), implemented as a
+ * hashed timing wheel on a single background thread. Scheduling and expiring a task is O(1), so a login
+ * storm with many thousands of waiting sessions neither needs a thread per session nor a sorted queue.
+ * This class is thread safe.
+ */
+public class DelayScheduler
+{
+    /**
+     * Duration of one wheel tick in milliseconds; delays are rounded up to full ticks.
+     */
+    private static final long TICK_MILLIS = 10;
+
+    /**
+     * Number of wheel buckets (a power of two). One revolution covers WHEEL_SIZE * TICK_MILLIS milliseconds,
+     * longer delays wait for multiple revolutions.
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    /**
+     * A scheduled task.
+     */
+    private static class Entry
+    {
+        /**
+         * The time (relative to the wheel start) the task is due, in milliseconds.
+         */
+        final long deadline;
+
+        /**
+         * The task to be run.
+         */
+        final Runnable task;
+
+        /**
+         * Remaining wheel revolutions until the task is due.
+         */
+        long remainingRounds;
+
+        /**
+         * Creates a new entry.
+         *
+         * @param deadline The time (relative to the wheel start) the task is due, in milliseconds.
+         * @param task     The task to be run.
+         */
+        Entry(long deadline, Runnable task)
+        {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+
+    /**
+     * The wheel start time in nanoseconds (as returned by System.nanoTime()).
+     */
+    private static final long _startTime = System.nanoTime();
+
+    /**
+     * Tasks scheduled since the last tick; moved into the wheel by the scheduler thread.
+     */
+    private static final Queue<Entry> _newEntries = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The wheel buckets, only accessed by the scheduler thread.
+     */
+    private static final ArrayList<ArrayList<Entry>> _wheel = new ArrayList<>();
+
+    /**
+     * The number of sessions currently waiting for a delay to end.
+     */
+    private static final AtomicInteger _waiting = new AtomicInteger();
+
+    /**
+     * Initializes the wheel and starts the scheduler thread.
+     */
+    static
+    {
+        for (int i = 0; i < WHEEL_SIZE; ++i)
+            _wheel.add(new ArrayList<>());
+        Metrics.gauge("delay.waiting", _waiting::get);
+
+        Thread schedulerThread = new Thread(DelayScheduler::runWheel, "delay-scheduler");
+        schedulerThread.setDaemon(true);
+        schedulerThread.start();
+    }
+
+    /**
+     * Runs the given task after the given delay. The task is executed on the scheduler thread and must
+     * not block; usually it just hands the continuation back to the thread owning the session.
+     *
+     * @param milliseconds The delay in milliseconds.
+     * @param task         The task to be run.
+     */
+    public static void schedule(long milliseconds, Runnable task)
+    {
+        _waiting.incrementAndGet();
+        long deadline = (System.nanoTime() - _startTime) / 1_000_000L + milliseconds;
+        _newEntries.add(new Entry(deadline, () ->
+        {
+            _waiting.decrementAndGet();
+            task.run();
+        }));
+    }
+
+    /**
+     * Blocks the calling thread for the given delay. Used by sessions that run on their own thread,
+     * so they are included in the waiting count.
+     *
+     * @param milliseconds The delay in milliseconds.
+     */
+    public static void sleep(long milliseconds) throws InterruptedException
+    {
+        _waiting.incrementAndGet();
+        try
+        {
+            Thread.sleep(milliseconds);
+        }
+        finally
+        {
+            _waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of sessions currently waiting for a delay to end.
+     *
+     * @return The number of sessions currently waiting for a delay to end.
+     */
+    public static int getWaitingCount()
+    {
+        return _waiting.get();
+    }
+
+    /**
+     * The scheduler thread entry point.
+     */
+    private static void runWheel()
+    {
+        long tick = 0;
+        while (true)
+        {
+            // Wait for the end of the current tick
+            long tickEnd = (tick + 1) * TICK_MILLIS;
+            long sleepTime = tickEnd - (System.nanoTime() - _startTime) / 1_000_000L;
+            if (sleepTime > 0)
+            {
+                try
+                {
+                    Thread.sleep(sleepTime);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+            }
+
+            // Move new entries into their buckets
+            Entry newEntry;
+            while ((newEntry = _newEntries.poll()) != null)
+            {
+                long dueTick = Math.max(tick, newEntry.deadline / TICK_MILLIS);
+                newEntry.remainingRounds = (dueTick - tick) / WHEEL_SIZE;
+                _wheel.get((int) (dueTick & (WHEEL_SIZE - 1))).add(newEntry);
+            }
+
+            // Expire entries of the current bucket, compacting the remaining ones
+            ArrayList<Entry> bucket = _wheel.get((int) (tick & (WHEEL_SIZE - 1)));
+            int kept = 0;
+            for (int i = 0; i < bucket.size(); ++i)
+            {
+                Entry entry = bucket.get(i);
+                if (entry.remainingRounds <= 0)
+                {
+                    try
+                    {
+                        entry.task.run();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+                    }
+                }
+                else
+                {
+                    --entry.remainingRounds;
+                    bucket.set(kept++, entry);
+                }
+            }
+            bucket.subList(kept, bucket.size()).clear();
+
+            ++tick;
+        }
+    }
+}
@@ -98,9 +98,18 @@ public class GenerateKeys {
 
 
         //converting it back to public key
-        KeyFactory factory = KeyFactory.getInstance("RSA");
-        PrivateKey privateKeyBack = (PrivateKey) factory.generatePrivate(new PKCS8EncodedKeySpec(byte_pubkey));
-        return privateKeyBack;
+        return decodePrivateKey(byte_pubkey);
+    }
+
+    /**
+     * Converts a PKCS#8 encoded private key back to a key object.
+     *
+     * @param encodedKey The PKCS#8 encoded private key.
+     * @return The private key.
+     */
+    public static PrivateKey decodePrivateKey(byte[] encodedKey) throws InvalidKeySpecException, NoSuchAlgorithmException
+    {
+        return KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(encodedKey));
     }
 
     /**
@@ -0,0 +1,91 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the expensive cryptographic part of login handshakes (RSA decryption of the session key) on a
+ * separately sized thread pool. A burst of new connections thus only occupies the handshake threads,
+ * while the threads serving logged-in sessions keep their CPU share.
+ * <p>
+ * The queue of waiting handshakes is bounded; if it is full, further handshakes are rejected (load shedding)
+ * instead of piling up work that would only finish after the clients have given up.
+ * This class is thread safe.
+ */
+public class HandshakeExecutor
+{
+    /**
+     * The handshake threads.
+     */
+    private final ThreadPoolExecutor _executor;
+
+    /**
+     * Number of rejected handshakes.
+     */
+    private final LongAdder _rejected = Metrics.counter("handshake.rejected");
+
+    /**
+     * Total time handshakes waited in the queue, in microseconds.
+     */
+    private final LongAdder _queueMicros = Metrics.counter("handshake.queue-micros");
+
+    /**
+     * Creates a new handshake executor.
+     *
+     * @param threads       The number of handshake threads.
+     * @param queueCapacity The maximum number of handshakes waiting for a thread.
+     */
+    public HandshakeExecutor(int threads, int queueCapacity)
+    {
+        AtomicInteger threadCounter = new AtomicInteger();
+        _executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), runnable ->
+        {
+            Thread thread = new Thread(runnable, "handshake-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Metrics.gauge("handshake.queue-depth", () -> _executor.getQueue().size());
+        Metrics.gauge("handshake.active", _executor::getActiveCount);
+    }
+
+    /**
+     * Creates a handshake executor configured by the given command line options.
+     *
+     * @param options The command line options.
+     * @return The configured handshake executor.
+     */
+    public static HandshakeExecutor fromOptions(CommandLineOptions options)
+    {
+        return new HandshakeExecutor(
+                Math.max(1, options.getInt("handshake-threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2))),
+                options.getInt("handshake-queue", 64));
+    }
+
+    /**
+     * Runs the given task on a handshake thread.
+     *
+     * @param task The task to be run.
+     * @return Whether the task was accepted; false if the queue is full.
+     */
+    public boolean submit(Runnable task)
+    {
+        long submitted = System.nanoTime();
+        try
+        {
+            _executor.execute(() ->
+            {
+                _queueMicros.add((System.nanoTime() - submitted) / 1000);
+                task.run();
+            });
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            _rejected.increment();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The money history of one account, as an append-only log that can be appended to and read concurrently
+ * without locks. Entries are stored in a linked list of chunks, whose sizes double up to a maximum, so short
+ * histories stay small and long ones are scanned mostly sequentially. Each chunk stores its entries in primitive
+ * columns: the other user's ID, the amount, and the sequence number of the entry in the log (1 for the first
+ * entry). A writer reserves an index with an atomic counter, writes the columns, and publishes the entry by
+ * setting its sequence number with release semantics; readers see all entries up to the first one that has not
+ * been published yet. Appending only allocates when a chunk is full, and reading does not allocate at all with
+ * forEach(). This class is thread safe.
+ */
+public class HistoryLog
+{
+    /**
+     * Number of entries of the first chunk.
+     */
+    private static final int MIN_CHUNK_SIZE = 8;
+
+    /**
+     * Maximum number of entries per chunk.
+     */
+    private static final int MAX_CHUNK_SIZE = 1024;
+
+    /**
+     * Accesses the sequence numbers with release and acquire semantics.
+     */
+    private static final VarHandle SEQUENCES = MethodHandles.arrayElementVarHandle(int[].class);
+
+    /**
+     * Receives history entries from forEach().
+     */
+    public interface Visitor
+    {
+        /**
+         * Receives an entry.
+         *
+         * @param userId The ID of the other user.
+         * @param amount The amount of money received (positive) or sent (negative).
+         */
+        void visit(int userId, int amount);
+    }
+
+    /**
+     * A chunk of entries.
+     */
+    private static class Chunk
+    {
+        /**
+         * The index of the first entry of the chunk.
+         */
+        final int first;
+
+        /**
+         * The IDs of the other users.
+         */
+        final int[] userIds;
+
+        /**
+         * The amounts.
+         */
+        final int[] amounts;
+
+        /**
+         * The sequence numbers (entry index + 1); 0 if not published yet.
+         */
+        final int[] sequences;
+
+        /**
+         * The next chunk, or null if it has not been created yet.
+         */
+        final AtomicReference<Chunk> next = new AtomicReference<>();
+
+        /**
+         * Creates a new chunk, as large as all previous chunks together (within the size limits).
+         *
+         * @param first The index of the first entry of the chunk.
+         */
+        Chunk(int first)
+        {
+            this.first = first;
+            int size = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, first));
+            userIds = new int[size];
+            amounts = new int[size];
+            sequences = new int[size];
+        }
+
+        /**
+         * Returns the index after the last entry of the chunk.
+         *
+         * @return The end index.
+         */
+        int end()
+        {
+            return first + sequences.length;
+        }
+    }
+
+    /**
+     * The first chunk; created with the first entry, so empty histories stay small.
+     */
+    private final AtomicReference<Chunk> _head = new AtomicReference<>();
+
+    /**
+     * A recently used chunk, where searches start if possible.
+     */
+    private volatile Chunk _tail;
+
+    /**
+     * The number of reserved entries.
+     */
+    private final AtomicInteger _reserved = new AtomicInteger();
+
+    /**
+     * Appends an entry.
+     *
+     * @param userId The ID of the other user.
+     * @param amount The amount of money received (positive) or sent (negative).
+     */
+    public void append(int userId, int amount)
+    {
+        int index = _reserved.getAndIncrement();
+        Chunk chunk = findChunk(index, true);
+        int offset = index - chunk.first;
+        chunk.userIds[offset] = userId;
+        chunk.amounts[offset] = amount;
+        SEQUENCES.setRelease(chunk.sequences, offset, index + 1);
+    }
+
+    /**
+     * Returns whether no entry has been appended yet.
+     *
+     * @return Whether the log is empty.
+     */
+    public boolean isEmpty()
+    {
+        return _head.get() == null;
+    }
+
+    /**
+     * Passes published entries to the given visitor, in chronological order.
+     *
+     * @param from     The index of the first entry to visit.
+     * @param maxCount The maximum number of visited entries.
+     * @param visitor  Receives the entries.
+     * @return The index after the last visited entry.
+     */
+    public int forEach(int from, int maxCount, Visitor visitor)
+    {
+        int index = from;
+        Chunk chunk = from < 0 ? null : findChunk(from, false);
+        while (chunk != null && index - from < maxCount)
+        {
+            int offset = index - chunk.first;
+            if ((int) SEQUENCES.getAcquire(chunk.sequences, offset) == 0)
+                break;
+            visitor.visit(chunk.userIds[offset], chunk.amounts[offset]);
+            if (++index == chunk.end())
+                chunk = chunk.next.get();
+        }
+        return index;
+    }
+
+    /**
+     * Copies published entries into the given list, in chronological order.
+     *
+     * @param from     The index of the first entry to copy.
+     * @param maxCount The maximum number of copied entries.
+     * @param target   The list the entries are appended to, as pairs of the other user's ID and the amount.
+     * @return The index after the last copied entry.
+     */
+    public int read(int from, int maxCount, List<Tuple<Integer, Integer>> target)
+    {
+        return forEach(from, maxCount, (userId, amount) -> target.add(new Tuple<>(userId, amount)));
+    }
+
+    /**
+     * Returns the chunk containing the given entry index.
+     *
+     * @param index  The entry index.
+     * @param create Determines whether missing chunks are created.
+     * @return The chunk, or null if it does not exist and create is false.
+     */
+    private Chunk findChunk(int index, boolean create)
+    {
+        // Start at the recently used chunk, if it is not behind the index
+        Chunk chunk = _tail;
+        if (chunk == null || chunk.first > index)
+        {
+            chunk = _head.get();
+            if (chunk == null)
+            {
+                if (!create)
+                    return null;
+                _head.compareAndSet(null, new Chunk(0));
+                chunk = _head.get();
+            }
+        }
+
+        // Walk to the chunk; concurrent writers may race to create the next one, only one of them wins
+        while (index >= chunk.end())
+        {
+            Chunk next = chunk.next.get();
+            if (next == null)
+            {
+                if (!create)
+                    return null;
+                chunk.next.compareAndSet(null, new Chunk(chunk.end()));
+                next = chunk.next.get();
+            }
+            chunk = next;
+        }
+
+        // The hint may move backwards when writers race, which only costs a longer walk later
+        if (create)
+            _tail = chunk;
+        return chunk;
+    }
+}
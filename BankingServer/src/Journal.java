@@ -0,0 +1,887 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of all account changes (transfers and new devices), so they survive a restart.
+ * The record of a transfer is appended while the account engine applies it (see AccountEngine.TransferRecorder),
+ * so the records are in the order the transfers became visible, and every prefix of the journal replays without
+ * overdrawing an account. The calling session waits for the future of its record, which completes when the record is written (and, depending on the fsync policy, forced to disk), before it
+ * acknowledges the change to the client. Event loops are not blocked meanwhile (see SessionDriver.await()).
+ * <p>
+ * Records of concurrent sessions are collected by one journal thread and written in one batch, with one force()
+ * per batch (group commit). The thread waits for the configured batching window after the first record of a
+ * batch, so more records can join it. fsync policies:
+ * <ul>
+ *     <li>always: every batch is forced before the sessions continue (default),</li>
+ *     <li>interval: batches are forced every fsync interval; a crash may lose the changes of the last interval,</li>
+ *     <li>none: the operating system decides when data reaches the disk.</li>
+ * </ul>
+ * Records are laid out as "&lt;int body length&gt;&lt;int CRC32 of body&gt;&lt;body&gt;", the body as
+ * "&lt;byte type&gt;&lt;long sequence&gt;&lt;data&gt;". A torn record at the end of the file (crash during a
+ * write) is detected by its length or checksum and cut off when the journal is opened.
+ * <p>
+ * The journal is fail-stop: if a batch cannot be written or forced, the futures of its records and all later
+ * appends fail with an IOException, so no change is acknowledged that may not be on disk. The changes of the failed
+ * records stay applied in memory until a restart, which replays the valid records.
+ * <p>
+ * Records carry increasing sequence numbers. To keep the journal short, it can be rotated: the current file is
+ * renamed to "&lt;file&gt;.old", to be merged into a snapshot (see Snapshotter) and deleted afterwards.
+ * This class is thread safe.
+ */
+public class Journal implements Closeable
+{
+    /**
+     * Receives the records of the journal when it is replayed.
+     */
+    public interface Handler
+    {
+        /**
+         * Replays a transfer.
+         *
+         * @param sequence     The record sequence.
+         * @param sourceUserId The ID of the user where the money comes from.
+         * @param targetUserId The ID of the user where the money is sent to.
+         * @param amount       The amount of money.
+         */
+        void transfer(long sequence, int sourceUserId, int targetUserId, int amount);
+
+        /**
+         * Replays a new device.
+         *
+         * @param sequence   The record sequence.
+         * @param userId     The user ID.
+         * @param deviceCode The device code.
+         */
+        void addDevice(long sequence, int userId, String deviceCode);
+    }
+
+    /**
+     * fsync policy: force every batch.
+     */
+    public static final String FSYNC_ALWAYS = "always";
+
+    /**
+     * fsync policy: force periodically.
+     */
+    public static final String FSYNC_INTERVAL = "interval";
+
+    /**
+     * fsync policy: never force.
+     */
+    public static final String FSYNC_NONE = "none";
+
+    /**
+     * Record type: transfer.
+     */
+    private static final byte RECORD_TRANSFER = 1;
+
+    /**
+     * Record type: new device.
+     */
+    private static final byte RECORD_DEVICE = 2;
+
+    /**
+     * Size of the record header (body length and checksum).
+     */
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * Maximum size of a record body; larger lengths indicate a corrupted file.
+     */
+    private static final int MAX_BODY_SIZE = 1 << 16;
+
+    /**
+     * A record waiting to be written.
+     */
+    private static class Entry
+    {
+        /**
+         * The record type.
+         */
+        final byte type;
+
+        /**
+         * The record sequence.
+         */
+        final long sequence;
+
+        /**
+         * The (source) user ID.
+         */
+        final int userId;
+
+        /**
+         * The target user ID.
+         */
+        final int targetUserId;
+
+        /**
+         * The amount of money.
+         */
+        final int amount;
+
+        /**
+         * The device code.
+         */
+        final String deviceCode;
+
+        /**
+         * The time the record was created (as returned by System.nanoTime()).
+         */
+        final long created = System.nanoTime();
+
+        /**
+         * Completed when the record is committed, or exceptionally if the journal fails.
+         */
+        final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+        /**
+         * Creates a new entry.
+         *
+         * @param type         The record type.
+         * @param sequence     The record sequence.
+         * @param userId       The (source) user ID.
+         * @param targetUserId The target user ID.
+         * @param amount       The amount of money.
+         * @param deviceCode   The device code.
+         */
+        Entry(byte type, long sequence, int userId, int targetUserId, int amount, String deviceCode)
+        {
+            this.type = type;
+            this.sequence = sequence;
+            this.userId = userId;
+            this.targetUserId = targetUserId;
+            this.amount = amount;
+            this.deviceCode = deviceCode;
+        }
+    }
+
+    /**
+     * The journal file.
+     */
+    private final Path _file;
+
+    /**
+     * The rotated journal file, whose records are not contained in a snapshot yet.
+     */
+    private final Path _rotatedFile;
+
+    /**
+     * The channel of the journal file.
+     */
+    private FileChannel _channel;
+
+    /**
+     * Time the journal thread waits for further records after the first record of a batch, in nanoseconds.
+     */
+    private final long _batchWindowNanos;
+
+    /**
+     * The fsync policy.
+     */
+    private final String _fsyncPolicy;
+
+    /**
+     * Interval of the "interval" fsync policy, in nanoseconds.
+     */
+    private final long _fsyncIntervalNanos;
+
+    /**
+     * Protects the pending records and the sequence counters.
+     */
+    private final ReentrantLock _lock = new ReentrantLock();
+
+    /**
+     * Signaled when records are pending.
+     */
+    private final Condition _recordsPending = _lock.newCondition();
+
+    /**
+     * Signaled when a rotation has finished, or the journal has failed.
+     */
+    private final Condition _rotationFinished = _lock.newCondition();
+
+    /**
+     * Records waiting to be written.
+     */
+    private ArrayList<Entry> _pending = new ArrayList<>();
+
+    /**
+     * Records being written by the journal thread.
+     */
+    private ArrayList<Entry> _batch = new ArrayList<>();
+
+    /**
+     * The sequence of the next record.
+     */
+    private long _nextSequence = 0;
+
+    /**
+     * Determines whether the journal has been closed.
+     */
+    private volatile boolean _closed = false;
+
+    /**
+     * The error that stopped the journal, or null. Set once; afterwards no records are written.
+     */
+    private IOException _failure;
+
+    /**
+     * Determines whether the journal thread shall start a new file.
+     */
+    private boolean _rotationRequested = false;
+
+    /**
+     * The error of the last rotation, or null.
+     */
+    private IOException _rotationError;
+
+    /**
+     * The journal thread.
+     */
+    private Thread _journalThread;
+
+    /**
+     * Number of written records.
+     */
+    private final LongAdder _records = Metrics.counter("journal.records");
+
+    /**
+     * Number of written batches.
+     */
+    private final LongAdder _batches = Metrics.counter("journal.batches");
+
+    /**
+     * Number of force() calls.
+     */
+    private final LongAdder _forces = Metrics.counter("journal.forces");
+
+    /**
+     * Number of failed writes.
+     */
+    private final LongAdder _errors = Metrics.counter("journal.errors");
+
+    /**
+     * Time from creating a record until it is committed.
+     */
+    private final LatencyHistogram _commitLatency = new LatencyHistogram();
+
+    /**
+     * Creates a new journal. open() must be called before records are appended.
+     *
+     * @param file               The journal file; created if it does not exist.
+     * @param batchWindowMicros  Time the journal thread waits for further records of a batch, in microseconds.
+     * @param fsyncPolicy        The fsync policy: "always", "interval" or "none".
+     * @param fsyncIntervalMillis Interval of the "interval" fsync policy, in milliseconds.
+     */
+    public Journal(String file, long batchWindowMicros, String fsyncPolicy, long fsyncIntervalMillis)
+    {
+        _file = Paths.get(file);
+        _rotatedFile = Paths.get(file + ".old");
+        _batchWindowNanos = Math.max(0, batchWindowMicros) * 1000;
+        _fsyncPolicy = fsyncPolicy.toLowerCase();
+        _fsyncIntervalNanos = Math.max(1, fsyncIntervalMillis) * 1_000_000;
+
+        _commitLatency.registerGauges("journal.commit-micros");
+        Metrics.gauge("journal.pending", this::getPendingCount);
+    }
+
+    /**
+     * Creates the journal configured by the given command line options.
+     *
+     * @param options The command line options.
+     * @return The configured journal, or null if no journal file is given.
+     */
+    public static Journal fromOptions(CommandLineOptions options)
+    {
+        String file = options.getString("journal", null);
+        if (file == null)
+            return null;
+        return new Journal(file,
+                options.getLong("journal-batch-window", 200),
+                options.getString("journal-fsync", FSYNC_ALWAYS),
+                options.getLong("journal-fsync-interval", 100));
+    }
+
+    /**
+     * Returns whether the given fsync policy is known.
+     *
+     * @param fsyncPolicy The fsync policy.
+     * @return Whether the fsync policy is known.
+     */
+    public static boolean isValidFsyncPolicy(String fsyncPolicy)
+    {
+        return fsyncPolicy.equalsIgnoreCase(FSYNC_ALWAYS) || fsyncPolicy.equalsIgnoreCase(FSYNC_INTERVAL) || fsyncPolicy.equalsIgnoreCase(FSYNC_NONE);
+    }
+
+    /**
+     * Replays the records of the journal (first those of a rotated file that has not been merged into a snapshot
+     * yet), cuts off a torn record at its end, and starts the journal thread.
+     *
+     * @param handler       Receives the records, or null to skip them.
+     * @param afterSequence Only records with a larger sequence are replayed, as the older ones are contained in
+     *                      the loaded snapshot; -1 to replay all. New records get larger sequences as well.
+     * @return The number of replayed (or, without handler, skipped) records.
+     */
+    public long open(Handler handler, long afterSequence) throws IOException
+    {
+        long[] count = new long[1];
+        Handler replayHandler = new Handler()
+        {
+            @Override
+            public void transfer(long sequence, int sourceUserId, int targetUserId, int amount)
+            {
+                _nextSequence = Math.max(_nextSequence, sequence + 1);
+                if (sequence <= afterSequence)
+                    return;
+                if (handler != null)
+                    handler.transfer(sequence, sourceUserId, targetUserId, amount);
+                ++count[0];
+            }
+
+            @Override
+            public void addDevice(long sequence, int userId, String deviceCode)
+            {
+                _nextSequence = Math.max(_nextSequence, sequence + 1);
+                if (sequence <= afterSequence)
+                    return;
+                if (handler != null)
+                    handler.addDevice(sequence, userId, deviceCode);
+                ++count[0];
+            }
+        };
+        _nextSequence = afterSequence + 1;
+
+        // Rotated file
+        if (Files.exists(_rotatedFile))
+            try (FileChannel channel = FileChannel.open(_rotatedFile, StandardOpenOption.READ))
+            {
+                read(channel, replayHandler);
+            }
+
+        // Current file
+        _channel = FileChannel.open(_file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long position = read(_channel, replayHandler);
+
+        // Cut off torn record
+        if (position < _channel.size())
+        {
+            Utility.safePrintln("Journal '" + _file + "': cutting off " + (_channel.size() - position) + " bytes of incomplete records.");
+            _channel.truncate(position);
+            _channel.force(true);
+        }
+        _channel.position(position);
+
+        _journalThread = new Thread(this::runJournal, "journal");
+        _journalThread.setDaemon(true);
+        _journalThread.start();
+        return count[0];
+    }
+
+    /**
+     * Reads the records of the given journal file, until its end or until the first broken record.
+     *
+     * @param channel The journal file.
+     * @param handler Receives the records.
+     * @return The position after the last valid record.
+     */
+    public static long read(FileChannel channel, Handler handler) throws IOException
+    {
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        ByteBuffer body = ByteBuffer.allocate(MAX_BODY_SIZE);
+        CRC32 crc = new CRC32();
+        while (true)
+        {
+            header.clear();
+            if (readFully(channel, header, position) < HEADER_SIZE)
+                break;
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length <= 0 || length > MAX_BODY_SIZE)
+                break;
+            body.clear().limit(length);
+            if (readFully(channel, body, position + HEADER_SIZE) < length)
+                break;
+            body.flip();
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != checksum)
+                break;
+
+            // Decode record
+            byte type = body.get();
+            long sequence = body.getLong();
+            if (type == RECORD_TRANSFER)
+                handler.transfer(sequence, body.getInt(), body.getInt(), body.getInt());
+            else if (type == RECORD_DEVICE)
+            {
+                int userId = body.getInt();
+                byte[] deviceCode = new byte[body.getShort() & 0xFFFF];
+                body.get(deviceCode);
+                handler.addDevice(sequence, userId, new String(deviceCode, StandardCharsets.UTF_8));
+            }
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    /**
+     * Starts a new journal file: the current file is renamed to the rotated file name, so its records can be
+     * merged into a snapshot and then deleted. Does nothing if the rotated file of the last rotation still exists.
+     *
+     * @return Whether the journal was rotated.
+     */
+    public boolean rotate() throws IOException
+    {
+        _lock.lock();
+        try
+        {
+            if (_closed || _failure != null || Files.exists(_rotatedFile))
+                return false;
+            _rotationRequested = true;
+            _recordsPending.signal();
+            while (_rotationRequested && !_closed && _failure == null)
+                _rotationFinished.awaitUninterruptibly();
+            if (_failure != null)
+                throw new IOException("Journal has failed.", _failure);
+            if (_rotationError != null)
+            {
+                IOException error = _rotationError;
+                _rotationError = null;
+                throw error;
+            }
+            return !_rotationRequested;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the name of the rotated journal file.
+     *
+     * @return The name of the rotated journal file.
+     */
+    public Path getRotatedFile()
+    {
+        return _rotatedFile;
+    }
+
+    /**
+     * Returns whether the journal has failed, so further changes cannot be made durable.
+     *
+     * @return Whether the journal has failed.
+     */
+    public boolean hasFailed()
+    {
+        _lock.lock();
+        try
+        {
+            return _failure != null;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Journals a transfer.
+     *
+     * @param sourceUserId The ID of the user where the money comes from.
+     * @param targetUserId The ID of the user where the money is sent to.
+     * @param amount       The amount of money.
+     * @return Completed when the record is committed, or exceptionally if the journal fails meanwhile.
+     * @throws IOException If the journal is closed or has failed, so the record is not durable.
+     */
+    public CompletableFuture<Void> appendTransfer(int sourceUserId, int targetUserId, int amount) throws IOException
+    {
+        return append(RECORD_TRANSFER, sourceUserId, targetUserId, amount, null);
+    }
+
+    /**
+     * Journals a new device.
+     *
+     * @param userId     The user ID.
+     * @param deviceCode The device code.
+     * @return Completed when the record is committed, or exceptionally if the journal fails meanwhile.
+     * @throws IOException If the journal is closed or has failed, so the record is not durable.
+     */
+    public CompletableFuture<Void> appendDevice(int userId, String deviceCode) throws IOException
+    {
+        return append(RECORD_DEVICE, userId, -1, 0, deviceCode);
+    }
+
+    /**
+     * Returns the commit latency histogram.
+     *
+     * @return The commit latency histogram.
+     */
+    public LatencyHistogram getCommitLatency()
+    {
+        return _commitLatency;
+    }
+
+    /**
+     * Writes all pending records, forces the file and stops the journal thread.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        _lock.lock();
+        try
+        {
+            _closed = true;
+            _recordsPending.signalAll();
+            _rotationFinished.signalAll();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+        try
+        {
+            if (_journalThread != null)
+                _journalThread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        if (_channel != null)
+        {
+            _channel.force(true);
+            _channel.close();
+        }
+    }
+
+    /**
+     * Queues a record.
+     *
+     * @param type         The record type.
+     * @param userId       The (source) user ID.
+     * @param targetUserId The target user ID.
+     * @param amount       The amount of money.
+     * @param deviceCode   The device code.
+     * @return Completed when the record is committed, or exceptionally if the journal fails meanwhile.
+     * @throws IOException If the journal is closed or has failed, so the record is not durable.
+     */
+    private CompletableFuture<Void> append(byte type, int userId, int targetUserId, int amount, String deviceCode) throws IOException
+    {
+        _lock.lock();
+        try
+        {
+            if (_failure != null)
+                throw new IOException("Journal has failed.", _failure);
+            if (_closed)
+                throw new IOException("Journal is closed.");
+            Entry entry = new Entry(type, _nextSequence++, userId, targetUserId, amount, deviceCode);
+            _pending.add(entry);
+            if (_pending.size() == 1)
+                _recordsPending.signal();
+
+            // After close() the remaining records are still written
+            return entry.committed;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * The journal thread entry point: writes the pending records in batches, and stops the journal if that fails
+     * unexpectedly, so no session waits forever.
+     */
+    private void runJournal()
+    {
+        try
+        {
+            writeBatches();
+        }
+        catch (RuntimeException | Error e)
+        {
+            e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+            fail(new IOException("Journal thread failed.", e));
+        }
+    }
+
+    /**
+     * Writes the pending records in batches, until the journal is closed or fails.
+     */
+    private void writeBatches()
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        CRC32 crc = new CRC32();
+        long lastForce = System.nanoTime();
+        boolean unforced = false;
+        while (true)
+        {
+            _lock.lock();
+            try
+            {
+                // Wait for records; with the interval policy, wake up to force written records in time
+                while (_pending.isEmpty() && !_closed && !_rotationRequested)
+                {
+                    if (unforced)
+                    {
+                        long remaining = _fsyncIntervalNanos - (System.nanoTime() - lastForce);
+                        if (remaining <= 0)
+                            break;
+                        _recordsPending.awaitNanos(remaining);
+                    }
+                    else
+                        _recordsPending.awaitUninterruptibly();
+                }
+                if (_pending.isEmpty() && _closed)
+                    return;
+            }
+            catch (InterruptedException e)
+            {
+                continue;
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+
+            // Give further records the chance to join the batch
+            if (_batchWindowNanos > 0 && !_closed)
+                LockSupport.parkNanos(_batchWindowNanos);
+
+            _lock.lock();
+            try
+            {
+                _batch = _pending;
+                _pending = new ArrayList<>();
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+
+            try
+            {
+                // Write batch
+                for (Entry entry : _batch)
+                {
+                    if (buffer.remaining() < HEADER_SIZE + 32 + 3 * (entry.deviceCode == null ? 0 : entry.deviceCode.length()))
+                        buffer = flush(buffer);
+                    encode(entry, buffer, crc);
+                }
+                flush(buffer);
+
+                // Force according to the policy
+                long now = System.nanoTime();
+                unforced |= !_batch.isEmpty() && !_fsyncPolicy.equals(FSYNC_NONE);
+                if (unforced && (_fsyncPolicy.equals(FSYNC_ALWAYS) || (_fsyncPolicy.equals(FSYNC_INTERVAL) && now - lastForce >= _fsyncIntervalNanos)))
+                {
+                    _channel.force(false);
+                    _forces.increment();
+                    lastForce = now;
+                    unforced = false;
+                }
+            }
+            catch (IOException e)
+            {
+                // The batch may be partly written; stop, so no further change is acknowledged
+                e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+                fail(e);
+                return;
+            }
+
+            // Start a new file between two batches
+            if (_rotationRequested && !rotateFile())
+                return;
+
+            // Release the waiting sessions
+            if (_batch.isEmpty())
+                continue;
+            long now = System.nanoTime();
+            for (Entry entry : _batch)
+            {
+                _commitLatency.record((now - entry.created) / 1000);
+                entry.committed.complete(null);
+            }
+            _records.add(_batch.size());
+            _batches.increment();
+            _batch = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Stops the journal after the given error: the records being written and waiting, and all later appends fail.
+     * Called by the journal thread.
+     *
+     * @param error The error.
+     */
+    private void fail(IOException error)
+    {
+        _errors.increment();
+        ArrayList<Entry> failed = new ArrayList<>(_batch);
+        _lock.lock();
+        try
+        {
+            if (_failure == null)
+                _failure = error;
+            failed.addAll(_pending);
+            _pending.clear();
+            _rotationFinished.signalAll();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+        for (Entry entry : failed)
+            entry.committed.completeExceptionally(error);
+    }
+
+    /**
+     * Renames the current journal file to the rotated file name and opens a new one. Called by the journal thread.
+     *
+     * @return Whether a journal file is open afterwards; else the journal has failed.
+     */
+    private boolean rotateFile()
+    {
+        IOException error = null;
+        try
+        {
+            _channel.force(true);
+            _channel.close();
+            Files.move(_file, _rotatedFile, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            error = e;
+        }
+        try
+        {
+            // Continue the old file if it could not be renamed
+            _channel = FileChannel.open(_file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            _channel.position(_channel.size());
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+            fail(e);
+            return false;
+        }
+
+        _lock.lock();
+        try
+        {
+            _rotationError = error;
+            _rotationRequested = false;
+            _rotationFinished.signalAll();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Encodes the given record into the given buffer.
+     *
+     * @param entry  The record.
+     * @param buffer The buffer, with enough space for the record.
+     * @param crc    The checksum calculator.
+     */
+    private static void encode(Entry entry, ByteBuffer buffer, CRC32 crc)
+    {
+        // Write body after the header, then fill in the header
+        int start = buffer.position();
+        buffer.position(start + HEADER_SIZE);
+        buffer.put(entry.type);
+        buffer.putLong(entry.sequence);
+        buffer.putInt(entry.userId);
+        if (entry.type == RECORD_TRANSFER)
+        {
+            buffer.putInt(entry.targetUserId);
+            buffer.putInt(entry.amount);
+        }
+        else
+        {
+            byte[] deviceCode = entry.deviceCode.getBytes(StandardCharsets.UTF_8);
+            buffer.putShort((short) deviceCode.length);
+            buffer.put(deviceCode);
+        }
+        int end = buffer.position();
+        crc.reset();
+        crc.update(buffer.duplicate().position(start + HEADER_SIZE).limit(end));
+        buffer.putInt(start, end - start - HEADER_SIZE);
+        buffer.putInt(start + 4, (int) crc.getValue());
+    }
+
+    /**
+     * Writes the content of the given buffer to the journal file.
+     *
+     * @param buffer The buffer.
+     * @return The cleared buffer.
+     */
+    private ByteBuffer flush(ByteBuffer buffer) throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            _channel.write(buffer);
+        return buffer.clear();
+    }
+
+    /**
+     * Reads from the given journal file until the buffer is full or the file ends.
+     *
+     * @param channel  The journal file.
+     * @param buffer   The buffer.
+     * @param position The file position.
+     * @return The number of read bytes.
+     */
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        int total = 0;
+        while (buffer.hasRemaining())
+        {
+            int read = channel.read(buffer, position + total);
+            if (read < 0)
+                break;
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of records waiting to be written.
+     *
+     * @return The number of records waiting to be written.
+     */
+    private long getPendingCount()
+    {
+        _lock.lock();
+        try
+        {
+            return _pending.size();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+}
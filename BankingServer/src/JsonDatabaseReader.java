@@ -0,0 +1,140 @@
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.stream.JsonParser;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Base64;
+
+/**
+ * Reads a JSON database file with the streaming parser: only the object of the current user is held in memory.
+ */
+public class JsonDatabaseReader implements DatabaseReader
+{
+    /**
+     * The input stream.
+     */
+    private final InputStream _inputStream;
+
+    /**
+     * The streaming parser.
+     */
+    private final JsonParser _parser;
+
+    /**
+     * Determines whether the parser is inside the users array.
+     */
+    private boolean _inUsers = false;
+
+    /**
+     * The sequence of the last contained journal record.
+     */
+    private long _journalSequence = -1;
+
+    /**
+     * The encoded RSA private key.
+     */
+    private byte[] _privateKey;
+
+    /**
+     * The encoded X25519 private key.
+     */
+    private byte[] _agreementPrivateKey;
+
+    /**
+     * Opens the given JSON database file.
+     *
+     * @param file The database file.
+     */
+    public JsonDatabaseReader(String file) throws IOException
+    {
+        _inputStream = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        _parser = Json.createParser(_inputStream);
+        if (!_parser.hasNext() || _parser.next() != JsonParser.Event.START_OBJECT)
+        {
+            close();
+            throw new IOException("Invalid database file '" + file + "'.");
+        }
+    }
+
+    @Override
+    public UserData next() throws IOException
+    {
+        JsonObject userDataObj = nextObject();
+        return userDataObj == null ? null : new UserData(userDataObj);
+    }
+
+    /**
+     * Reads the JSON object of the next user, without converting it. Used by loaders that build the users on other
+     * threads.
+     *
+     * @return The object of the next user, or null if all users have been read.
+     */
+    public JsonObject nextObject() throws IOException
+    {
+        try
+        {
+            // Continue the users array
+            if (_inUsers)
+            {
+                if (_parser.next() == JsonParser.Event.START_OBJECT)
+                    return _parser.getObject();
+                _inUsers = false;
+            }
+
+            // Read root entries until the users array starts, or the root object ends
+            while (_parser.next() == JsonParser.Event.KEY_NAME)
+            {
+                String key = _parser.getString();
+                JsonParser.Event event = _parser.next();
+                if (key.equals("users") && event == JsonParser.Event.START_ARRAY)
+                {
+                    _inUsers = true;
+                    return nextObject();
+                }
+                else if (key.equals("journalSequence"))
+                    _journalSequence = _parser.getLong();
+                else if (key.equals("pK"))
+                    _privateKey = Base64.getDecoder().decode(_parser.getString());
+                else if (key.equals("xK"))
+                    _agreementPrivateKey = Base64.getDecoder().decode(_parser.getString());
+                else if (event == JsonParser.Event.START_OBJECT)
+                    _parser.skipObject();
+                else if (event == JsonParser.Event.START_ARRAY)
+                    _parser.skipArray();
+            }
+            return null;
+        }
+        catch (RuntimeException e)
+        {
+            // The parser reports syntax errors with unchecked exceptions
+            throw new IOException("Invalid database file: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public long getJournalSequence()
+    {
+        return _journalSequence;
+    }
+
+    @Override
+    public byte[] getPrivateKey()
+    {
+        return _privateKey;
+    }
+
+    @Override
+    public byte[] getAgreementPrivateKey()
+    {
+        return _agreementPrivateKey;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        _parser.close();
+        _inputStream.close();
+    }
+}
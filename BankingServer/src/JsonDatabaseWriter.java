@@ -0,0 +1,71 @@
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+
+/**
+ * Writes a JSON database file with the streaming generator. The journal sequence is written before the users,
+ * so a streaming reader knows it when reading them.
+ */
+public class JsonDatabaseWriter implements DatabaseWriter
+{
+    /**
+     * The output stream.
+     */
+    private final FileOutputStream _outputStream;
+
+    /**
+     * The streaming generator.
+     */
+    private final JsonGenerator _generator;
+
+    /**
+     * Creates a new JSON database file.
+     *
+     * @param file            The database file.
+     * @param journalSequence The sequence of the last journal record contained in the file, or -1.
+     */
+    public JsonDatabaseWriter(String file, long journalSequence) throws IOException
+    {
+        _outputStream = new FileOutputStream(file);
+        _generator = Json.createGenerator(new BufferedOutputStream(_outputStream, 1 << 16));
+        _generator.writeStartObject();
+        if (journalSequence >= 0)
+            _generator.write("journalSequence", journalSequence);
+        _generator.writeStartArray("users");
+    }
+
+    @Override
+    public void write(UserData user)
+    {
+        _generator.write(user.toJson());
+    }
+
+    @Override
+    public void finish(byte[] privateKey, byte[] agreementPrivateKey) throws IOException
+    {
+        _generator.writeEnd();
+        _generator.write("pK", Base64.getEncoder().encodeToString(privateKey));
+        if (agreementPrivateKey != null)
+            _generator.write("xK", Base64.getEncoder().encodeToString(agreementPrivateKey));
+        _generator.writeEnd();
+        _generator.flush();
+        _outputStream.getFD().sync();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            _generator.close();
+        }
+        catch (RuntimeException e)
+        {
+            // Unfinished file: the generator refuses to close incomplete JSON
+            _outputStream.close();
+        }
+    }
+}
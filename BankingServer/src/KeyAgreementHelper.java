@@ -0,0 +1,137 @@
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Class for the X25519 key agreement, a cheaper alternative to transmitting the session key with RSA.
+ * <p>
+ * The server has a static X25519 key pair, whose public key is shipped in the client configuration.
+ * The client sends an ephemeral public key, the server answers with its own ephemeral public key, and
+ * both derive the session key from DH(client ephemeral, server static) and DH(client ephemeral, server
+ * ephemeral). Only the owner of the static private key can compute the first value, which binds the
+ * handshake to the server key; the second value gives forward secrecy. Public keys are transmitted in
+ * their X.509 encoding.
+ */
+public class KeyAgreementHelper
+{
+    /**
+     * The key agreement algorithm.
+     */
+    private static final String ALGORITHM = "X25519";
+
+    /**
+     * Label of the session key derivation.
+     */
+    private static final byte[] SESSION_KEY_LABEL = "X25519 session key".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Size of the derived AES session key in bytes.
+     */
+    private static final int SESSION_KEY_SIZE = 16;
+
+    /**
+     * Generates a new X25519 key pair.
+     *
+     * @return The key pair.
+     */
+    public static KeyPair generateKeyPair() throws GeneralSecurityException
+    {
+        return KeyPairGenerator.getInstance(ALGORITHM).generateKeyPair();
+    }
+
+    /**
+     * Converts an encoded public key back to a key object.
+     *
+     * @param encodedKey The X.509 encoded public key.
+     * @return The public key.
+     */
+    public static PublicKey decodePublicKey(byte[] encodedKey) throws InvalidKeySpecException, NoSuchAlgorithmException
+    {
+        return KeyFactory.getInstance(ALGORITHM).generatePublic(new X509EncodedKeySpec(encodedKey));
+    }
+
+    /**
+     * Converts a Base64 string (see GenerateKeys.publicKeyToString) to a public key.
+     *
+     * @param keyString The Base64 encoded public key.
+     * @return The public key.
+     */
+    public static PublicKey stringToPublicKey(String keyString) throws InvalidKeySpecException, NoSuchAlgorithmException
+    {
+        return decodePublicKey(Base64.getDecoder().decode(keyString));
+    }
+
+    /**
+     * Converts a Base64 string (see GenerateKeys.privateKeyToString) to a private key.
+     *
+     * @param keyString The Base64 encoded private key.
+     * @return The private key.
+     */
+    public static PrivateKey stringToPrivateKey(String keyString) throws InvalidKeySpecException, NoSuchAlgorithmException
+    {
+        return decodePrivateKey(Base64.getDecoder().decode(keyString));
+    }
+
+    /**
+     * Converts a PKCS#8 encoded private key back to a key object.
+     *
+     * @param encodedKey The PKCS#8 encoded private key.
+     * @return The private key.
+     */
+    public static PrivateKey decodePrivateKey(byte[] encodedKey) throws InvalidKeySpecException, NoSuchAlgorithmException
+    {
+        return KeyFactory.getInstance(ALGORITHM).generatePrivate(new PKCS8EncodedKeySpec(encodedKey));
+    }
+
+    /**
+     * Computes the shared secret of the given keys.
+     *
+     * @param privateKey The own private key.
+     * @param publicKey  The public key of the other side.
+     * @return The shared secret.
+     */
+    public static byte[] agree(PrivateKey privateKey, PublicKey publicKey) throws GeneralSecurityException
+    {
+        KeyAgreement keyAgreement = KeyAgreement.getInstance(ALGORITHM);
+        keyAgreement.init(privateKey);
+        keyAgreement.doPhase(publicKey, true);
+        return keyAgreement.generateSecret();
+    }
+
+    /**
+     * Derives the AES session key: HMAC-SHA256(static secret || ephemeral secret, label || client key || server key),
+     * truncated to 128 bits. The public keys bind the session key to the transcript.
+     *
+     * @param staticSecret     DH(client ephemeral, server static).
+     * @param ephemeralSecret  DH(client ephemeral, server ephemeral).
+     * @param clientPublicKey  The encoded ephemeral public key of the client.
+     * @param serverPublicKey  The encoded ephemeral public key of the server.
+     * @return The session key.
+     */
+    public static SecretKey deriveSessionKey(byte[] staticSecret, byte[] ephemeralSecret, byte[] clientPublicKey, byte[] serverPublicKey) throws GeneralSecurityException
+    {
+        byte[] secret = Arrays.copyOf(staticSecret, staticSecret.length + ephemeralSecret.length);
+        System.arraycopy(ephemeralSecret, 0, secret, staticSecret.length, ephemeralSecret.length);
+
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+        mac.update(SESSION_KEY_LABEL);
+        mac.update(clientPublicKey);
+        mac.update(serverPublicKey);
+        return new SecretKeySpec(Arrays.copyOf(mac.doFinal(), SESSION_KEY_SIZE), "AES");
+    }
+}
@@ -0,0 +1,151 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in microseconds, for percentiles of latencies. Values are counted in buckets that grow
+ * exponentially, with four buckets per power of two, so the reported percentiles are accurate to about 20%.
+ * This class is thread safe; recording does not allocate or lock.
+ */
+public class LatencyHistogram
+{
+    /**
+     * Number of buckets per power of two.
+     */
+    private static final int SUB_BUCKETS = 4;
+
+    /**
+     * Number of buckets, enough for any long value.
+     */
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    /**
+     * The number of values per bucket.
+     */
+    private final AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+
+    /**
+     * The number of recorded values.
+     */
+    private final LongAdder _count = new LongAdder();
+
+    /**
+     * The largest recorded value.
+     */
+    private volatile long _max = 0;
+
+    /**
+     * Records a duration.
+     *
+     * @param micros The duration in microseconds.
+     */
+    public void record(long micros)
+    {
+        _buckets.incrementAndGet(getBucket(Math.max(0, micros)));
+        _count.increment();
+        if (micros > _max)
+            _max = micros;
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return The number of recorded values.
+     */
+    public long getCount()
+    {
+        return _count.sum();
+    }
+
+    /**
+     * Returns the largest recorded value.
+     *
+     * @return The largest recorded value, in microseconds.
+     */
+    public long getMax()
+    {
+        return _max;
+    }
+
+    /**
+     * Returns the given percentile of the recorded values (the upper bound of the bucket containing it).
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The percentile in microseconds, or 0 if no values have been recorded.
+     */
+    public long getPercentile(double percentile)
+    {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i)
+            total += counts[i] = _buckets.get(i);
+        if (total == 0)
+            return 0;
+
+        // Find the bucket containing the value at the requested rank
+        long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i)
+        {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank))
+                return Math.min(getUpperBound(i), _max);
+        }
+        return _max;
+    }
+
+    /**
+     * Registers gauges for the median, the 90th, 99th and 99.9th percentile and the maximum.
+     *
+     * @param name The metric name prefix.
+     */
+    public void registerGauges(String name)
+    {
+        Metrics.gauge(name + ".p50", () -> getPercentile(50));
+        Metrics.gauge(name + ".p90", () -> getPercentile(90));
+        Metrics.gauge(name + ".p99", () -> getPercentile(99));
+        Metrics.gauge(name + ".p999", () -> getPercentile(99.9));
+        Metrics.gauge(name + ".max", this::getMax);
+    }
+
+    /**
+     * Returns a one-line summary of the percentiles.
+     *
+     * @return A one-line summary of the percentiles.
+     */
+    public String summary()
+    {
+        return String.format("p50 %d us, p90 %d us, p99 %d us, p99.9 %d us, max %d us",
+                getPercentile(50), getPercentile(90), getPercentile(99), getPercentile(99.9), getMax());
+    }
+
+    /**
+     * Returns the bucket of the given value.
+     *
+     * @param value The (non-negative) value.
+     * @return The bucket index.
+     */
+    private static int getBucket(long value)
+    {
+        // Values below SUB_BUCKETS get their own bucket; above, the two bits after the leading one select the sub-bucket
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+        return (exponent - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the largest value of the given bucket.
+     *
+     * @param bucket The bucket index.
+     * @return The largest value of the bucket.
+     */
+    private static long getUpperBound(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - 2)) - 1;
+    }
+}
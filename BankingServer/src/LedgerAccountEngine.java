@@ -0,0 +1,418 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Account engine with a single writer: all changes of account data are executed by one ledger thread, so the
+ * account data needs no locks, and all transfers happen in one deterministic order (the command sequence).
+ * <p>
+ * Session threads publish commands into a pre-allocated ring buffer, in the style of the LMAX Disruptor: a
+ * publisher claims a sequence number, waits until the slot of that sequence has been released by its previous
+ * user, fills the slot and publishes it. The ledger thread executes all published commands it finds in one batch
+ * and marks each slot as completed; the publisher waits for its slot to be completed, reads the result and
+ * releases the slot. Waiting threads park, and are woken by the other side.
+ * <p>
+ * After close(), new commands are rejected (transfers and device checks fail, devices are not added). When the
+ * ledger thread stops, it rejects all commands that are published but not executed yet; commands published
+ * later are rejected by their publisher.
+ * <p>
+ * Balances are volatile and can be read directly; device lists are not thread safe, so device checks are
+ * executed by the ledger thread as well.
+ */
+public class LedgerAccountEngine implements AccountEngine
+{
+    /**
+     * Default number of ring slots.
+     */
+    public static final int DEFAULT_RING_SIZE = 1024;
+
+    /**
+     * Command type: transfer money.
+     */
+    private static final int COMMAND_TRANSFER = 0;
+
+    /**
+     * Command type: add a device.
+     */
+    private static final int COMMAND_ADD_DEVICE = 1;
+
+    /**
+     * Command type: check for a device.
+     */
+    private static final int COMMAND_HAS_DEVICE = 2;
+
+    /**
+     * A ring slot, holding one command and its result.
+     */
+    private static class Slot
+    {
+        /**
+         * The sequence of the command in this slot, set after the command has been written.
+         */
+        volatile long published;
+
+        /**
+         * The sequence of the last command executed in this slot, set after the result has been written.
+         */
+        volatile long completed = -1;
+
+        /**
+         * The sequence of the last command whose publisher has read the result, so the slot can be reused.
+         */
+        volatile long released;
+
+        /**
+         * The command type.
+         */
+        int type;
+
+        /**
+         * The ID of the (source) user.
+         */
+        int userId;
+
+        /**
+         * The (source) user.
+         */
+        UserData user;
+
+        /**
+         * The ID of the target user.
+         */
+        int targetUserId;
+
+        /**
+         * The target user.
+         */
+        UserData target;
+
+        /**
+         * The amount of money.
+         */
+        int amount;
+
+        /**
+         * The device code.
+         */
+        String deviceCode;
+
+        /**
+         * Records the transfer, or null.
+         */
+        TransferRecorder recorder;
+
+        /**
+         * The result of the command.
+         */
+        boolean result;
+
+        /**
+         * The publishing thread, woken when the command has been executed.
+         */
+        Thread publisher;
+
+        /**
+         * Creates a new slot.
+         *
+         * @param index The slot index.
+         * @param size  The ring size.
+         */
+        Slot(int index, int size)
+        {
+            // Sequence "index" may use the slot immediately
+            published = index - size;
+            released = index - size;
+        }
+    }
+
+    /**
+     * The ring slots.
+     */
+    private final Slot[] _ring;
+
+    /**
+     * Mask mapping sequences to slot indices.
+     */
+    private final int _mask;
+
+    /**
+     * The next sequence to be claimed by a publisher.
+     */
+    private final AtomicLong _claimed = new AtomicLong();
+
+    /**
+     * The number of executed commands; only written by the ledger thread.
+     */
+    private volatile long _executed = 0;
+
+    /**
+     * The ledger thread.
+     */
+    private final Thread _ledgerThread;
+
+    /**
+     * Determines whether the ledger thread is about to park, so publishers need to wake it.
+     */
+    private volatile boolean _ledgerSleeping = false;
+
+    /**
+     * Determines whether the engine has been closed.
+     */
+    private volatile boolean _closed = false;
+
+    /**
+     * Determines whether the ledger thread has stopped executing commands.
+     */
+    private volatile boolean _stopped = false;
+
+    /**
+     * Number of executed commands.
+     */
+    private final LongAdder _commands = Metrics.counter("ledger.commands");
+
+    /**
+     * Number of executed batches.
+     */
+    private final LongAdder _batches = Metrics.counter("ledger.batches");
+
+    /**
+     * Size of the largest batch so far.
+     */
+    private volatile long _maxBatchSize = 0;
+
+    /**
+     * Creates a new engine and starts its ledger thread.
+     *
+     * @param ringSize The number of ring slots; rounded up to a power of two.
+     */
+    public LedgerAccountEngine(int ringSize)
+    {
+        int size = Integer.highestOneBit(Math.max(2, ringSize - 1)) << 1;
+        _ring = new Slot[size];
+        for (int i = 0; i < size; ++i)
+            _ring[i] = new Slot(i, size);
+        _mask = size - 1;
+
+        _ledgerThread = new Thread(this::runLedger, "ledger");
+        _ledgerThread.setDaemon(true);
+        _ledgerThread.start();
+
+        Metrics.gauge("ledger.ring-occupancy", () -> _claimed.get() - _executed);
+        Metrics.gauge("ledger.batch-size.max", () -> _maxBatchSize);
+        Metrics.gauge("ledger.batch-size.avg", () -> _commands.sum() / Math.max(1, _batches.sum()));
+    }
+
+    @Override
+    public int getMoney(int userId, UserData user)
+    {
+        return user.getMoney();
+    }
+
+    @Override
+    public boolean transfer(int sourceUserId, UserData source, int targetUserId, UserData target, int amount, TransferRecorder recorder)
+    {
+        long sequence = claim();
+        if (sequence < 0)
+            return false;
+        Slot slot = _ring[(int) (sequence & _mask)];
+        slot.type = COMMAND_TRANSFER;
+        slot.userId = sourceUserId;
+        slot.user = source;
+        slot.targetUserId = targetUserId;
+        slot.target = target;
+        slot.amount = amount;
+        slot.recorder = recorder;
+        return publishAndWait(sequence, slot);
+    }
+
+    @Override
+    public void addDevice(int userId, UserData user, String deviceCode)
+    {
+        long sequence = claim();
+        if (sequence < 0)
+            return;
+        Slot slot = _ring[(int) (sequence & _mask)];
+        slot.type = COMMAND_ADD_DEVICE;
+        slot.userId = userId;
+        slot.user = user;
+        slot.deviceCode = deviceCode;
+        publishAndWait(sequence, slot);
+    }
+
+    @Override
+    public boolean hasDevice(int userId, UserData user, String deviceCode)
+    {
+        long sequence = claim();
+        if (sequence < 0)
+            return false;
+        Slot slot = _ring[(int) (sequence & _mask)];
+        slot.type = COMMAND_HAS_DEVICE;
+        slot.userId = userId;
+        slot.user = user;
+        slot.deviceCode = deviceCode;
+        return publishAndWait(sequence, slot);
+    }
+
+    @Override
+    public void close()
+    {
+        _closed = true;
+        LockSupport.unpark(_ledgerThread);
+    }
+
+    /**
+     * Claims the next sequence, and waits until its slot is free.
+     *
+     * @return The claimed sequence, or -1 if the engine has been closed.
+     */
+    private long claim()
+    {
+        if (_closed)
+            return -1;
+        long sequence = _claimed.getAndIncrement();
+        Slot slot = _ring[(int) (sequence & _mask)];
+        long previous = sequence - _ring.length;
+
+        // The ring is full: wait until the publisher of the previous round has taken its result. The slot has no
+        // single waiter to wake, so spin briefly, then park for short periods; this also lets the carrier of a
+        // virtual thread run the publisher being waited for.
+        for (int spins = 0; slot.released != previous; ++spins)
+        {
+            if (_closed)
+                return -1;
+            if (spins < 100)
+                Thread.onSpinWait();
+            else
+                LockSupport.parkNanos(this, 10_000);
+        }
+        return sequence;
+    }
+
+    /**
+     * Publishes the command in the given slot, and waits until the ledger thread has executed it.
+     *
+     * @param sequence The sequence of the command.
+     * @param slot     The slot containing the command.
+     * @return The result of the command.
+     */
+    private boolean publishAndWait(long sequence, Slot slot)
+    {
+        slot.publisher = Thread.currentThread();
+        slot.published = sequence;
+        if (_ledgerSleeping)
+            LockSupport.unpark(_ledgerThread);
+
+        // The ledger thread has stopped: it may have missed this command, so reject it
+        if (_stopped && slot.completed != sequence)
+        {
+            slot.result = false;
+            slot.completed = sequence;
+        }
+
+        // Wait for completion
+        while (slot.completed != sequence)
+            LockSupport.park(this);
+        boolean result = slot.result;
+
+        // Release slot
+        slot.user = null;
+        slot.target = null;
+        slot.deviceCode = null;
+        slot.recorder = null;
+        slot.publisher = null;
+        slot.released = sequence;
+        return result;
+    }
+
+    /**
+     * The ledger thread entry point: executes the published commands in sequence order.
+     */
+    private void runLedger()
+    {
+        long next = 0;
+        while (!_closed)
+        {
+            // Execute all consecutive published commands as one batch
+            int batchSize = 0;
+            Slot slot = _ring[(int) (next & _mask)];
+            while (slot.published == next)
+            {
+                execute(slot);
+                Thread publisher = slot.publisher;
+                slot.completed = next;
+                LockSupport.unpark(publisher);
+                ++next;
+                ++batchSize;
+                slot = _ring[(int) (next & _mask)];
+            }
+            if (batchSize > 0)
+            {
+                _executed = next;
+                _commands.add(batchSize);
+                _batches.increment();
+                if (batchSize > _maxBatchSize)
+                    _maxBatchSize = batchSize;
+                continue;
+            }
+
+            // Nothing to do: announce sleeping, check again to not miss a publisher, then park
+            _ledgerSleeping = true;
+            if (slot.published != next && !_closed)
+                LockSupport.park(this);
+            _ledgerSleeping = false;
+        }
+
+        // Reject the commands that were published but not executed; publishers check _stopped afterwards
+        _stopped = true;
+        for (Slot pending : _ring)
+        {
+            long published = pending.published;
+            if (published > pending.completed)
+            {
+                Thread publisher = pending.publisher;
+                pending.result = false;
+                pending.completed = published;
+                LockSupport.unpark(publisher);
+            }
+        }
+    }
+
+    /**
+     * Executes the command in the given slot, and stores its result.
+     *
+     * @param slot The slot.
+     */
+    private void execute(Slot slot)
+    {
+        try
+        {
+            switch (slot.type)
+            {
+                case COMMAND_TRANSFER ->
+                {
+                    // Test whether source user has enough money, record the transfer in command order, then send money
+                    slot.result = slot.user.getMoney() >= slot.amount
+                            && (slot.recorder == null || slot.recorder.record(slot.userId, slot.targetUserId, slot.amount));
+                    if (slot.result)
+                    {
+                        slot.user.changeMoney(slot.targetUserId, -slot.amount);
+                        slot.target.changeMoney(slot.userId, slot.amount);
+                    }
+                }
+                case COMMAND_ADD_DEVICE ->
+                {
+                    slot.user.addDevice(slot.deviceCode);
+                    slot.result = true;
+                }
+                case COMMAND_HAS_DEVICE -> slot.result = slot.user.hasDevice(slot.deviceCode);
+                default -> slot.result = false;
+            }
+        }
+        catch (RuntimeException e)
+        {
+            // Never let a broken command stop the ledger
+            e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+            slot.result = false;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Account engine without locks on the transfer path: the money is debited with a compare-and-set loop that
+ * checks for overdraft and retries on conflicts, then credited atomically; history entries go into the
+ * lock-free history logs. Between debit and credit the money is in flight, so a concurrent reader may see
+ * a total that is temporarily too low, but never an overdrawn account. The transfer is recorded between debit
+ * and credit; if that fails, the debit is undone.
+ * <p>
+ * Failed compare-and-set attempts count as contention of the account; credits of hot accounts are striped
+ * (see CreditCells), and collected by the next debit that needs them.
+ * <p>
+ * Device changes are rare, so they simply synchronize on the user.
+ */
+public class LockFreeAccountEngine implements AccountEngine
+{
+    @Override
+    public int getMoney(int userId, UserData user)
+    {
+        return user.getMoney();
+    }
+
+    @Override
+    public boolean transfer(int sourceUserId, UserData source, int targetUserId, UserData target, int amount, TransferRecorder recorder)
+    {
+        // Debit first, so money is never created
+        if (!source.tryWithdraw(amount))
+            return false;
+
+        // Record before the credit can be spent
+        if (recorder != null && !recorder.record(sourceUserId, targetUserId, amount))
+        {
+            source.deposit(amount);
+            return false;
+        }
+        source.addHistoryEntry(targetUserId, -amount);
+
+        // Credit
+        target.deposit(amount);
+        target.addHistoryEntry(sourceUserId, amount);
+        return true;
+    }
+
+    @Override
+    public void addDevice(int userId, UserData user, String deviceCode)
+    {
+        synchronized (user)
+        {
+            user.addDevice(deviceCode);
+        }
+    }
+
+    @Override
+    public boolean hasDevice(int userId, UserData user, String deviceCode)
+    {
+        synchronized (user)
+        {
+            return user.hasDevice(deviceCode);
+        }
+    }
+}
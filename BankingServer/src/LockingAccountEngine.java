@@ -0,0 +1,165 @@
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Account engine protecting the accounts with striped locks, so operations on unrelated accounts run in parallel.
+ * Account i is protected by stripe i mod LOCK_STRIPES. Transfers lock two stripes, always in ascending stripe
+ * order, so concurrent transfers can not deadlock. ReentrantLocks do not pin virtual threads while waiting,
+ * unlike synchronized blocks.
+ * <p>
+ * Credits of hot accounts are striped (see CreditCells) and need no lock, so a transfer to a hot account only
+ * locks the source. Failed attempts to take a lock immediately count as contention of the account that was
+ * being locked, which makes accounts hot automatically.
+ */
+public class LockingAccountEngine implements AccountEngine
+{
+    /**
+     * Number of account lock stripes (a power of two).
+     */
+    private static final int LOCK_STRIPES = 1024;
+
+    /**
+     * The account locks, protecting money, history and devices of the accounts mapped to them.
+     */
+    private final ReentrantLock[] _accountLocks = new ReentrantLock[LOCK_STRIPES];
+
+    /**
+     * Creates a new engine.
+     */
+    public LockingAccountEngine()
+    {
+        for (int i = 0; i < _accountLocks.length; ++i)
+            _accountLocks[i] = new ReentrantLock();
+    }
+
+    /**
+     * Returns the lock stripe protecting the given account.
+     *
+     * @param userId The user ID.
+     * @return The lock protecting the account.
+     */
+    private ReentrantLock getAccountLock(int userId)
+    {
+        return _accountLocks[userId & (LOCK_STRIPES - 1)];
+    }
+
+    @Override
+    public int getMoney(int userId, UserData user)
+    {
+        ReentrantLock lock = getAccountLock(userId);
+        lock.lock();
+        try
+        {
+            return user.getMoney();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean transfer(int sourceUserId, UserData source, int targetUserId, UserData target, int amount, TransferRecorder recorder)
+    {
+        // Credits of hot accounts need no lock
+        if (target.isStriped())
+        {
+            ReentrantLock lock = getAccountLock(sourceUserId);
+            lock(lock, source);
+            try
+            {
+                return sendMoney(sourceUserId, source, targetUserId, target, amount, recorder);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        // Lock both accounts in stripe order; a stripe locked twice is fine, as the locks are reentrant
+        int sourceStripe = sourceUserId & (LOCK_STRIPES - 1);
+        int targetStripe = targetUserId & (LOCK_STRIPES - 1);
+        ReentrantLock firstLock = _accountLocks[Math.min(sourceStripe, targetStripe)];
+        ReentrantLock secondLock = _accountLocks[Math.max(sourceStripe, targetStripe)];
+        lock(firstLock, sourceStripe < targetStripe ? source : target);
+        lock(secondLock, sourceStripe < targetStripe ? target : source);
+        try
+        {
+            return sendMoney(sourceUserId, source, targetUserId, target, amount, recorder);
+        }
+        finally
+        {
+            secondLock.unlock();
+            firstLock.unlock();
+        }
+    }
+
+    /**
+     * Sends money, if the source user has enough. The caller holds the necessary locks, so the transfer is
+     * recorded in the order in which the accounts are changed.
+     *
+     * @param sourceUserId The ID of the user where the money comes from.
+     * @param source       The user where the money comes from.
+     * @param targetUserId The ID of the user where the money is sent to.
+     * @param target       The user where the money is sent to.
+     * @param amount       The (positive) amount of money.
+     * @param recorder     Records the transfer, or null.
+     * @return Whether the source user had enough money, and the transfer was recorded.
+     */
+    private static boolean sendMoney(int sourceUserId, UserData source, int targetUserId, UserData target, int amount, TransferRecorder recorder)
+    {
+        // Test whether source user has enough money
+        if (source.getMoney() < amount)
+            return false;
+        if (recorder != null && !recorder.record(sourceUserId, targetUserId, amount))
+            return false;
+
+        // Send money
+        source.changeMoney(targetUserId, -amount);
+        target.changeMoney(sourceUserId, amount);
+        return true;
+    }
+
+    /**
+     * Takes the given lock, and records contention of the given account if the lock is held by another thread.
+     *
+     * @param lock The lock.
+     * @param user The account protected by the lock.
+     */
+    private static void lock(ReentrantLock lock, UserData user)
+    {
+        if (lock.tryLock())
+            return;
+        user.recordContention();
+        lock.lock();
+    }
+
+    @Override
+    public void addDevice(int userId, UserData user, String deviceCode)
+    {
+        ReentrantLock lock = getAccountLock(userId);
+        lock.lock();
+        try
+        {
+            user.addDevice(deviceCode);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean hasDevice(int userId, UserData user, String deviceCode)
+    {
+        ReentrantLock lock = getAccountLock(userId);
+        lock.lock();
+        try
+        {
+            return user.hasDevice(deviceCode);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides how long a login attempt is delayed, based on the recent failed attempts for the same account
+ * name and from the same remote address. Failures are tracked as a score that decays exponentially over
+ * time (a single failure is forgotten after one half-life); each point of score doubles the delay, so a
+ * legitimate first attempt is never delayed.
+ * The number of tracked names and addresses is bounded. This class is thread safe.
+ */
+public class LoginPenaltyPolicy
+{
+    /**
+     * The failure score of one account name or remote address.
+     */
+    private static class Score
+    {
+        /**
+         * The score at the time of the last update.
+         */
+        final double value;
+
+        /**
+         * The time of the last update (as returned by System.nanoTime()).
+         */
+        final long updated;
+
+        /**
+         * Creates a new score.
+         *
+         * @param value   The score.
+         * @param updated The time of the update (as returned by System.nanoTime()).
+         */
+        Score(double value, long updated)
+        {
+            this.value = value;
+            this.updated = updated;
+        }
+    }
+
+    /**
+     * Delay after the first failure, in milliseconds.
+     */
+    private final long _baseDelay;
+
+    /**
+     * Upper bound for delays, in milliseconds.
+     */
+    private final long _maxDelay;
+
+    /**
+     * Time after which a failure score has decayed to half, in nanoseconds.
+     */
+    private final double _halfLife;
+
+    /**
+     * Maximum number of tracked account names and addresses.
+     */
+    private final int _capacity;
+
+    /**
+     * Failure scores, mapped by "name:" or "address:" followed by the normalized name or address.
+     */
+    private final Map<String, Score> _scores = new ConcurrentHashMap<>();
+
+    /**
+     * Ensures that only one thread prunes the score map at a time.
+     */
+    private final AtomicBoolean _pruning = new AtomicBoolean();
+
+    /**
+     * Number of failed logins.
+     */
+    private final LongAdder _failures = Metrics.counter("login.failures");
+
+    /**
+     * Number of successful logins.
+     */
+    private final LongAdder _successes = Metrics.counter("login.successes");
+
+    /**
+     * Number of delayed login steps.
+     */
+    private final LongAdder _penalized = Metrics.counter("login.penalty.delayed");
+
+    /**
+     * Total penalty delay in milliseconds.
+     */
+    private final LongAdder _penaltyMillis = Metrics.counter("login.penalty.millis");
+
+    /**
+     * Number of scores removed because the capacity was exceeded.
+     */
+    private final LongAdder _evictions = Metrics.counter("login.penalty.evictions");
+
+    /**
+     * Creates a new policy.
+     *
+     * @param baseDelay       Delay after the first failure, in milliseconds.
+     * @param maxDelay        Upper bound for delays, in milliseconds.
+     * @param halfLifeSeconds Time after which a failure score has decayed to half, in seconds.
+     * @param capacity        Maximum number of tracked account names and addresses.
+     */
+    public LoginPenaltyPolicy(long baseDelay, long maxDelay, long halfLifeSeconds, int capacity)
+    {
+        _baseDelay = baseDelay;
+        _maxDelay = maxDelay;
+        _halfLife = Math.max(1, halfLifeSeconds) * 1e9;
+        _capacity = capacity;
+
+        Metrics.gauge("login.penalty.tracked", _scores::size);
+    }
+
+    /**
+     * Creates a policy configured by the given command line options.
+     *
+     * @param options The command line options.
+     * @return The configured policy.
+     */
+    public static LoginPenaltyPolicy fromOptions(CommandLineOptions options)
+    {
+        return new LoginPenaltyPolicy(
+                options.getLong("login-penalty-base", 1000),
+                options.getLong("login-penalty-max", 30000),
+                options.getLong("login-penalty-half-life", 60),
+                options.getInt("login-penalty-capacity", 100000));
+    }
+
+    /**
+     * Returns the delay before a login attempt from the given address may start.
+     *
+     * @param address The remote address of the client.
+     * @return The delay in milliseconds.
+     */
+    public long getAddressDelay(String address)
+    {
+        return penalize(getDelay("address:" + address));
+    }
+
+    /**
+     * Returns the delay before the credentials for the given account name may be checked.
+     *
+     * @param name The account name.
+     * @return The delay in milliseconds.
+     */
+    public long getAccountDelay(String name)
+    {
+        return penalize(getDelay("name:" + name.toLowerCase(Locale.ROOT)));
+    }
+
+    /**
+     * Records a failed login attempt.
+     *
+     * @param name    The account name.
+     * @param address The remote address of the client.
+     */
+    public void recordFailure(String name, String address)
+    {
+        _failures.increment();
+        increment("name:" + name.toLowerCase(Locale.ROOT));
+        increment("address:" + address);
+    }
+
+    /**
+     * Records a successful login. This resets the penalty of the account, but not of the address.
+     *
+     * @param name The account name.
+     */
+    public void recordSuccess(String name)
+    {
+        _successes.increment();
+        _scores.remove("name:" + name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Updates the penalty counters for the given delay.
+     *
+     * @param delay The delay in milliseconds.
+     * @return The given delay.
+     */
+    private long penalize(long delay)
+    {
+        if (delay > 0)
+        {
+            _penalized.increment();
+            _penaltyMillis.add(delay);
+        }
+        return delay;
+    }
+
+    /**
+     * Computes the delay for the given key.
+     *
+     * @param key The score key.
+     * @return The delay in milliseconds.
+     */
+    private long getDelay(String key)
+    {
+        Score score = _scores.get(key);
+        if (score == null)
+            return 0;
+        int failures = (int) Math.round(decay(score, System.nanoTime()));
+        if (failures <= 0)
+            return 0;
+
+        // Double the delay for each failure
+        if (failures > 31)
+            return _maxDelay;
+        return Math.min(_maxDelay, _baseDelay << (failures - 1));
+    }
+
+    /**
+     * Adds a failure to the score of the given key.
+     *
+     * @param key The score key.
+     */
+    private void increment(String key)
+    {
+        long now = System.nanoTime();
+        _scores.compute(key, (k, score) -> new Score((score == null ? 0 : decay(score, now)) + 1, now));
+        if (_scores.size() > _capacity)
+            prune(now);
+    }
+
+    /**
+     * Returns the decayed value of the given score.
+     *
+     * @param score The score.
+     * @param now   The current time (as returned by System.nanoTime()).
+     * @return The decayed value of the given score.
+     */
+    private double decay(Score score, long now)
+    {
+        return score.value * Math.pow(0.5, (now - score.updated) / _halfLife);
+    }
+
+    /**
+     * Removes scores that do not cause a delay anymore; if the map is still too large, removes arbitrary scores.
+     *
+     * @param now The current time (as returned by System.nanoTime()).
+     */
+    private void prune(long now)
+    {
+        if (!_pruning.compareAndSet(false, true))
+            return;
+        try
+        {
+            _scores.values().removeIf(score -> decay(score, now) < 0.5);
+            Iterator<String> keyIterator = _scores.keySet().iterator();
+            while (_scores.size() > _capacity && keyIterator.hasNext())
+            {
+                keyIterator.next();
+                keyIterator.remove();
+                _evictions.increment();
+            }
+        }
+        finally
+        {
+            _pruning.set(false);
+        }
+    }
+}
@@ -0,0 +1,446 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the accounts off the Java heap, in memory-mapped files (see MappedFile), so very large numbers of accounts
+ * neither fill the heap nor slow down the garbage collector. Selected with the "account-store" option; the
+ * database then delegates all account operations to this store instead of the account engine.
+ * <p>
+ * The store consists of three files:
+ * <ul>
+ *     <li>Account slots (32 bytes each, in user ID order): int money, int scenario ID, int name hash
+ *         (see BinaryDatabaseReader.hashName()), int reserved, long arena offset of name and password,
+ *         long arena offset of the newest device (0 if there is none).</li>
+ *     <li>Arena ("&lt;file&gt;.arena"): name and password (each int length and UTF-8 bytes, padded to 4 bytes),
+ *         and devices (long offset of the previous device, int length and UTF-8 bytes). New devices are prepended
+ *         to the device list of their account with a compare-and-set on the slot.</li>
+ *     <li>Name index ("&lt;file&gt;.index"): an open addressing hash table of user IDs + 1 (0 marks free entries),
+ *         keyed by the name hashes of the slots and built when loading is finished.</li>
+ * </ul>
+ * Balances are changed with compare-and-set in the mapped slots, like in the lock-free engine: the money is
+ * debited first and credited afterwards, so it is never created. Histories are only kept on the heap for accounts
+ * that took part in transfers.
+ * <p>
+ * The files are a working copy of the database file, created on startup and deleted on shutdown. Changes are
+ * persisted by the journal and snapshots, as with accounts on the heap. This class is thread safe once loading is
+ * finished.
+ */
+public class MappedAccountStore
+{
+    /**
+     * Size of an account slot in bytes.
+     */
+    private static final int SLOT_SIZE = 32;
+
+    /**
+     * Offset of the money in a slot.
+     */
+    private static final int MONEY = 0;
+
+    /**
+     * Offset of the scenario ID in a slot.
+     */
+    private static final int SCENARIO = 4;
+
+    /**
+     * Offset of the name hash in a slot.
+     */
+    private static final int NAME_HASH = 8;
+
+    /**
+     * Offset of the arena offset of name and password in a slot.
+     */
+    private static final int NAME = 16;
+
+    /**
+     * Offset of the arena offset of the newest device in a slot.
+     */
+    private static final int DEVICES = 24;
+
+    /**
+     * The history returned for accounts without one; never changed.
+     */
+    private static final HistoryLog EMPTY_HISTORY = new HistoryLog();
+
+    /**
+     * The account slots.
+     */
+    private final MappedFile _slots;
+
+    /**
+     * Names, passwords and devices.
+     */
+    private final MappedFile _arena;
+
+    /**
+     * The name index.
+     */
+    private final MappedFile _index;
+
+    /**
+     * The mask of the index positions (capacity - 1).
+     */
+    private long _indexMask = -1;
+
+    /**
+     * The number of accounts.
+     */
+    private int _userCount = 0;
+
+    /**
+     * The histories of the accounts that have one.
+     */
+    private final ConcurrentHashMap<Integer, HistoryLog> _histories = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the files of a new, empty store.
+     *
+     * @param file The slots file; the arena and index files get the suffixes ".arena" and ".index".
+     */
+    public MappedAccountStore(String file) throws IOException
+    {
+        _slots = new MappedFile(Paths.get(file));
+        _arena = new MappedFile(Paths.get(file + ".arena"));
+        _index = new MappedFile(Paths.get(file + ".index"));
+
+        Metrics.gauge("account-store.mapped-bytes", this::getMappedSize);
+        Metrics.gauge("account-store.histories", _histories::size);
+    }
+
+    /**
+     * Creates the store configured by the given command line options.
+     *
+     * @param options The command line options.
+     * @return The configured store, or null if the accounts are kept on the heap.
+     */
+    public static MappedAccountStore fromOptions(CommandLineOptions options) throws IOException
+    {
+        String file = options.getString("account-store", null);
+        if (file == null)
+            return null;
+        return new MappedAccountStore(file);
+    }
+
+    /**
+     * Appends the given user to the store. Only used while the database is loaded; finish() must be called
+     * afterwards.
+     *
+     * @param user The new user; its history is copied to the heap if it has one.
+     */
+    void add(UserData user) throws IOException
+    {
+        // Name and password
+        byte[] name = user.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] password = user.getPassword().getBytes(StandardCharsets.UTF_8);
+        long nameOffset = _arena.allocate(8 + align(name.length) + password.length);
+        _arena.putInt(nameOffset, name.length);
+        _arena.putBytes(nameOffset + 4, name);
+        long passwordOffset = nameOffset + 4 + align(name.length);
+        _arena.putInt(passwordOffset, password.length);
+        _arena.putBytes(passwordOffset + 4, password);
+
+        // Slot
+        int userId = _userCount++;
+        long slot = (long) userId * SLOT_SIZE;
+        _slots.ensureSize(slot + SLOT_SIZE);
+        _slots.putInt(slot + MONEY, user.getMoney());
+        _slots.putInt(slot + SCENARIO, user.getScenarioId());
+        _slots.putInt(slot + NAME_HASH, BinaryDatabaseReader.hashName(user.getName()));
+        _slots.putLong(slot + NAME, nameOffset);
+        _slots.putLong(slot + DEVICES, 0);
+        for (String device : user.getDevices())
+            addDevice(userId, device);
+
+        // History
+        HistoryLog history = user.getMoneyHistory();
+        if (!history.isEmpty())
+            _histories.put(userId, history);
+    }
+
+    /**
+     * Builds the name index. Must be called once after all users have been added.
+     */
+    void finish() throws IOException
+    {
+        // Capacity: power of two, at least twice the number of users
+        long capacity = Long.highestOneBit(Math.max(1, _userCount)) * 4;
+        _index.ensureSize(capacity * 4);
+        _indexMask = capacity - 1;
+
+        // Insert users; if several users have the same name, the first of them is indexed
+        for (int userId = 0; userId < _userCount; ++userId)
+        {
+            String name = getUserName(userId);
+            if (getUserId(name) < 0)
+            {
+                long position = spread(_slots.getInt((long) userId * SLOT_SIZE + NAME_HASH)) & _indexMask;
+                while (_index.getInt(position * 4) != 0)
+                    position = (position + 1) & _indexMask;
+                _index.putInt(position * 4, userId + 1);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of users.
+     *
+     * @return The number of users.
+     */
+    public int getUserCount()
+    {
+        return _userCount;
+    }
+
+    /**
+     * Returns the size of the mapped files.
+     *
+     * @return The mapped size in bytes.
+     */
+    public long getMappedSize()
+    {
+        return _slots.getMappedSize() + _arena.getMappedSize() + _index.getMappedSize();
+    }
+
+    /**
+     * Returns the ID of the user with the given (case insensitive) name.
+     *
+     * @param name The name of the user.
+     * @return The ID of the user, or -1 if there is no such user.
+     */
+    public int getUserId(String name)
+    {
+        // Probe entries with the same name hash
+        String normalizedName = name.toLowerCase(Locale.ROOT);
+        int hash = normalizedName.hashCode();
+        long position = spread(hash) & _indexMask;
+        for (int entry = _index.getInt(position * 4); entry != 0; entry = _index.getInt(position * 4))
+        {
+            int userId = entry - 1;
+            if (_slots.getInt((long) userId * SLOT_SIZE + NAME_HASH) == hash && getUserName(userId).toLowerCase(Locale.ROOT).equals(normalizedName))
+                return userId;
+            position = (position + 1) & _indexMask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the name of the given user.
+     *
+     * @param userId The user ID; must exist.
+     * @return The name.
+     */
+    public String getUserName(int userId)
+    {
+        return getString(_slots.getLong((long) userId * SLOT_SIZE + NAME));
+    }
+
+    /**
+     * Checks the password of the given user.
+     *
+     * @param userId   The user ID; must exist.
+     * @param password The password to check.
+     * @return Whether the password is right.
+     */
+    public boolean checkPassword(int userId, String password)
+    {
+        long nameOffset = _slots.getLong((long) userId * SLOT_SIZE + NAME);
+        return password.equals(getString(nameOffset + 4 + align(_arena.getInt(nameOffset))));
+    }
+
+    /**
+     * Returns the scenario to be marked as "solved" when the given user looses money.
+     *
+     * @param userId The user ID; must exist.
+     * @return The scenario ID, or -1.
+     */
+    public int getScenarioId(int userId)
+    {
+        return _slots.getInt((long) userId * SLOT_SIZE + SCENARIO);
+    }
+
+    /**
+     * Returns the amount of money of the given user.
+     *
+     * @param userId The user ID; must exist.
+     * @return The amount of money.
+     */
+    public int getMoney(int userId)
+    {
+        return _slots.getIntVolatile((long) userId * SLOT_SIZE + MONEY);
+    }
+
+    /**
+     * Sends money from the given source user to the given target user, if the source user has enough money,
+     * and tracks the transfer in both histories.
+     *
+     * @param sourceUserId The ID of the user where the money comes from; must exist.
+     * @param targetUserId The ID of the user where the money is sent to; must exist.
+     * @param amount       The (positive) amount of money.
+     * @param recorder     Records the transfer between debit and credit, or null (see AccountEngine.TransferRecorder).
+     * @return Whether the source user had enough money, and the transfer was recorded.
+     */
+    public boolean transfer(int sourceUserId, int targetUserId, int amount, AccountEngine.TransferRecorder recorder)
+    {
+        // Debit first, so money is never created
+        long sourceMoney = (long) sourceUserId * SLOT_SIZE + MONEY;
+        int money;
+        do
+        {
+            money = _slots.getIntVolatile(sourceMoney);
+            if (money < amount)
+                return false;
+        }
+        while (!_slots.compareAndSetInt(sourceMoney, money, money - amount));
+
+        // Record before the credit can be spent; undo the debit if that fails
+        if (recorder != null && !recorder.record(sourceUserId, targetUserId, amount))
+        {
+            _slots.getAndAddInt(sourceMoney, amount);
+            return false;
+        }
+        appendHistory(sourceUserId, targetUserId, -amount);
+
+        // Credit
+        _slots.getAndAddInt((long) targetUserId * SLOT_SIZE + MONEY, amount);
+        appendHistory(targetUserId, sourceUserId, amount);
+        return true;
+    }
+
+    /**
+     * Applies a recorded transfer without checking the balance. Used for replaying the journal.
+     *
+     * @param sourceUserId The ID of the user where the money comes from; must exist.
+     * @param targetUserId The ID of the user where the money is sent to; must exist.
+     * @param amount       The (positive) amount of money.
+     */
+    void applyTransfer(int sourceUserId, int targetUserId, int amount)
+    {
+        _slots.getAndAddInt((long) sourceUserId * SLOT_SIZE + MONEY, -amount);
+        appendHistory(sourceUserId, targetUserId, -amount);
+        _slots.getAndAddInt((long) targetUserId * SLOT_SIZE + MONEY, amount);
+        appendHistory(targetUserId, sourceUserId, amount);
+    }
+
+    /**
+     * Returns the money history of the given user. Reading does not create a history.
+     *
+     * @param userId The user ID; must exist.
+     * @return The history, as pairs of the other user's ID and the amount; must not be changed.
+     */
+    public HistoryLog getMoneyHistory(int userId)
+    {
+        HistoryLog history = _histories.get(userId);
+        return history != null ? history : EMPTY_HISTORY;
+    }
+
+    /**
+     * Appends an entry to the money history of the given user, creating the history if necessary.
+     *
+     * @param userId      The user ID; must exist.
+     * @param otherUserId The ID of the other user of the transfer.
+     * @param amount      The amount; negative if money was sent.
+     */
+    private void appendHistory(int userId, int otherUserId, int amount)
+    {
+        _histories.computeIfAbsent(userId, id -> new HistoryLog()).append(otherUserId, amount);
+    }
+
+    /**
+     * Adds the device with the given authentication code to the given user.
+     *
+     * @param userId     The user ID; must exist.
+     * @param deviceCode The device code to be added.
+     * @throws UncheckedIOException If the arena could not be grown.
+     */
+    public void addDevice(int userId, String deviceCode)
+    {
+        // Write entry
+        byte[] code = deviceCode.getBytes(StandardCharsets.UTF_8);
+        long entry;
+        try
+        {
+            entry = _arena.allocate(12 + code.length);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        _arena.putInt(entry + 8, code.length);
+        _arena.putBytes(entry + 12, code);
+
+        // Publish it as the newest device
+        long devices = (long) userId * SLOT_SIZE + DEVICES;
+        long previous;
+        do
+        {
+            previous = _slots.getLongVolatile(devices);
+            _arena.putLong(entry, previous);
+        }
+        while (!_slots.compareAndSetLong(devices, previous, entry));
+    }
+
+    /**
+     * Checks whether the given user has a device with the given code.
+     *
+     * @param userId     The user ID; must exist.
+     * @param deviceCode The device code to be checked.
+     * @return Whether the given user has a device with the given code.
+     */
+    public boolean hasDevice(int userId, String deviceCode)
+    {
+        for (long entry = _slots.getLongVolatile((long) userId * SLOT_SIZE + DEVICES); entry != 0; entry = _arena.getLong(entry))
+            if (getString(entry + 8).equalsIgnoreCase(deviceCode))
+                return true;
+        return false;
+    }
+
+    /**
+     * Deletes the files of the store. The store must not be used afterwards.
+     */
+    public void close() throws IOException
+    {
+        _slots.delete();
+        _arena.delete();
+        _index.delete();
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string from the arena.
+     *
+     * @param offset The arena offset of the length, aligned to 4 bytes.
+     * @return The string.
+     */
+    private String getString(long offset)
+    {
+        byte[] bytes = new byte[_arena.getInt(offset)];
+        _arena.getBytes(offset + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Rounds the given string length up to a multiple of 4, so the following int is aligned.
+     *
+     * @param length The length in bytes.
+     * @return The padded length.
+     */
+    private static int align(int length)
+    {
+        return (length + 3) & ~3;
+    }
+
+    /**
+     * Spreads the bits of a name hash, so similar names do not fill neighboring index entries.
+     *
+     * @param hash The name hash.
+     * @return The spread hash.
+     */
+    private static long spread(int hash)
+    {
+        long h = hash * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+}
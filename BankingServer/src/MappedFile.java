@@ -0,0 +1,271 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file that is mapped into memory in regions of fixed size and grows on demand, so its content is kept off the
+ * Java heap. Values are addressed by their file offset. A value never crosses a region boundary: ints and longs
+ * are aligned to their size, and allocate() starts entries that would cross a boundary in the next region.
+ * Reading and writing is thread safe as long as the accessed ranges exist; ordering between threads must be
+ * established through the volatile and compare-and-set accessors.
+ */
+public class MappedFile
+{
+    /**
+     * Size of a mapped region.
+     */
+    public static final int REGION_SIZE = 1 << 26;
+
+    /**
+     * Accesses ints in the mapped regions.
+     */
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    /**
+     * Accesses longs in the mapped regions.
+     */
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    /**
+     * The file.
+     */
+    private final Path _file;
+
+    /**
+     * The file channel, used for mapping new regions.
+     */
+    private final FileChannel _channel;
+
+    /**
+     * The mapped regions; replaced by a larger copy when the file grows.
+     */
+    private volatile MappedByteBuffer[] _regions = new MappedByteBuffer[0];
+
+    /**
+     * The offset of the next entry returned by allocate().
+     */
+    private long _allocated = 0;
+
+    /**
+     * Creates the given file, replacing an existing one.
+     *
+     * @param file The file.
+     */
+    public MappedFile(Path file) throws IOException
+    {
+        _file = file;
+        _channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Maps the file up to the given size, growing it if necessary.
+     *
+     * @param size The minimum size of the mapped range.
+     */
+    public synchronized void ensureSize(long size) throws IOException
+    {
+        MappedByteBuffer[] regions = _regions;
+        if ((long) regions.length * REGION_SIZE >= size)
+            return;
+
+        // Map new regions; mapping beyond the end of the file grows it
+        MappedByteBuffer[] grown = new MappedByteBuffer[(int) ((size + REGION_SIZE - 1) / REGION_SIZE)];
+        System.arraycopy(regions, 0, grown, 0, regions.length);
+        for (int i = regions.length; i < grown.length; ++i)
+            grown[i] = _channel.map(FileChannel.MapMode.READ_WRITE, (long) i * REGION_SIZE, REGION_SIZE);
+        _regions = grown;
+    }
+
+    /**
+     * Reserves an entry of the given size at the end of the allocated range, mapping further regions if necessary.
+     *
+     * @param size The size of the entry in bytes; at most REGION_SIZE.
+     * @return The file offset of the entry, aligned to 8 bytes; never 0, so 0 can be used as null reference.
+     */
+    public synchronized long allocate(int size) throws IOException
+    {
+        if (size > REGION_SIZE)
+            throw new IOException("Entry of " + size + " bytes is larger than a region.");
+
+        // Align, skip offset 0, and start entries crossing a region boundary in the next region
+        long offset = Math.max(8, (_allocated + 7) & ~7L);
+        if (offset / REGION_SIZE != (offset + size - 1) / REGION_SIZE)
+            offset = (offset / REGION_SIZE + 1) * REGION_SIZE;
+        ensureSize(offset + size);
+        _allocated = offset + size;
+        return offset;
+    }
+
+    /**
+     * Returns the number of allocated bytes, including alignment.
+     *
+     * @return The end of the allocated range.
+     */
+    public synchronized long getAllocatedSize()
+    {
+        return _allocated;
+    }
+
+    /**
+     * Returns the mapped size.
+     *
+     * @return The mapped size in bytes.
+     */
+    public long getMappedSize()
+    {
+        return (long) _regions.length * REGION_SIZE;
+    }
+
+    /**
+     * Reads an int.
+     *
+     * @param offset The file offset, aligned to 4 bytes.
+     * @return The value.
+     */
+    public int getInt(long offset)
+    {
+        return (int) INT.get(region(offset), (int) (offset % REGION_SIZE));
+    }
+
+    /**
+     * Writes an int.
+     *
+     * @param offset The file offset, aligned to 4 bytes.
+     * @param value  The value.
+     */
+    public void putInt(long offset, int value)
+    {
+        INT.set(region(offset), (int) (offset % REGION_SIZE), value);
+    }
+
+    /**
+     * Reads an int with volatile semantics.
+     *
+     * @param offset The file offset, aligned to 4 bytes.
+     * @return The value.
+     */
+    public int getIntVolatile(long offset)
+    {
+        return (int) INT.getVolatile(region(offset), (int) (offset % REGION_SIZE));
+    }
+
+    /**
+     * Atomically replaces an int, if it has the expected value.
+     *
+     * @param offset   The file offset, aligned to 4 bytes.
+     * @param expected The expected value.
+     * @param value    The new value.
+     * @return Whether the value was replaced.
+     */
+    public boolean compareAndSetInt(long offset, int expected, int value)
+    {
+        return INT.compareAndSet(region(offset), (int) (offset % REGION_SIZE), expected, value);
+    }
+
+    /**
+     * Atomically adds to an int.
+     *
+     * @param offset The file offset, aligned to 4 bytes.
+     * @param delta  The value to add.
+     * @return The previous value.
+     */
+    public int getAndAddInt(long offset, int delta)
+    {
+        return (int) INT.getAndAdd(region(offset), (int) (offset % REGION_SIZE), delta);
+    }
+
+    /**
+     * Reads a long.
+     *
+     * @param offset The file offset, aligned to 8 bytes.
+     * @return The value.
+     */
+    public long getLong(long offset)
+    {
+        return (long) LONG.get(region(offset), (int) (offset % REGION_SIZE));
+    }
+
+    /**
+     * Writes a long.
+     *
+     * @param offset The file offset, aligned to 8 bytes.
+     * @param value  The value.
+     */
+    public void putLong(long offset, long value)
+    {
+        LONG.set(region(offset), (int) (offset % REGION_SIZE), value);
+    }
+
+    /**
+     * Reads a long with volatile semantics.
+     *
+     * @param offset The file offset, aligned to 8 bytes.
+     * @return The value.
+     */
+    public long getLongVolatile(long offset)
+    {
+        return (long) LONG.getVolatile(region(offset), (int) (offset % REGION_SIZE));
+    }
+
+    /**
+     * Atomically replaces a long, if it has the expected value.
+     *
+     * @param offset   The file offset, aligned to 8 bytes.
+     * @param expected The expected value.
+     * @param value    The new value.
+     * @return Whether the value was replaced.
+     */
+    public boolean compareAndSetLong(long offset, long expected, long value)
+    {
+        return LONG.compareAndSet(region(offset), (int) (offset % REGION_SIZE), expected, value);
+    }
+
+    /**
+     * Reads bytes; the range must not cross a region boundary (see allocate()).
+     *
+     * @param offset The file offset.
+     * @param target The array to fill.
+     */
+    public void getBytes(long offset, byte[] target)
+    {
+        region(offset).get((int) (offset % REGION_SIZE), target);
+    }
+
+    /**
+     * Writes bytes; the range must not cross a region boundary (see allocate()).
+     *
+     * @param offset The file offset.
+     * @param value  The bytes.
+     */
+    public void putBytes(long offset, byte[] value)
+    {
+        region(offset).put((int) (offset % REGION_SIZE), value);
+    }
+
+    /**
+     * Closes and deletes the file. The mapping is released by the garbage collector; the file must not be
+     * accessed afterwards.
+     */
+    public void delete() throws IOException
+    {
+        _channel.close();
+        Files.deleteIfExists(_file);
+    }
+
+    /**
+     * Returns the region containing the given offset.
+     *
+     * @param offset The file offset.
+     * @return The region.
+     */
+    private MappedByteBuffer region(long offset)
+    {
+        return _regions[(int) (offset / REGION_SIZE)];
+    }
+}
@@ -0,0 +1,88 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Collects named counters and gauges of the server, and periodically prints them if requested.
+ * This class is thread safe.
+ */
+public class Metrics
+{
+    /**
+     * Counters, mapped by name.
+     */
+    private static final Map<String, LongAdder> _counters = new ConcurrentSkipListMap<>();
+
+    /**
+     * Gauges (values computed on demand), mapped by name.
+     */
+    private static final Map<String, LongSupplier> _gauges = new ConcurrentSkipListMap<>();
+
+    /**
+     * Returns the counter with the given name, creating it if necessary.
+     *
+     * @param name The counter name.
+     * @return The counter with the given name.
+     */
+    public static LongAdder counter(String name)
+    {
+        return _counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Registers a gauge with the given name, replacing an existing one.
+     *
+     * @param name     The gauge name.
+     * @param supplier Computes the current value of the gauge.
+     */
+    public static void gauge(String name, LongSupplier supplier)
+    {
+        _gauges.put(name, supplier);
+    }
+
+    /**
+     * Returns a string containing the current values of all counters and gauges, one per line.
+     *
+     * @return A string containing the current values of all counters and gauges.
+     */
+    public static String report()
+    {
+        Map<String, Long> values = new ConcurrentSkipListMap<>();
+        for (Map.Entry<String, LongAdder> entry : _counters.entrySet())
+            values.put(entry.getKey(), entry.getValue().sum());
+        for (Map.Entry<String, LongSupplier> entry : _gauges.entrySet())
+            values.put(entry.getKey(), entry.getValue().getAsLong());
+
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Long> entry : values.entrySet())
+            builder.append("    ").append(entry.getKey()).append(" = ").append(entry.getValue()).append('\n');
+        return builder.toString();
+    }
+
+    /**
+     * Starts a background thread printing all metrics in the given interval.
+     *
+     * @param intervalSeconds The report interval in seconds.
+     */
+    public static void startReporter(long intervalSeconds)
+    {
+        Thread reporterThread = new Thread(() ->
+        {
+            while (true)
+            {
+                try
+                {
+                    Thread.sleep(intervalSeconds * 1000);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+                Utility.safePrintln("Metrics:\n" + report());
+            }
+        }, "metrics-reporter");
+        reporterThread.setDaemon(true);
+        reporterThread.start();
+    }
+}
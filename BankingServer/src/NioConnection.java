@@ -0,0 +1,405 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Handles a client connection on a non-blocking event loop. Incoming packets are reassembled
+ * incrementally from the channel and passed to the client session.
+ */
+public class NioConnection implements SessionDriver
+{
+    /**
+     * Initial size of the receive buffer.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Maximum accepted packet size, to protect the event loop from huge allocations.
+     */
+    private static final int MAX_PACKET_SIZE = 1024 * 1024;
+
+    /**
+     * The event loop serving this connection.
+     */
+    private final NioEventLoop _eventLoop;
+
+    /**
+     * The underlying client channel.
+     */
+    private final SocketChannel _channel;
+
+    /**
+     * The selection key of the client channel.
+     */
+    private final SelectionKey _key;
+
+    /**
+     * The protocol session of this client.
+     */
+    private final ClientSession _session;
+
+    /**
+     * Counts the socket I/O calls of this client.
+     */
+    private final ConnectionStatistics _statistics = new ConnectionStatistics();
+
+    /**
+     * Runs the RSA part of login handshakes.
+     */
+    private final HandshakeExecutor _handshakeExecutor;
+
+    /**
+     * Buffer for incoming data that does not form a complete packet yet.
+     */
+    private ByteBuffer _receiveBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    /**
+     * Collects the response packets of the current session step.
+     */
+    private final ByteArrayOutputStream _responseBuffer = new ByteArrayOutputStream();
+
+    /**
+     * Stream view of the response buffer, passed to the session.
+     */
+    private final DataOutputStream _responseStream = new DataOutputStream(_responseBuffer);
+
+    /**
+     * Response data that could not be written to the channel yet.
+     */
+    private final ArrayDeque<ByteBuffer> _sendQueue = new ArrayDeque<>();
+
+    /**
+     * Determines whether the session is waiting for a delayed step, so no packets may be passed to it.
+     */
+    private boolean _suspended = false;
+
+    /**
+     * Determines whether the connection has been closed.
+     */
+    private boolean _closed = false;
+
+    /**
+     * Creates a new connection handler.
+     *
+     * @param eventLoop The event loop serving this connection.
+     * @param channel   The underlying client channel.
+     * @param key       The selection key of the client channel.
+     * @param context   The shared server state.
+     */
+    public NioConnection(NioEventLoop eventLoop, SocketChannel channel, SelectionKey key, ServerContext context)
+    {
+        _eventLoop = eventLoop;
+        _channel = channel;
+        _key = key;
+        _handshakeExecutor = context.getHandshakeExecutor();
+        _session = new ClientSession(this, context);
+    }
+
+    /**
+     * Starts the client session.
+     */
+    public void start()
+    {
+        Utility.safeDebugPrintln("Client connection started on port " + _channel.socket().getLocalPort() + ".");
+        runStep(_session::start);
+        updateInterest();
+    }
+
+    @Override
+    public DataOutputStream getOutputStream()
+    {
+        return _responseStream;
+    }
+
+    @Override
+    public String getRemoteAddress()
+    {
+        return _channel.socket().getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public boolean isSecure()
+    {
+        // TLS is only supported by the blocking drivers
+        return false;
+    }
+
+    @Override
+    public void delay(long milliseconds, Step step)
+    {
+        // Stop passing packets to the session until the step has run
+        _suspended = true;
+        DelayScheduler.schedule(milliseconds, () -> runOnLoop(() ->
+        {
+            if (_closed)
+                return;
+            _suspended = false;
+            runStep(step);
+            processPackets();
+        }));
+    }
+
+    @Override
+    public <T> void offload(Callable<T> work, Continuation<T> continuation)
+    {
+        // Stop passing packets to the session until the work is done, so the event loop keeps serving other connections
+        _suspended = true;
+        boolean accepted = _handshakeExecutor.submit(() ->
+        {
+            T result;
+            try
+            {
+                result = work.call();
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+                runOnLoop(this::close);
+                return;
+            }
+            runOnLoop(() ->
+            {
+                if (_closed)
+                    return;
+                _suspended = false;
+                runStep(() -> continuation.run(result));
+                processPackets();
+            });
+        });
+        if (!accepted)
+        {
+            Utility.safeDebugPrintln("Handshake queue is full, closing connection.");
+            close();
+        }
+    }
+
+    @Override
+    public <T> void await(CompletableFuture<T> future, Continuation<T> continuation) throws IOException
+    {
+        // Continue at once if the result is known, e.g. without journal
+        if (future.isDone())
+        {
+            continuation.run(future.join());
+            return;
+        }
+
+        // Stop passing packets to the session until the future has completed, so the event loop keeps serving other connections
+        _suspended = true;
+        future.thenAccept(result -> runOnLoop(() ->
+        {
+            if (_closed)
+                return;
+            _suspended = false;
+            runStep(() -> continuation.run(result));
+            processPackets();
+        }));
+    }
+
+    /**
+     * Runs the given task of this connection on the loop thread, and closes the connection if the task fails.
+     *
+     * @param task The task.
+     */
+    private void runOnLoop(Runnable task)
+    {
+        _eventLoop.execute(() ->
+        {
+            try
+            {
+                task.run();
+            }
+            catch (RuntimeException e)
+            {
+                e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+                close();
+            }
+        });
+    }
+
+    /**
+     * Called by the event loop when the channel has data available.
+     */
+    public void onReadable()
+    {
+        try
+        {
+            // Make room for the next read
+            if (!_receiveBuffer.hasRemaining())
+                growReceiveBuffer(_receiveBuffer.capacity() * 2);
+
+            int count = _channel.read(_receiveBuffer);
+            _statistics.recordRead(count);
+            if (count < 0)
+            {
+                // Socket was closed
+                close();
+                return;
+            }
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+            close();
+            return;
+        }
+        processPackets();
+    }
+
+    /**
+     * Called by the event loop when the channel can accept more outgoing data.
+     */
+    public void onWritable()
+    {
+        writeQueued();
+    }
+
+    /**
+     * Passes all complete packets in the receive buffer to the session, as long as it is not suspended.
+     */
+    private void processPackets()
+    {
+        while (!_closed && !_suspended)
+        {
+            // Complete packet available?
+            if (_receiveBuffer.position() < 4)
+                break;
+            int length = _receiveBuffer.getInt(0);
+            if (length < 0 || length > MAX_PACKET_SIZE)
+            {
+                Utility.safeDebugPrintln("Received invalid packet length " + length + ", closing connection.");
+                close();
+                return;
+            }
+            if (_receiveBuffer.position() < 4 + length)
+            {
+                // Make sure the packet will fit
+                if (_receiveBuffer.capacity() < 4 + length)
+                    growReceiveBuffer(4 + length);
+                break;
+            }
+
+            // Extract packet and remove it from the buffer
+            byte[] payload = new byte[length];
+            _receiveBuffer.flip();
+            _receiveBuffer.position(4);
+            _receiveBuffer.get(payload);
+            _receiveBuffer.compact();
+
+            runStep(() -> _session.handlePacket(payload));
+        }
+
+        // Only read further data when the session can process it
+        updateInterest();
+    }
+
+    /**
+     * Runs the given session step and sends the resulting responses.
+     *
+     * @param step The session step.
+     */
+    private void runStep(Step step)
+    {
+        if (_closed)
+            return;
+        try
+        {
+            step.run();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+            close();
+            return;
+        }
+        if (_closed)
+            return;
+
+        // Send responses of this step at once
+        if (_responseBuffer.size() > 0)
+        {
+            _sendQueue.add(ByteBuffer.wrap(_responseBuffer.toByteArray()));
+            _responseBuffer.reset();
+            writeQueued();
+        }
+    }
+
+    /**
+     * Writes as much queued response data as the channel accepts.
+     */
+    private void writeQueued()
+    {
+        try
+        {
+            while (!_sendQueue.isEmpty())
+            {
+                ByteBuffer head = _sendQueue.peek();
+                _statistics.recordWrite(_channel.write(head));
+                if (head.hasRemaining())
+                    break;
+                _sendQueue.poll();
+            }
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+            close();
+            return;
+        }
+        updateInterest();
+    }
+
+    /**
+     * Updates the operations the selector watches for this connection.
+     */
+    private void updateInterest()
+    {
+        if (_closed)
+            return;
+        int ops = 0;
+        if (!_suspended)
+            ops |= SelectionKey.OP_READ;
+        if (!_sendQueue.isEmpty())
+            ops |= SelectionKey.OP_WRITE;
+        _key.interestOps(ops);
+    }
+
+    /**
+     * Replaces the receive buffer by a larger one, keeping its contents.
+     *
+     * @param capacity The new capacity.
+     */
+    private void growReceiveBuffer(int capacity)
+    {
+        ByteBuffer newBuffer = ByteBuffer.allocate(Math.min(capacity, MAX_PACKET_SIZE + 4));
+        _receiveBuffer.flip();
+        newBuffer.put(_receiveBuffer);
+        _receiveBuffer = newBuffer;
+    }
+
+    /**
+     * Closes the connection. Must be called on the loop thread.
+     */
+    void close()
+    {
+        if (_closed)
+            return;
+        _closed = true;
+        Utility.safeDebugPrintln("Doing cleanup...");
+        _key.cancel();
+        try
+        {
+            _channel.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+        }
+        Utility.safeDebugPrintln("Cleanup complete (" + _statistics + ").");
+    }
+}
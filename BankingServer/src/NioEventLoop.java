@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single-threaded event loop that serves many client connections using a selector. A failure while serving one
+ * connection closes only that connection; the loop keeps serving the others.
+ */
+public class NioEventLoop implements Runnable
+{
+    /**
+     * The shared server state.
+     */
+    private final ServerContext _context;
+
+    /**
+     * The selector watching all connections of this loop.
+     */
+    private final Selector _selector;
+
+    /**
+     * Tasks submitted by other threads, executed by the loop thread.
+     */
+    private final Queue<Runnable> _tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates a new event loop.
+     *
+     * @param context The shared server state.
+     */
+    public NioEventLoop(ServerContext context) throws IOException
+    {
+        _context = context;
+        _selector = Selector.open();
+    }
+
+    /**
+     * Hands the given accepted client channel over to this loop. May be called from any thread.
+     *
+     * @param channel The accepted client channel.
+     */
+    public void register(SocketChannel channel)
+    {
+        execute(() ->
+        {
+            try
+            {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(_selector, SelectionKey.OP_READ);
+                NioConnection connection = new NioConnection(this, channel, key, _context);
+                key.attach(connection);
+                connection.start();
+            }
+            catch (IOException | RuntimeException e)
+            {
+                e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+                try
+                {
+                    channel.close();
+                }
+                catch (IOException e2)
+                {
+                    e2.printStackTrace(); Utility.safeDebugPrintln("error: " +e2.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the given task on the loop thread. May be called from any thread.
+     *
+     * @param task The task to be run.
+     */
+    public void execute(Runnable task)
+    {
+        _tasks.add(task);
+        _selector.wakeup();
+    }
+
+    /**
+     * The loop thread entry point.
+     */
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            try
+            {
+                // Wait for I/O or submitted tasks
+                if (!_tasks.isEmpty())
+                    _selector.selectNow();
+                else
+                    _selector.select();
+
+                // Handle ready connections
+                for (SelectionKey key : _selector.selectedKeys())
+                    dispatch(key);
+                _selector.selectedKeys().clear();
+
+                // Run submitted tasks
+                Runnable task;
+                while ((task = _tasks.poll()) != null)
+                {
+                    try
+                    {
+                        task.run();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        // Tasks of a connection close it themselves (see NioConnection), so only log here
+                        e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Passes the readiness of the given key to its connection, and closes the connection if that fails.
+     *
+     * @param key The selected key.
+     */
+    private void dispatch(SelectionKey key)
+    {
+        NioConnection connection = (NioConnection) key.attachment();
+        try
+        {
+            if (key.isValid() && key.isWritable())
+                connection.onWritable();
+            if (key.isValid() && key.isReadable())
+                connection.onReadable();
+        }
+        catch (RuntimeException e)
+        {
+            // E.g. a CancelledKeyException if the key became invalid in between
+            e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+            connection.close();
+        }
+    }
+}
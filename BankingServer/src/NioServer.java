@@ -0,0 +1,70 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Serves clients with a small, fixed number of non-blocking event loops instead of one thread per client.
+ */
+public class NioServer
+{
+    /**
+     * The event loops serving the client connections.
+     */
+    private final NioEventLoop[] _eventLoops;
+
+    /**
+     * Determines whether Nagle's algorithm is disabled on client connections.
+     */
+    private final boolean _tcpNoDelay;
+
+    /**
+     * Creates the given number of event loops and starts their threads.
+     *
+     * @param context        The shared server state.
+     * @param eventLoopCount The number of event loops.
+     */
+    public NioServer(ServerContext context, int eventLoopCount) throws IOException
+    {
+        _tcpNoDelay = context.isTcpNoDelay();
+        _eventLoops = new NioEventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; ++i)
+        {
+            _eventLoops[i] = new NioEventLoop(context);
+            Thread eventLoopThread = new Thread(_eventLoops[i], "event-loop-" + i);
+            eventLoopThread.setDaemon(true);
+            eventLoopThread.start();
+        }
+    }
+
+    /**
+     * Accepts clients on the given address and distributes them over the event loops. Does not return.
+     *
+     * @param ip   The IP address or host name to listen on.
+     * @param port The port to listen on.
+     */
+    public void run(String ip, int port) throws IOException
+    {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open())
+        {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getByName(ip), port));
+
+            // Listen for clients
+            Utility.safeDebugPrintln("Enter client listen loop (" + _eventLoops.length + " event loops).");
+            int nextEventLoop = 0;
+            while (true)
+            {
+                // Accept new client
+                SocketChannel clientChannel = serverChannel.accept();
+                Utility.safeDebugPrintln("Client accepted on port " + clientChannel.socket().getLocalPort());
+                clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, _tcpNoDelay);
+
+                // Assign clients round robin
+                _eventLoops[nextEventLoop].register(clientChannel);
+                nextEventLoop = (nextEventLoop + 1) % _eventLoops.length;
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A decrypted packet of protocol version 2.
+ */
+public class Packet
+{
+    /**
+     * The packet opcode (see Protocol).
+     */
+    private final byte _opcode;
+
+    /**
+     * The decrypted packet body.
+     */
+    private final byte[] _body;
+
+    /**
+     * Creates a new packet.
+     *
+     * @param opcode The packet opcode (see Protocol).
+     * @param body   The decrypted packet body.
+     */
+    public Packet(byte opcode, byte[] body)
+    {
+        _opcode = opcode;
+        _body = body;
+    }
+
+    /**
+     * Returns the packet opcode.
+     *
+     * @return The packet opcode.
+     */
+    public byte getOpcode()
+    {
+        return _opcode;
+    }
+
+    /**
+     * Returns the decrypted packet body.
+     *
+     * @return The decrypted packet body.
+     */
+    public byte[] getBody()
+    {
+        return _body;
+    }
+
+    /**
+     * Returns the packet body interpreted as text message.
+     *
+     * @return The packet body interpreted as text message.
+     */
+    public String getText()
+    {
+        return new String(_body, StandardCharsets.UTF_8);
+    }
+}
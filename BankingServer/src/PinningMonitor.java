@@ -0,0 +1,61 @@
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how often virtual threads pin their carrier thread (e.g. while blocking inside a
+ * <code>synchronized</code> block like the one in Utility.safePrint), using the JDK flight recorder.
+ */
+public class PinningMonitor
+{
+    /**
+     * The flight recorder event emitted when a virtual thread blocks while pinned.
+     */
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+    /**
+     * Number of pinned events.
+     */
+    private static final LongAdder _pinnedCount = Metrics.counter("virtual.pinned.count");
+
+    /**
+     * Total time carrier threads were pinned, in microseconds.
+     */
+    private static final LongAdder _pinnedMicros = Metrics.counter("virtual.pinned.micros");
+
+    /**
+     * Longest pinned time, in microseconds.
+     */
+    private static final LongAccumulator _maxPinnedMicros = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Starts recording pinned events in the background.
+     *
+     * @param threshold Pinned periods shorter than this are not reported by the JDK.
+     */
+    public static void start(Duration threshold)
+    {
+        Metrics.gauge("virtual.pinned.max-micros", _maxPinnedMicros::get);
+
+        RecordingStream recordingStream = new RecordingStream();
+        recordingStream.enable(PINNED_EVENT).withThreshold(threshold).withStackTrace();
+        recordingStream.onEvent(PINNED_EVENT, event ->
+        {
+            long micros = event.getDuration().toNanos() / 1000;
+            _pinnedCount.increment();
+            _pinnedMicros.add(micros);
+            _maxPinnedMicros.accumulate(micros);
+
+            // Show where the carrier was pinned
+            String location = "";
+            RecordedStackTrace stackTrace = event.getStackTrace();
+            if (stackTrace != null && !stackTrace.getFrames().isEmpty())
+                location = " in " + stackTrace.getFrames().get(0).getMethod().getType().getName() + "." + stackTrace.getFrames().get(0).getMethod().getName();
+            Utility.safeDebugPrintln("Virtual thread pinned its carrier for " + micros + " us" + location + ".");
+        });
+        recordingStream.startAsync();
+    }
+}
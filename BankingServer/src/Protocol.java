@@ -0,0 +1,139 @@
+/**
+ * Constants of the client/server protocol.
+ * <p>
+ * Version 1 sends each message as an ASCII packet "&lt;Base64 IV&gt; &lt;Base64 cipher text&gt;".
+ * Version 2 sends binary packets "&lt;opcode&gt;&lt;raw IV&gt;&lt;raw cipher text&gt;", which avoids the Base64
+ * overhead and string splitting. Opcodes are below 0x20, so a version 2 packet never starts with a
+ * Base64 character. The version is negotiated in the login: the client appends its highest supported
+ * version to the "OUR_KEY:" message, and the server chooses the lower of both versions and announces it with
+ * the unencrypted packet "&lt;OPCODE_VERSION&gt;&lt;version&gt;"; both sides use the chosen version from then on.
+ * Version 1 clients append no version, and the server answers nothing, as before. Servers without version
+ * support answer nothing either, so the client gives up with an error if the announcement does not arrive.
+ * <p>
+ * In version 2, the response to the "balance" command is a single balance packet instead of one
+ * message per history entry.
+ * <p>
+ * Version 3 uses AES/GCM instead of AES/CBC (see CryptoContext). After receiving "OUR_KEY:", the server
+ * sends an unencrypted salt packet "&lt;OPCODE_SESSION_SALT&gt;&lt;salt&gt;" after the version, from which both sides derive the
+ * GCM key. Packets are laid out as "&lt;raw cipher text of opcode and body&gt;&lt;tag&gt;", without IV and padding.
+ * <p>
+ * Independently of the version, the client may replace the RSA encrypted "OUR_KEY:" message with an X25519
+ * key agreement (see KeyAgreementHelper): it sends "X25519: &lt;key&gt; &lt;version&gt;", and the server answers with
+ * "&lt;OPCODE_HANDSHAKE&gt;&lt;chosen version&gt;&lt;ephemeral key&gt;". In version 3, the ephemeral key of the server also serves as salt.
+ * <p>
+ * From version 2 on, a logged in client may request a resumption ticket (see TicketKeyRing) with the "ticket"
+ * command. On reconnect, it sends "RESUME: &lt;ticket&gt; &lt;version&gt; &lt;nonce&gt;" as first message, and the server
+ * answers with "&lt;OPCODE_RESUME&gt;&lt;chosen version&gt;&lt;nonce&gt;"; the session then continues logged in, with a key derived from
+ * the resumption secret and both nonces. In version 3, the server nonce also serves as salt.
+ * <p>
+ * If the connection is secured by TLS (see TlsSupport), the client sends "TLS: &lt;version&gt;" as first message
+ * instead of a key exchange, and the server announces the chosen version as above. The session then uses at least
+ * version 2, and packets are sent without the AES layer.
+ */
+public class Protocol
+{
+    /**
+     * The original text based protocol.
+     */
+    public static final int VERSION_1 = 1;
+
+    /**
+     * The binary protocol.
+     */
+    public static final int VERSION_2 = 2;
+
+    /**
+     * The binary protocol with AES/GCM and counter based nonces.
+     */
+    public static final int VERSION_3 = 3;
+
+    /**
+     * The highest protocol version supported by this implementation.
+     */
+    public static final int CURRENT_VERSION = VERSION_3;
+
+    /**
+     * Opcode of a packet containing a text message.
+     */
+    public static final byte OPCODE_MESSAGE = 0x01;
+
+    /**
+     * Opcode of a packet containing the balance and the transaction history (see BalanceFrame).
+     */
+    public static final byte OPCODE_BALANCE = 0x02;
+
+    /**
+     * Opcode of the unencrypted packet containing the salt of the GCM key derivation (version 3).
+     */
+    public static final byte OPCODE_SESSION_SALT = 0x03;
+
+    /**
+     * Size of the GCM key derivation salt in bytes.
+     */
+    public static final int SALT_SIZE = 16;
+
+    /**
+     * Opcode of the unencrypted packet containing the chosen protocol version (one byte) and the ephemeral X25519
+     * public key of the server.
+     * An empty body means that the server does not support the key agreement.
+     */
+    public static final byte OPCODE_HANDSHAKE = 0x04;
+
+    /**
+     * Prefix of the unencrypted X25519 handshake message of the client, used instead of the RSA encrypted "OUR_KEY:" message.
+     * It contains the Base64 encoded ephemeral public key and the protocol version: "X25519: &lt;key&gt; &lt;version&gt;".
+     */
+    public static final String HANDSHAKE_PREFIX = "X25519:";
+
+    /**
+     * Opcode of the unencrypted answer to a resumption message, containing the chosen protocol version (one byte)
+     * and the nonce of the server.
+     * An empty body means that the ticket was rejected.
+     */
+    public static final byte OPCODE_RESUME = 0x05;
+
+    /**
+     * Opcode of a packet containing the resumption secret and a new ticket, sent in response to the "ticket" command.
+     */
+    public static final byte OPCODE_TICKET = 0x06;
+
+    /**
+     * Opcode of the unencrypted packet announcing the protocol version chosen by the server, in response to an
+     * "OUR_KEY:" message with version or a "TLS:" message. The body is the version as a single byte.
+     */
+    public static final byte OPCODE_VERSION = 0x07;
+
+    /**
+     * Size of the resumption nonces in bytes.
+     */
+    public static final int RESUME_NONCE_SIZE = 16;
+
+    /**
+     * Prefix of the unencrypted resumption message of the client, used instead of the key exchange and the login.
+     * It contains the Base64 encoded ticket, the protocol version and the Base64 encoded client nonce:
+     * "RESUME: &lt;ticket&gt; &lt;version&gt; &lt;nonce&gt;".
+     */
+    public static final String RESUME_PREFIX = "RESUME:";
+
+    /**
+     * Prefix of the unencrypted first message of a client connected via TLS, used instead of the key exchange.
+     * It contains the protocol version: "TLS: &lt;version&gt;". The server rejects it on connections without TLS.
+     */
+    public static final String TLS_PREFIX = "TLS:";
+
+    /**
+     * Size of the AES initialization vector in bytes.
+     */
+    public static final int IV_SIZE = 16;
+
+    /**
+     * Returns the protocol version to use, given the version offered by the other side.
+     *
+     * @param offeredVersion The version offered by the other side.
+     * @return The protocol version to use.
+     */
+    public static int negotiate(int offeredVersion)
+    {
+        return Math.max(VERSION_1, Math.min(offeredVersion, CURRENT_VERSION));
+    }
+}
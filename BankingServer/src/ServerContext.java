@@ -0,0 +1,115 @@
+import javax.net.ssl.SSLContext;
+
+/**
+ * Bundles the server-wide state shared by all client sessions.
+ */
+public class ServerContext
+{
+    /**
+     * The database containing user data.
+     */
+    private final Database _database;
+
+    /**
+     * Decides about delays of login attempts.
+     */
+    private final LoginPenaltyPolicy _loginPenaltyPolicy;
+
+    /**
+     * Issues and checks session resumption tickets.
+     */
+    private final TicketKeyRing _ticketKeyRing;
+
+    /**
+     * Runs the RSA part of login handshakes.
+     */
+    private final HandshakeExecutor _handshakeExecutor;
+
+    /**
+     * The SSL context of the TLS transport mode, or null if clients connect without TLS.
+     */
+    private final SSLContext _sslContext;
+
+    /**
+     * Determines whether Nagle's algorithm is disabled on client connections.
+     */
+    private final boolean _tcpNoDelay;
+
+    /**
+     * Creates the shared server state, configured by the given command line options.
+     *
+     * @param database   The database containing user data.
+     * @param options    The command line options.
+     * @param sslContext The SSL context of the TLS transport mode, or null if clients connect without TLS.
+     */
+    public ServerContext(Database database, CommandLineOptions options, SSLContext sslContext)
+    {
+        _database = database;
+        _sslContext = sslContext;
+        _loginPenaltyPolicy = LoginPenaltyPolicy.fromOptions(options);
+        _ticketKeyRing = TicketKeyRing.fromOptions(options);
+        _handshakeExecutor = HandshakeExecutor.fromOptions(options);
+        _tcpNoDelay = options.getBoolean("tcp-nodelay", true);
+    }
+
+    /**
+     * Returns the database containing user data.
+     *
+     * @return The database containing user data.
+     */
+    public Database getDatabase()
+    {
+        return _database;
+    }
+
+    /**
+     * Returns the policy deciding about delays of login attempts.
+     *
+     * @return The policy deciding about delays of login attempts.
+     */
+    public LoginPenaltyPolicy getLoginPenaltyPolicy()
+    {
+        return _loginPenaltyPolicy;
+    }
+
+    /**
+     * Returns the key ring issuing and checking session resumption tickets.
+     *
+     * @return The key ring issuing and checking session resumption tickets.
+     */
+    public TicketKeyRing getTicketKeyRing()
+    {
+        return _ticketKeyRing;
+    }
+
+    /**
+     * Returns the executor running the RSA part of login handshakes.
+     *
+     * @return The executor running the RSA part of login handshakes.
+     */
+    public HandshakeExecutor getHandshakeExecutor()
+    {
+        return _handshakeExecutor;
+    }
+
+    /**
+     * Returns the SSL context of the TLS transport mode.
+     *
+     * @return The SSL context of the TLS transport mode, or null if clients connect without TLS.
+     */
+    public SSLContext getSslContext()
+    {
+        return _sslContext;
+    }
+
+    /**
+     * Returns whether Nagle's algorithm is disabled on client connections. Responses are written
+     * with one flush per step, so there is no need for the kernel to coalesce small writes.
+     *
+     * @return Whether Nagle's algorithm is disabled on client connections.
+     */
+    public boolean isTcpNoDelay()
+    {
+        return _tcpNoDelay;
+    }
+}
@@ -1,9 +1,8 @@
 import javax.net.ssl.*;
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.security.GeneralSecurityException;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
 
 public class ServerMain
 {
@@ -57,12 +56,56 @@ public class ServerMain
 
         // Check parameters
         String argCommand = args[0];
-        if ((argCommand.equalsIgnoreCase("run") && args.length < 4) || (argCommand.equalsIgnoreCase("generate") && args.length < 5))
+        if ((argCommand.equalsIgnoreCase("run") && args.length < 4) || (argCommand.equalsIgnoreCase("generate") && args.length < 5) || (argCommand.equalsIgnoreCase("benchmark") && args.length < 2) || (argCommand.equalsIgnoreCase("convert") && args.length < 3))
         {
             // Show usage
             Utility.safePrintln("Usage:");
             Utility.safePrintln("    generate <database file> <mitm password file> <client configuration file> <attacker credentials file>");
-            Utility.safePrintln("    run <database file> <ip> <port>");
+            Utility.safePrintln("    run <database file> <ip> <port> [options]");
+            Utility.safePrintln("    convert <input database file> <output database file> [--format=binary|json]");
+            Utility.safePrintln("    benchmark handshake <database file> [--iterations=<n>]");
+            Utility.safePrintln("    benchmark accounts [--max-accounts=<n>] [--lookups=<n>]");
+            Utility.safePrintln("    benchmark transfers [--engine=<name>|all] [--accounts=<n>] [--threads=<n>,...] [--transfers=<n>] [--hot]");
+            Utility.safePrintln("    benchmark journal <journal file> [--threads=<n>] [--records=<n>] [--journal-batch-window=<us>] [--journal-fsync=<policy>]");
+            Utility.safePrintln("    benchmark startup [--users=<n>] [--history=<n>] [--iterations=<n>]");
+            Utility.safePrintln("    benchmark load [--users=<n>] [--history=<n>]");
+            Utility.safePrintln("    benchmark store [--accounts=<n>] [--heap-accounts=<n>] [--operations=<n>]");
+            Utility.safePrintln("    benchmark history [--logs=<n>] [--entries=<n>]");
+            Utility.safePrintln("    benchmark transport <TLS key store> [--tls-password=<password>] [--messages=<n>] [--size=<bytes>]");
+            Utility.safePrintln("Options for run:");
+            Utility.safePrintln("    --mode=blocking|virtual|nio  Client handling: one platform thread per client (default), one virtual thread");
+            Utility.safePrintln("                                 per client, or non-blocking event loops");
+            Utility.safePrintln("    --event-loops=<n>            Number of event loops in nio mode (default: number of cores)");
+            Utility.safePrintln("    --max-sessions=<n>           Maximum number of concurrent sessions in blocking and virtual mode");
+            Utility.safePrintln("    --pinned-threshold=<ms>      Minimum duration of reported carrier thread pinnings in virtual mode (default: 20)");
+            Utility.safePrintln("    --login-penalty-base=<ms>    Login delay after the first failed attempt, doubled per further failure (default: 1000)");
+            Utility.safePrintln("    --login-penalty-max=<ms>     Maximum login delay (default: 30000)");
+            Utility.safePrintln("    --login-penalty-half-life=<s>  Time after which failed attempts count only half (default: 60)");
+            Utility.safePrintln("    --login-penalty-capacity=<n> Maximum number of tracked account names and addresses (default: 100000)");
+            Utility.safePrintln("    --tcp-nodelay=true|false     Disable Nagle's algorithm on client connections (default: true)");
+            Utility.safePrintln("    --engine=locking|lockfree|ledger  Concurrency of account changes: striped account locks (default),");
+            Utility.safePrintln("                                 compare-and-set on the balances, or a single ledger thread");
+            Utility.safePrintln("    --ledger-ring-size=<n>       Number of command slots of the ledger engine (default: 1024)");
+            Utility.safePrintln("    --account-store=<file>       Keep the accounts off the heap, in memory-mapped files with the given base name that");
+            Utility.safePrintln("                                 are created on startup and deleted on shutdown (--engine and hot accounts are ignored)");
+            Utility.safePrintln("    --hot-accounts=<name>,...    Accounts whose credits are striped from the start (default: group)");
+            Utility.safePrintln("    --hot-account-threshold=<n>  Contended updates after which an account's credits are striped (default: 1000, 0: never)");
+            Utility.safePrintln("    --handshake-threads=<n>      Number of threads decrypting RSA login packets (default: half the number of cores)");
+            Utility.safePrintln("    --handshake-queue=<n>        Maximum number of waiting RSA handshakes, further connections are closed (default: 64)");
+            Utility.safePrintln("    --ticket-lifetime=<s>        Lifetime of session resumption tickets (default: 3600)");
+            Utility.safePrintln("    --ticket-key-rotation=<s>    Time after which a new ticket key is used (default: 3600)");
+            Utility.safePrintln("    --journal=<file>             Record all transfers and new devices in the given journal, and replay it on startup");
+            Utility.safePrintln("    --journal-batch-window=<us>  Time the journal waits for further records of a group commit (default: 200)");
+            Utility.safePrintln("    --journal-fsync=always|interval|none  Force every group commit to disk (default), every fsync interval, or never");
+            Utility.safePrintln("    --journal-fsync-interval=<ms>  Interval of the \"interval\" fsync policy (default: 100)");
+            Utility.safePrintln("    --snapshot=<file>            Periodically merge the journal into the given snapshot, which is loaded instead of");
+            Utility.safePrintln("                                 the database on startup (requires --journal)");
+            Utility.safePrintln("    --snapshot-interval=<s>      Time between two snapshots (default: 300)");
+            Utility.safePrintln("    --snapshot-format=binary|json  Format of new snapshots (default: binary)");
+            Utility.safePrintln("    --tls-keystore=<file>        Accept only TLS 1.3 connections, using the key and certificate in the given key store;");
+            Utility.safePrintln("                                 the protocol then skips its own encryption (blocking and virtual mode only)");
+            Utility.safePrintln("    --tls-password=<password>    Password of the TLS key store");
+            Utility.safePrintln("    --stats-interval=<s>         Print server metrics every <s> seconds");
             return;
         }
 
@@ -74,6 +117,28 @@ public class ServerMain
             Utility.safePrintln("Generating database file completed.");
             return;
         }
+        else if (argCommand.equalsIgnoreCase("convert"))
+        {
+            // Convert into the other format, unless given explicitly
+            try
+            {
+                CommandLineOptions options = new CommandLineOptions(args, 3);
+                boolean binary = options.getString("format", BinaryDatabaseReader.isBinary(args[1]) ? "json" : "binary").equalsIgnoreCase("binary");
+                int users = DatabaseWriter.convert(args[1], args[2], binary);
+                Utility.safePrintln("Converted " + users + " users into " + (binary ? "binary" : "JSON") + " database file '" + args[2] + "'.");
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+                Utility.safePrintln("Could not convert database file '" + args[1] + "'.");
+            }
+            return;
+        }
+        else if (argCommand.equalsIgnoreCase("benchmark"))
+        {
+            Benchmark.run(args);
+            return;
+        }
         else if (!argCommand.equalsIgnoreCase("run"))
         {
             Utility.safePrintln("Unknown command.");
@@ -83,26 +148,145 @@ public class ServerMain
         // Parse remaining "run" parameters
         String ip = args[2];
         int port = Integer.parseInt(args[3]);
+        CommandLineOptions options = new CommandLineOptions(args, 4);
+        String mode = options.getString("mode", "blocking");
+
+        // Read database, or its newest snapshot
+        AccountEngine engine = AccountEngine.fromOptions(options);
+        if (engine == null)
+        {
+            Utility.safePrintln("Unknown engine '" + options.getString("engine", "") + "'.");
+            return;
+        }
+        Journal journal = Journal.fromOptions(options);
+        Snapshotter snapshotter = Snapshotter.fromOptions(options, args[1], journal);
+        if (snapshotter != null && journal == null)
+        {
+            Utility.safePrintln("Snapshots need a journal (--journal).");
+            return;
+        }
+        MappedAccountStore accountStore;
+        try
+        {
+            accountStore = MappedAccountStore.fromOptions(options);
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+            Utility.safePrintln("Could not create account store '" + options.getString("account-store", "") + "'.");
+            return;
+        }
+        String loadFile = snapshotter == null ? args[1] : snapshotter.getLoadFile();
+        long loadStart = System.nanoTime();
+        Utility.safeDebugPrintln("Reading database file '" + loadFile + "'...");
+        Database database = new Database(loadFile, engine, accountStore);
+        if (accountStore != null)
+        {
+            Utility.safePrintln("Loaded " + database.getUserCount() + " accounts into the off-heap account store in " + (System.nanoTime() - loadStart) / 1_000_000 + " ms.");
+
+            // Delete the working copy on shutdown
+            Runtime.getRuntime().addShutdownHook(new Thread(() ->
+            {
+                try
+                {
+                    accountStore.close();
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+                }
+            }, "account-store-shutdown"));
+        }
+
+        // Stripe the credits of accounts known to be hot, and of those becoming hot at runtime
+        UserData.setHotAccountThreshold(options.getInt("hot-account-threshold", 1000));
+        for (String hotAccount : options.getString("hot-accounts", "group").split(","))
+            if (!hotAccount.isBlank() && !database.stripeAccount(hotAccount.trim()))
+                Utility.safePrintln("Unknown hot account '" + hotAccount.trim() + "'.");
 
-        // Read database
-        Utility.safeDebugPrintln("Reading database file '" + args[1] + "'...");
-        Database database = new Database(args[1]);
+        // Replay and continue the journal?
+        if (journal != null)
+        {
+            if (!Journal.isValidFsyncPolicy(options.getString("journal-fsync", Journal.FSYNC_ALWAYS)))
+            {
+                Utility.safePrintln("Unknown fsync policy '" + options.getString("journal-fsync", "") + "'.");
+                return;
+            }
+            try
+            {
+                long replayed = database.attachJournal(journal);
+                Utility.safePrintln("Loaded '" + loadFile + "' and replayed " + replayed + " journal records in " + (System.nanoTime() - loadStart) / 1_000_000 + " ms.");
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+                Utility.safePrintln("Could not open journal '" + options.getString("journal", "") + "'.");
+                return;
+            }
+
+            // Write and force the last records on shutdown
+            Runtime.getRuntime().addShutdownHook(new Thread(() ->
+            {
+                try
+                {
+                    journal.close();
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+                }
+            }, "journal-shutdown"));
+        }
+        if (snapshotter != null)
+            snapshotter.start();
 
-        // Create server socket
-        Utility.safeDebugPrintln("Creating server socket...");
-        try (ServerSocket serverSocket = new ServerSocket(port, 0, InetAddress.getByName(ip)))
+        // Accept TLS connections?
+        SSLContext sslContext = null;
+        String tlsKeyStore = options.getString("tls-keystore", null);
+        if (tlsKeyStore != null)
         {
-            // Listen for clients
-            Utility.safeDebugPrintln("Enter client listen loop.");
-            while (true)
+            if (mode.equalsIgnoreCase("nio"))
+            {
+                Utility.safePrintln("TLS is only supported in blocking and virtual mode.");
+                return;
+            }
+            try
+            {
+                sslContext = TlsSupport.createServerContext(tlsKeyStore, options.getString("tls-password", ""));
+            }
+            catch (IOException | GeneralSecurityException e)
             {
-                // Accept new client
-                Socket clientSocket = serverSocket.accept();
-                Utility.safeDebugPrintln("Client accepted on port " + clientSocket.getLocalPort());
+                e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+                Utility.safePrintln("Could not load TLS key store '" + tlsKeyStore + "'.");
+                return;
+            }
+        }
+        ServerContext context = new ServerContext(database, options, sslContext);
+
+        // Print metrics periodically?
+        long statsInterval = options.getLong("stats-interval", 0);
+        if (statsInterval > 0)
+            Metrics.startReporter(statsInterval);
 
-                // Start new thread to handle client
-                new Thread(new ClientThread(clientSocket, database)).start();
+        try
+        {
+            if (mode.equalsIgnoreCase("nio"))
+            {
+                // Non-blocking event loops
+                int eventLoopCount = options.getInt("event-loops", Runtime.getRuntime().availableProcessors());
+                new NioServer(context, Math.max(1, eventLoopCount)).run(ip, port);
+            }
+            else if (mode.equalsIgnoreCase("blocking") || mode.equalsIgnoreCase("virtual"))
+            {
+                // One thread per client
+                boolean virtual = mode.equalsIgnoreCase("virtual");
+                if (virtual)
+                    PinningMonitor.start(Duration.ofMillis(options.getLong("pinned-threshold", 20)));
+                int maxSessions = options.getInt("max-sessions", Integer.MAX_VALUE);
+                new ThreadedServer(context, virtual, Math.max(1, maxSessions)).run(ip, port);
             }
+            else
+                Utility.safePrintln("Unknown mode '" + mode + "'.");
         }
         catch (IOException e)
         {
@@ -0,0 +1,89 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Connects a client session to the transport it is running on (a blocking client thread or an event loop).
+ */
+public interface SessionDriver
+{
+    /**
+     * A step of the session protocol, executed by the driver.
+     */
+    interface Step
+    {
+        /**
+         * Executes the step.
+         */
+        void run() throws IOException;
+    }
+
+    /**
+     * A step of the session protocol that continues with the result of offloaded work.
+     *
+     * @param <T> The type of the result.
+     */
+    interface Continuation<T>
+    {
+        /**
+         * Executes the step.
+         *
+         * @param result The result of the offloaded work.
+         */
+        void run(T result) throws IOException;
+    }
+
+    /**
+     * Returns the stream where the session writes its response packets.
+     * The driver takes care of delivering them after the current step has completed.
+     *
+     * @return The stream where the session writes its response packets.
+     */
+    DataOutputStream getOutputStream();
+
+    /**
+     * Returns the address of the client.
+     *
+     * @return The address of the client.
+     */
+    String getRemoteAddress();
+
+    /**
+     * Returns whether the connection is secured by TLS, so the protocol may skip its own encryption.
+     *
+     * @return Whether the connection is secured by TLS.
+     */
+    boolean isSecure();
+
+    /**
+     * Executes the given step after the given delay. No further packets are passed to the session
+     * before the step has completed.
+     *
+     * @param milliseconds The delay in milliseconds.
+     * @param step         The step to be executed after the delay.
+     */
+    void delay(long milliseconds, Step step) throws IOException;
+
+    /**
+     * Runs the given work on the handshake executor and then executes the given step with its result.
+     * No further packets are passed to the session before the step has completed. The work must not
+     * access the session state. If the handshake executor is overloaded, the connection is closed.
+     *
+     * @param work         The work, e.g. the decryption of a login packet.
+     * @param continuation The step to be executed with the result of the work.
+     * @param <T>          The type of the result.
+     */
+    <T> void offload(Callable<T> work, Continuation<T> continuation) throws IOException;
+
+    /**
+     * Executes the given step with the result of the given future once it has completed, e.g. when a change is
+     * journaled. No further packets are passed to the session before the step has completed; event loops
+     * continue serving other connections meanwhile.
+     *
+     * @param future       The future; must not complete exceptionally.
+     * @param continuation The step to be executed with the result of the future.
+     * @param <T>          The type of the result.
+     */
+    <T> void await(CompletableFuture<T> future, Continuation<T> continuation) throws IOException;
+}
@@ -0,0 +1,330 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Periodically writes snapshots of all account data (balances, devices and histories), so a restart only has to
+ * replay the journal records written since the last snapshot.
+ * <p>
+ * A snapshot is not taken from the live accounts, which would need a consistent view of all of them while
+ * transfers go on. Instead the journal is rotated, and its rotated file is merged into the previous snapshot
+ * (or the original database for the first one) on a background thread: the previous snapshot is streamed
+ * account by account, the journaled changes are applied, and the result is written to a temporary file that is
+ * forced and atomically renamed. Then the rotated journal file is deleted. Sessions are not paused at all.
+ * <p>
+ * Snapshots use the binary database format (see BinaryDatabaseReader) or the JSON format, with an additional
+ * "history" array per user (pairs of the other user's ID and the amount) and the sequence of the last contained
+ * journal record ("journalSequence"). Records
+ * with smaller or equal sequences are skipped on replay, so a crash between renaming the snapshot and deleting
+ * the rotated journal file is harmless.
+ * <p>
+ * Like the replay (see Database.attachJournal()), the merge skips transfers that would overdraw an account. To
+ * check them in journal order, the balances of the sending accounts are read from the previous snapshot first.
+ */
+public class Snapshotter
+{
+    /**
+     * The changes of one account in the rotated journal file.
+     */
+    private static class AccountChanges
+    {
+        /**
+         * History entries: sequence, other user's ID and amount.
+         */
+        final ArrayList<long[]> history = new ArrayList<>();
+
+        /**
+         * New devices: sequence and device code.
+         */
+        final ArrayList<Tuple<Long, String>> devices = new ArrayList<>();
+    }
+
+    /**
+     * The original database, the base of the first snapshot.
+     */
+    private final String _databaseFile;
+
+    /**
+     * The snapshot file.
+     */
+    private final Path _snapshotFile;
+
+    /**
+     * The temporary file new snapshots are written to.
+     */
+    private final Path _temporaryFile;
+
+    /**
+     * The journal.
+     */
+    private final Journal _journal;
+
+    /**
+     * Determines whether snapshots are written in the binary format.
+     */
+    private final boolean _binary;
+
+    /**
+     * The snapshot interval, in milliseconds.
+     */
+    private final long _intervalMillis;
+
+    /**
+     * Number of written snapshots.
+     */
+    private final LongAdder _snapshots = Metrics.counter("snapshot.count");
+
+    /**
+     * Number of failed snapshots.
+     */
+    private final LongAdder _errors = Metrics.counter("snapshot.errors");
+
+    /**
+     * Duration of the last snapshot, in milliseconds.
+     */
+    private volatile long _lastDuration = 0;
+
+    /**
+     * Number of journal records merged into the last snapshot.
+     */
+    private volatile long _lastRecords = 0;
+
+    /**
+     * Creates a new snapshotter.
+     *
+     * @param databaseFile    The original database, the base of the first snapshot.
+     * @param snapshotFile    The snapshot file.
+     * @param journal         The journal.
+     * @param binary          Determines whether snapshots are written in the binary format.
+     * @param intervalSeconds The snapshot interval, in seconds.
+     */
+    public Snapshotter(String databaseFile, String snapshotFile, Journal journal, boolean binary, long intervalSeconds)
+    {
+        _databaseFile = databaseFile;
+        _snapshotFile = Paths.get(snapshotFile);
+        _temporaryFile = Paths.get(snapshotFile + ".tmp");
+        _journal = journal;
+        _binary = binary;
+        _intervalMillis = Math.max(1, intervalSeconds) * 1000;
+
+        Metrics.gauge("snapshot.last-duration-ms", () -> _lastDuration);
+        Metrics.gauge("snapshot.last-records", () -> _lastRecords);
+    }
+
+    /**
+     * Creates the snapshotter configured by the given command line options.
+     *
+     * @param options      The command line options.
+     * @param databaseFile The original database.
+     * @param journal      The journal.
+     * @return The configured snapshotter, or null if no snapshot file is given.
+     */
+    public static Snapshotter fromOptions(CommandLineOptions options, String databaseFile, Journal journal)
+    {
+        String file = options.getString("snapshot", null);
+        if (file == null)
+            return null;
+        return new Snapshotter(databaseFile, file, journal,
+                !options.getString("snapshot-format", "binary").equalsIgnoreCase("json"),
+                options.getLong("snapshot-interval", 300));
+    }
+
+    /**
+     * Returns the file the database is loaded from: the snapshot if it exists, else the original database.
+     *
+     * @return The file the database is loaded from.
+     */
+    public String getLoadFile()
+    {
+        return Files.exists(_snapshotFile) ? _snapshotFile.toString() : _databaseFile;
+    }
+
+    /**
+     * Starts the background thread taking the snapshots.
+     */
+    public void start()
+    {
+        Thread snapshotThread = new Thread(() ->
+        {
+            while (true)
+            {
+                try
+                {
+                    Thread.sleep(_intervalMillis);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+                takeSnapshot();
+            }
+        }, "snapshot");
+        snapshotThread.setDaemon(true);
+        snapshotThread.start();
+    }
+
+    /**
+     * Rotates the journal and merges the rotated file into a new snapshot.
+     *
+     * @return Whether the snapshot is up to date with the rotated journal file.
+     */
+    public synchronized boolean takeSnapshot()
+    {
+        long start = System.nanoTime();
+        try
+        {
+            // A rotated file left by a failed snapshot is merged first
+            _journal.rotate();
+            Path rotatedFile = _journal.getRotatedFile();
+            if (!Files.exists(rotatedFile))
+                return true;
+
+            // Collect the devices per account, and the transfers in journal order
+            HashMap<Integer, AccountChanges> changes = new HashMap<>();
+            ArrayList<long[]> transfers = new ArrayList<>();
+            long[] records = new long[1];
+            long[] lastSequence = {-1};
+            try (FileChannel channel = FileChannel.open(rotatedFile, StandardOpenOption.READ))
+            {
+                Journal.read(channel, new Journal.Handler()
+                {
+                    @Override
+                    public void transfer(long sequence, int sourceUserId, int targetUserId, int amount)
+                    {
+                        transfers.add(new long[]{sequence, sourceUserId, targetUserId, amount});
+                        lastSequence[0] = Math.max(lastSequence[0], sequence);
+                        ++records[0];
+                    }
+
+                    @Override
+                    public void addDevice(long sequence, int userId, String deviceCode)
+                    {
+                        changes.computeIfAbsent(userId, id -> new AccountChanges()).devices.add(new Tuple<>(sequence, deviceCode));
+                        lastSequence[0] = Math.max(lastSequence[0], sequence);
+                        ++records[0];
+                    }
+                });
+            }
+
+            // Write the merged snapshot, then replace the old one
+            if (records[0] > 0)
+            {
+                String baseFile = getLoadFile();
+                if (!transfers.isEmpty())
+                    addTransfers(baseFile, transfers, changes);
+                merge(baseFile, changes, lastSequence[0]);
+                Files.move(_temporaryFile, _snapshotFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.delete(rotatedFile);
+
+            _snapshots.increment();
+            _lastRecords = records[0];
+            _lastDuration = (System.nanoTime() - start) / 1_000_000;
+            Utility.safeDebugPrintln("Snapshot with " + records[0] + " new journal records written in " + _lastDuration + " ms.");
+            return true;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // The rotated journal file is kept, so nothing is lost
+            e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+            _errors.increment();
+            return false;
+        }
+    }
+
+    /**
+     * Adds the given transfers to the history changes of both accounts, in journal order, and skips those that would
+     * overdraw the sending account.
+     *
+     * @param baseFile  The base snapshot (or original database), containing the balances before the transfers.
+     * @param transfers The transfers in journal order: sequence, source user ID, target user ID and amount.
+     * @param changes   The changes per user ID.
+     */
+    private static void addTransfers(String baseFile, ArrayList<long[]> transfers, HashMap<Integer, AccountChanges> changes) throws IOException
+    {
+        // Read the balances of the sending accounts
+        HashMap<Integer, Long> money = new HashMap<>();
+        for (long[] transfer : transfers)
+            money.put((int) transfer[1], 0L);
+        long baseSequence;
+        int userCount = 0;
+        try (DatabaseReader reader = DatabaseReader.open(baseFile))
+        {
+            UserData user = reader.next();
+            baseSequence = reader.getJournalSequence();
+            for (; user != null; ++userCount, user = reader.next())
+                if (money.containsKey(userCount))
+                    money.put(userCount, (long) user.getMoney());
+        }
+
+        for (long[] transfer : transfers)
+        {
+            // Older records are contained in the base; records of unknown users are skipped, as on replay
+            int sourceUserId = (int) transfer[1];
+            int targetUserId = (int) transfer[2];
+            if (transfer[0] <= baseSequence || sourceUserId < 0 || sourceUserId >= userCount || targetUserId < 0 || targetUserId >= userCount)
+                continue;
+            if (money.get(sourceUserId) < transfer[3])
+            {
+                Utility.safePrintln("Journal record " + transfer[0] + " would overdraw account " + sourceUserId + ", skipped.");
+                continue;
+            }
+            money.merge(sourceUserId, -transfer[3], Long::sum);
+            money.computeIfPresent(targetUserId, (id, balance) -> balance + transfer[3]);
+            changes.computeIfAbsent(sourceUserId, id -> new AccountChanges()).history.add(new long[]{transfer[0], targetUserId, -transfer[3]});
+            changes.computeIfAbsent(targetUserId, id -> new AccountChanges()).history.add(new long[]{transfer[0], sourceUserId, transfer[3]});
+        }
+    }
+
+    /**
+     * Streams the given base snapshot into the temporary file, applying the given changes, and forces the file.
+     *
+     * @param baseFile     The base snapshot (or original database).
+     * @param changes      The changes per user ID.
+     * @param lastSequence The sequence of the last record of the rotated journal file.
+     */
+    private void merge(String baseFile, HashMap<Integer, AccountChanges> changes, long lastSequence) throws IOException
+    {
+        try (DatabaseReader reader = DatabaseReader.open(baseFile))
+        {
+            // The base sequence is known after reading the first user
+            UserData user = reader.next();
+            long baseSequence = reader.getJournalSequence();
+            try (DatabaseWriter writer = DatabaseWriter.create(_temporaryFile.toString(), _binary, Math.max(baseSequence, lastSequence)))
+            {
+                for (int userId = 0; user != null; ++userId, user = reader.next())
+                {
+                    AccountChanges accountChanges = changes.get(userId);
+                    if (accountChanges != null)
+                        applyChanges(user, accountChanges, baseSequence);
+                    writer.write(user);
+                }
+                writer.finish(reader.getPrivateKey(), reader.getAgreementPrivateKey());
+            }
+        }
+    }
+
+    /**
+     * Applies the given changes to the given user.
+     *
+     * @param user          The user from the base snapshot.
+     * @param changes       The changes of the user.
+     * @param afterSequence Only changes with a larger sequence are applied, older ones are contained in the base.
+     */
+    private static void applyChanges(UserData user, AccountChanges changes, long afterSequence)
+    {
+        for (long[] entry : changes.history)
+            if (entry[0] > afterSequence)
+                user.changeMoney((int) entry[1], (int) entry[2]);
+        for (Tuple<Long, String> device : changes.devices)
+            if (device.x > afterSequence)
+                user.addDevice(device.y);
+    }
+}
@@ -0,0 +1,124 @@
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves each client with a blocking ClientThread, running either on a platform thread or on a virtual thread.
+ */
+public class ThreadedServer
+{
+    /**
+     * The shared server state.
+     */
+    private final ServerContext _context;
+
+    /**
+     * Runs the client sessions.
+     */
+    private final ExecutorService _executor;
+
+    /**
+     * Limits the number of concurrent sessions.
+     */
+    private final Semaphore _sessionPermits;
+
+    /**
+     * The number of currently running sessions.
+     */
+    private final AtomicInteger _activeSessions = new AtomicInteger();
+
+    /**
+     * Creates a new server.
+     *
+     * @param context     The shared server state.
+     * @param virtual     Determines whether sessions run on virtual threads instead of platform threads.
+     * @param maxSessions The maximum number of concurrent sessions; further clients wait in the accept backlog.
+     */
+    public ThreadedServer(ServerContext context, boolean virtual, int maxSessions)
+    {
+        _context = context;
+        _sessionPermits = new Semaphore(maxSessions);
+        _executor = virtual ? createVirtualThreadExecutor() : Executors.newCachedThreadPool();
+
+        Metrics.gauge("sessions.active", _activeSessions::get);
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task. Virtual threads are looked up
+     * reflectively, so the server still compiles and runs on JDKs without them (falling back to platform threads).
+     *
+     * @return An executor that starts a new virtual thread for each task.
+     */
+    private static ExecutorService createVirtualThreadExecutor()
+    {
+        try
+        {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            Utility.safePrintln("WARNING: Virtual threads are not supported by this Java version (" + Runtime.version() + "), using platform threads.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Accepts clients on the given address and starts a session for each. Does not return.
+     *
+     * @param ip   The IP address or host name to listen on.
+     * @param port The port to listen on.
+     */
+    public void run(String ip, int port) throws IOException
+    {
+        // Create server socket
+        Utility.safeDebugPrintln("Creating server socket...");
+        InetAddress address = InetAddress.getByName(ip);
+        SSLContext sslContext = _context.getSslContext();
+        try (ServerSocket serverSocket = sslContext != null ? TlsSupport.createServerSocket(sslContext, port, address) : new ServerSocket(port, 0, address))
+        {
+            // Listen for clients
+            Utility.safeDebugPrintln("Enter client listen loop.");
+            while (true)
+            {
+                // Wait until a session slot is free
+                _sessionPermits.acquireUninterruptibly();
+
+                // Accept new client
+                Socket clientSocket;
+                try
+                {
+                    clientSocket = serverSocket.accept();
+                }
+                catch (IOException e)
+                {
+                    _sessionPermits.release();
+                    throw e;
+                }
+                Utility.safeDebugPrintln("Client accepted on port " + clientSocket.getLocalPort());
+                clientSocket.setTcpNoDelay(_context.isTcpNoDelay());
+
+                // Start new thread to handle client
+                ClientThread clientThread = new ClientThread(clientSocket, _context);
+                _executor.execute(() ->
+                {
+                    _activeSessions.incrementAndGet();
+                    try
+                    {
+                        clientThread.run();
+                    }
+                    finally
+                    {
+                        _activeSessions.decrementAndGet();
+                        _sessionPermits.release();
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,288 @@
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Issues and checks session resumption tickets. A ticket allows a client to skip the key exchange and
+ * the password check on reconnect: it contains the user ID, an expiry time and a resumption secret,
+ * encrypted and authenticated with a ticket key that only the server knows. The client keeps the secret
+ * (sent over the encrypted session) and the ticket; on reconnect it presents the ticket, and both sides
+ * derive a fresh session key from the secret and two nonces.
+ * <p>
+ * Ticket keys exist only in memory and are rotated periodically; old keys are kept as long as tickets
+ * encrypted with them may still be valid. Tickets are laid out as
+ * "&lt;int key ID&gt;&lt;12 byte nonce&gt;&lt;AES/GCM cipher text of user ID, expiry time and secret&gt;".
+ * This class is thread safe.
+ */
+public class TicketKeyRing
+{
+    /**
+     * One ticket key.
+     */
+    private static class TicketKey
+    {
+        /**
+         * The key ID, stored in the ticket.
+         */
+        final int id;
+
+        /**
+         * The AES key.
+         */
+        final SecretKey key;
+
+        /**
+         * The creation time (as returned by System.currentTimeMillis()).
+         */
+        final long created;
+
+        /**
+         * Creates a new ticket key.
+         *
+         * @param id      The key ID.
+         * @param key     The AES key.
+         * @param created The creation time.
+         */
+        TicketKey(int id, SecretKey key, long created)
+        {
+            this.id = id;
+            this.key = key;
+            this.created = created;
+        }
+    }
+
+    /**
+     * Size of the resumption secret in bytes.
+     */
+    public static final int SECRET_SIZE = 16;
+
+    /**
+     * Size of the ticket nonce in bytes.
+     */
+    private static final int NONCE_SIZE = 12;
+
+    /**
+     * Size of the encrypted ticket content in bytes: user ID, expiry time, secret and GCM tag.
+     */
+    private static final int CONTENT_SIZE = 4 + 8 + SECRET_SIZE + 16;
+
+    /**
+     * Label of the session key derivation.
+     */
+    private static final byte[] SESSION_KEY_LABEL = "resumption session key".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Lifetime of tickets, in milliseconds.
+     */
+    private final long _lifetime;
+
+    /**
+     * Time after which a new ticket key is used, in milliseconds.
+     */
+    private final long _rotationInterval;
+
+    /**
+     * Maximum number of kept ticket keys.
+     */
+    private final int _retainedKeys;
+
+    /**
+     * The ticket keys, newest first.
+     */
+    private final ArrayDeque<TicketKey> _keys = new ArrayDeque<>();
+
+    /**
+     * The ID of the next ticket key.
+     */
+    private int _nextKeyId = 0;
+
+    /**
+     * Source of ticket keys and nonces.
+     */
+    private final SecureRandom _random = new SecureRandom();
+
+    /**
+     * Creates a new key ring.
+     *
+     * @param lifetimeSeconds         Lifetime of tickets, in seconds.
+     * @param rotationIntervalSeconds Time after which a new ticket key is used, in seconds.
+     */
+    public TicketKeyRing(long lifetimeSeconds, long rotationIntervalSeconds)
+    {
+        _lifetime = Math.max(1, lifetimeSeconds) * 1000;
+        _rotationInterval = Math.max(1, rotationIntervalSeconds) * 1000;
+
+        // A ticket must still be readable after the key it was issued with has been replaced
+        _retainedKeys = (int) Math.min(1000, _lifetime / _rotationInterval + 2);
+
+        Metrics.gauge("resume.ticket-keys", this::getKeyCount);
+    }
+
+    /**
+     * Creates a key ring configured by the given command line options.
+     *
+     * @param options The command line options.
+     * @return The configured key ring.
+     */
+    public static TicketKeyRing fromOptions(CommandLineOptions options)
+    {
+        return new TicketKeyRing(
+                options.getLong("ticket-lifetime", 3600),
+                options.getLong("ticket-key-rotation", 3600));
+    }
+
+    /**
+     * Issues a ticket for the given user.
+     *
+     * @param userId The user ID.
+     * @param secret The resumption secret, which is also sent to the client.
+     * @return The ticket, or null on error.
+     */
+    public byte[] issue(int userId, byte[] secret)
+    {
+        TicketKey ticketKey = getCurrentKey();
+        if (ticketKey == null)
+            return null;
+        try
+        {
+            ByteBuffer ticket = ByteBuffer.allocate(4 + NONCE_SIZE + CONTENT_SIZE);
+            ticket.putInt(ticketKey.id);
+            byte[] nonce = new byte[NONCE_SIZE];
+            _random.nextBytes(nonce);
+            ticket.put(nonce);
+
+            ByteBuffer content = ByteBuffer.allocate(4 + 8 + SECRET_SIZE);
+            content.putInt(userId);
+            content.putLong(System.currentTimeMillis() + _lifetime);
+            content.put(secret);
+            content.flip();
+
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, ticketKey.key, new GCMParameterSpec(128, nonce));
+            cipher.updateAAD(ticket.array(), 0, 4);
+            cipher.doFinal(content, ticket);
+            return ticket.array();
+        }
+        catch (GeneralSecurityException e)
+        {
+            e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Checks the given ticket.
+     *
+     * @param ticket The ticket presented by a client.
+     * @return The user ID and the resumption secret, or null if the ticket is invalid, expired or its key has been retired.
+     */
+    public Tuple<Integer, byte[]> open(byte[] ticket)
+    {
+        if (ticket.length != 4 + NONCE_SIZE + CONTENT_SIZE)
+            return null;
+        ByteBuffer ticketBuffer = ByteBuffer.wrap(ticket);
+        TicketKey ticketKey = findKey(ticketBuffer.getInt());
+        if (ticketKey == null)
+            return null;
+        try
+        {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, ticketKey.key, new GCMParameterSpec(128, ticket, 4, NONCE_SIZE));
+            cipher.updateAAD(ticket, 0, 4);
+            ByteBuffer content = ByteBuffer.wrap(cipher.doFinal(ticket, 4 + NONCE_SIZE, CONTENT_SIZE));
+
+            int userId = content.getInt();
+            if (content.getLong() < System.currentTimeMillis())
+                return null;
+            byte[] secret = new byte[SECRET_SIZE];
+            content.get(secret);
+            return new Tuple<>(userId, secret);
+        }
+        catch (GeneralSecurityException e)
+        {
+            // Forged ticket
+            Utility.safeDebugPrintln("Invalid ticket: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Derives the session key of a resumed session: HMAC-SHA256(secret, label || client nonce || server nonce), truncated to 128 bits.
+     *
+     * @param secret      The resumption secret.
+     * @param clientNonce The nonce chosen by the client.
+     * @param serverNonce The nonce chosen by the server.
+     * @return The session key.
+     */
+    public static SecretKey deriveSessionKey(byte[] secret, byte[] clientNonce, byte[] serverNonce) throws GeneralSecurityException
+    {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+        mac.update(SESSION_KEY_LABEL);
+        mac.update(clientNonce);
+        mac.update(serverNonce);
+        return new SecretKeySpec(Arrays.copyOf(mac.doFinal(), 16), "AES");
+    }
+
+    /**
+     * Returns the key for new tickets, and rotates the keys if necessary.
+     *
+     * @return The key for new tickets, or null on error.
+     */
+    private synchronized TicketKey getCurrentKey()
+    {
+        long now = System.currentTimeMillis();
+        TicketKey current = _keys.peekFirst();
+        if (current == null || now - current.created >= _rotationInterval)
+        {
+            try
+            {
+                KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+                keyGenerator.init(128, _random);
+                current = new TicketKey(_nextKeyId++, keyGenerator.generateKey(), now);
+            }
+            catch (GeneralSecurityException e)
+            {
+                e.printStackTrace(); Utility.safeDebugPrintln("error: " +e.getMessage());
+                return null;
+            }
+            _keys.addFirst(current);
+            while (_keys.size() > _retainedKeys)
+                _keys.removeLast();
+        }
+        return current;
+    }
+
+    /**
+     * Returns the ticket key with the given ID.
+     *
+     * @param id The key ID.
+     * @return The ticket key, or null if it does not exist (anymore).
+     */
+    private synchronized TicketKey findKey(int id)
+    {
+        for (TicketKey ticketKey : _keys)
+            if (ticketKey.id == id)
+                return ticketKey;
+        return null;
+    }
+
+    /**
+     * Returns the number of kept ticket keys.
+     *
+     * @return The number of kept ticket keys.
+     */
+    private synchronized long getKeyCount()
+    {
+        return _keys.size();
+    }
+}
@@ -0,0 +1,130 @@
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * Helper class for the TLS transport mode. In this mode the connection is secured by TLS 1.3, so the
+ * key exchange is skipped and the application packets are sent without the AES layer of the protocol
+ * (see CryptoContext()).
+ * <p>
+ * The server needs a key store (PKCS12 or JKS) with its private key and certificate; the client needs a
+ * trust store containing the server certificate (or the certificate of the issuing CA).
+ */
+public class TlsSupport
+{
+    /**
+     * The only accepted TLS version.
+     */
+    public static final String PROTOCOL = "TLSv1.3";
+
+    /**
+     * Creates the SSL context of the server.
+     *
+     * @param keyStoreFile The key store containing the private key and certificate of the server.
+     * @param password     The password of the key store and the key.
+     * @return The SSL context.
+     */
+    public static SSLContext createServerContext(String keyStoreFile, String password) throws IOException, GeneralSecurityException
+    {
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(loadKeyStore(keyStoreFile, password), password.toCharArray());
+
+        SSLContext sslContext = SSLContext.getInstance(PROTOCOL);
+        sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+        return sslContext;
+    }
+
+    /**
+     * Creates the SSL context of the client.
+     *
+     * @param trustStoreFile The trust store containing the certificate of the server (a key store containing the
+     *                       server key works as well), or null to use the default trust store of the JDK.
+     * @param password       The password of the trust store.
+     * @return The SSL context.
+     */
+    public static SSLContext createClientContext(String trustStoreFile, String password) throws IOException, GeneralSecurityException
+    {
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(trustStoreFile == null ? null : loadKeyStore(trustStoreFile, password));
+
+        SSLContext sslContext = SSLContext.getInstance(PROTOCOL);
+        sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        return sslContext;
+    }
+
+    /**
+     * Creates a server socket accepting TLS 1.3 connections only.
+     *
+     * @param sslContext The SSL context of the server.
+     * @param port       The port to listen on.
+     * @param address    The address to listen on.
+     * @return The server socket.
+     */
+    public static SSLServerSocket createServerSocket(SSLContext sslContext, int port, InetAddress address) throws IOException
+    {
+        SSLServerSocket serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(port, 0, address);
+        serverSocket.setEnabledProtocols(new String[]{PROTOCOL});
+        return serverSocket;
+    }
+
+    /**
+     * Connects to the given server with TLS 1.3 and completes the TLS handshake.
+     *
+     * @param sslContext     The SSL context of the client.
+     * @param host           The host name or IP address of the server.
+     * @param port           The port of the server.
+     * @param verifyHostName Determines whether the server certificate must be issued for the given host name.
+     * @return The connected socket.
+     */
+    public static SSLSocket connect(SSLContext sslContext, String host, int port, boolean verifyHostName) throws IOException
+    {
+        SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket(host, port);
+        try
+        {
+            SSLParameters parameters = socket.getSSLParameters();
+            parameters.setProtocols(new String[]{PROTOCOL});
+            if (verifyHostName)
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            socket.setSSLParameters(parameters);
+            socket.startHandshake();
+        }
+        catch (IOException e)
+        {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Returns whether the given socket is secured by TLS.
+     *
+     * @param socket The socket.
+     * @return Whether the socket is secured by TLS.
+     */
+    public static boolean isSecure(Socket socket)
+    {
+        return socket instanceof SSLSocket;
+    }
+
+    /**
+     * Loads the given key store; the type (PKCS12 or JKS) is detected automatically.
+     *
+     * @param keyStoreFile The key store file.
+     * @param password     The password of the key store.
+     * @return The key store.
+     */
+    private static KeyStore loadKeyStore(String keyStoreFile, String password) throws IOException, GeneralSecurityException
+    {
+        return KeyStore.getInstance(new File(keyStoreFile), password.toCharArray());
+    }
+}
@@ -1,12 +1,61 @@
 import javax.json.*;
 import javax.json.JsonValue.ValueType;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Contains the data of one user.
  */
 public class UserData
 {
+    /**
+     * Handle for atomic updates of the money amount (see LockFreeAccountEngine).
+     */
+    private static final VarHandle MONEY;
+
+    /**
+     * Handle for enabling credit striping exactly once.
+     */
+    private static final VarHandle CREDITS;
+
+    /**
+     * Handle for counting contended updates atomically.
+     */
+    private static final VarHandle CONTENTION;
+
+    static
+    {
+        try
+        {
+            MONEY = MethodHandles.lookup().findVarHandle(UserData.class, "_money", int.class);
+            CREDITS = MethodHandles.lookup().findVarHandle(UserData.class, "_credits", CreditCells.class);
+            CONTENTION = MethodHandles.lookup().findVarHandle(UserData.class, "_contention", int.class);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Number of contended updates after which an account's credits are striped; 0 disables automatic striping.
+     */
+    private static volatile int _hotAccountThreshold = 1000;
+
+    /**
+     * Number of accounts whose credits are striped.
+     */
+    private static final LongAdder _stripedAccounts = Metrics.counter("accounts.striped");
+
+    /**
+     * Number of contended updates of all accounts.
+     */
+    private static final LongAdder _contendedUpdates = Metrics.counter("accounts.contended-updates");
+
     /**
      * The user's name.
      */
@@ -18,9 +67,19 @@ public class UserData
     private final String _password;
 
     /**
-     * The user's amount of money.
+     * The user's amount of money. Volatile, so it can be read without holding the account lock.
+     */
+    private volatile int _money;
+
+    /**
+     * Striped credits not yet moved into _money, or null if the account is not hot.
+     */
+    private volatile CreditCells _credits;
+
+    /**
+     * Number of contended updates of this account; incremented atomically through CONTENTION.
      */
-    private int _money;
+    private volatile int _contention;
 
     /**
      * The user's device codes.
@@ -36,7 +95,7 @@ public class UserData
     /**
      * The history of money changes on this account.
      */
-    private final LinkedList<Tuple<Integer, Integer>> _moneyHistory;
+    private final HistoryLog _moneyHistory;
 
     /**
      * Reads the user data from the given JSON object.
@@ -55,8 +114,11 @@ public class UserData
             if (val.getValueType() == ValueType.STRING)
                 _deviceAuthenticationStrings.add(((JsonString) val).getString());
 
-        // Initialize empty history
-        _moneyHistory = new LinkedList<>();
+        // Read history, contained in snapshots only
+        _moneyHistory = new HistoryLog();
+        if (userDataObj.containsKey("history"))
+            for (JsonArray entry : userDataObj.getJsonArray("history").getValuesAs(JsonArray.class))
+                _moneyHistory.append(entry.getInt(0), entry.getInt(1));
     }
 
     /**
@@ -77,7 +139,7 @@ public class UserData
         _deviceAuthenticationStrings = new LinkedList<>();
 
         // Initialize empty history
-        _moneyHistory = new LinkedList<>();
+        _moneyHistory = new HistoryLog();
     }
 
     /**
@@ -97,9 +159,17 @@ public class UserData
         JsonObjectBuilder objBuilder = Json.createObjectBuilder();
         objBuilder.add("name", _name);
         objBuilder.add("password", _password);
-        objBuilder.add("money", _money);
+        objBuilder.add("money", getMoney());
         objBuilder.add("devices", deviceArrayBuilder.build());
         objBuilder.add("scenario", _scenarioId);
+
+        // Put history into JSON array of pairs, if there is any (snapshots only)
+        if (!_moneyHistory.isEmpty())
+        {
+            JsonArrayBuilder historyArrayBuilder = Json.createArrayBuilder();
+            _moneyHistory.forEach(0, Integer.MAX_VALUE, (userId, amount) -> historyArrayBuilder.add(Json.createArrayBuilder().add(userId).add(amount)));
+            objBuilder.add("history", historyArrayBuilder.build());
+        }
         return objBuilder.build();
     }
 
@@ -113,6 +183,26 @@ public class UserData
         return _name;
     }
 
+    /**
+     * Returns the user's password. Only used for writing database files.
+     *
+     * @return The user's password.
+     */
+    String getPassword()
+    {
+        return _password;
+    }
+
+    /**
+     * Returns a copy of the user's device codes. Only used for writing database files.
+     *
+     * @return The user's device codes.
+     */
+    List<String> getDevices()
+    {
+        return new ArrayList<>(_deviceAuthenticationStrings);
+    }
+
     /**
      * Returns the scenario to be marked as "solved" when this user looses money. -1
      * means no scenario.
@@ -138,13 +228,74 @@ public class UserData
     }
 
     /**
-     * Returns the user's amount of money.
+     * Returns the user's amount of money, including striped credits.
      *
      * @return The user's amount of money.
      */
     public int getMoney()
     {
-        return _money;
+        CreditCells credits = _credits;
+        return credits == null ? _money : _money + credits.sum();
+    }
+
+    /**
+     * Sets the number of contended updates after which an account's credits are striped.
+     *
+     * @param threshold The number of contended updates; 0 disables automatic striping.
+     */
+    public static void setHotAccountThreshold(int threshold)
+    {
+        _hotAccountThreshold = threshold;
+    }
+
+    /**
+     * Notes that an update of this account had to wait for another thread, and stripes the credits
+     * when the account turns out to be hot.
+     */
+    public void recordContention()
+    {
+        _contendedUpdates.increment();
+        int threshold = _hotAccountThreshold;
+        if (_credits == null && threshold > 0 && (int) CONTENTION.getAndAdd(this, 1) + 1 >= threshold)
+            enableStriping();
+    }
+
+    /**
+     * Spreads future credits of this account over several cells (see CreditCells).
+     */
+    public void enableStriping()
+    {
+        if (!CREDITS.compareAndSet(this, null, new CreditCells()))
+            return;
+        _stripedAccounts.increment();
+        Utility.safePrintln("Account '" + _name + "' is hot (" + _contention + " contended updates), striping its credits.");
+    }
+
+    /**
+     * Returns whether the credits of this account are striped.
+     *
+     * @return Whether the credits of this account are striped.
+     */
+    public boolean isStriped()
+    {
+        return _credits != null;
+    }
+
+    /**
+     * Moves the striped credits into the main balance, so they can be debited.
+     *
+     * @return Whether any money was moved.
+     */
+    private boolean consolidate()
+    {
+        CreditCells credits = _credits;
+        if (credits == null)
+            return false;
+        int drained = credits.drain();
+        if (drained == 0)
+            return false;
+        MONEY.getAndAdd(this, drained);
+        return true;
     }
 
     /**
@@ -159,19 +310,89 @@ public class UserData
     public void changeMoney(int userId, int money)
     {
         // Add history entry
-        _moneyHistory.add(new Tuple<>(userId, money));
+        _moneyHistory.append(userId, money);
 
-        // Update money amount
+        // Credits of hot accounts go to the cells without the account lock, debits collect them first
+        if (_credits != null)
+        {
+            if (money > 0)
+                _credits.add(money);
+            else
+            {
+                consolidate();
+                MONEY.getAndAdd(this, money);
+            }
+            return;
+        }
+
+        // Update money amount; the caller holds the account lock
         _money += money;
     }
 
     /**
-     * Returns a list containing the user's full money sending/receiving history.
+     * Atomically removes the given amount of money, if the user has enough. Does not track the change in the history.
      *
-     * @return A list containing the given user's full money sending/receiving
-     * history.
+     * @param money The (positive) amount of money to be removed.
+     * @return Whether the user had enough money.
+     */
+    public boolean tryWithdraw(int money)
+    {
+        // Retry until no other thread has changed the amount in between; collect striped credits if the balance is too low
+        while (true)
+        {
+            int current = _money;
+            if (current < money)
+            {
+                if (consolidate())
+                    continue;
+                return false;
+            }
+            if (MONEY.compareAndSet(this, current, current - money))
+                return true;
+            recordContention();
+        }
+    }
+
+    /**
+     * Atomically adds the given amount of money. Does not track the change in the history.
+     *
+     * @param money The (positive) amount of money to be added.
+     */
+    public void deposit(int money)
+    {
+        CreditCells credits = _credits;
+        if (credits != null)
+        {
+            credits.add(money);
+            return;
+        }
+
+        // A failed compare-and-set shows that another thread updated the account at the same time
+        int current = _money;
+        if (!MONEY.compareAndSet(this, current, current + money))
+        {
+            recordContention();
+            MONEY.getAndAdd(this, money);
+        }
+    }
+
+    /**
+     * Tracks a change of money in the history.
+     *
+     * @param userId The ID of the changing user.
+     * @param money  The amount of money added (positive value) or removed (negative value).
+     */
+    public void addHistoryEntry(int userId, int money)
+    {
+        _moneyHistory.append(userId, money);
+    }
+
+    /**
+     * Returns the user's money sending/receiving history.
+     *
+     * @return The user's money sending/receiving history, as pairs of the other user's ID and the amount.
      */
-    public LinkedList<Tuple<Integer, Integer>> getMoneyHistory()
+    public HistoryLog getMoneyHistory()
     {
         return _moneyHistory;
     }
@@ -1,10 +1,12 @@
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Random;
 
 /**
@@ -142,16 +144,59 @@ public class Utility
      *
      * @param outputStream The stream the packet shall be written to.
      * @param payload      The string payload to be sent.
+     * @param crypto       The crypto context of the session.
      */
-    public static void sendPacketAES(DataOutputStream outputStream, String payload, SecretKey symmetricKey) throws IOException
+    public static void sendPacketAES(DataOutputStream outputStream, String payload, CryptoContext crypto) throws IOException
     {
         safeDebugPrintln("Sending'" + payload + "'");
-        IvParameterSpec iv =  AESHelper.generateIv();
-        String encryptedPayload = AESHelper.encrypt(payload,symmetricKey,iv);
-        encryptedPayload = AESHelper.ivToString(iv) + " " + encryptedPayload;
+        byte[] plainText = payload.getBytes();
+        ByteBuffer encrypted = crypto.encrypt(plainText, 0, plainText.length);
+        if (encrypted == null)
+            throw new IOException("Could not encrypt packet.");
+        byte[] iv = Arrays.copyOfRange(encrypted.array(), 0, Protocol.IV_SIZE);
+        byte[] cipherText = Arrays.copyOfRange(encrypted.array(), Protocol.IV_SIZE, encrypted.limit());
+        String encryptedPayload = Base64.getEncoder().encodeToString(iv) + " " + Base64.getEncoder().encodeToString(cipherText);
         sendPacket(outputStream, encryptedPayload);
     }
 
+    /**
+     * Writes the given binary body as an AES encrypted packet of protocol version 2 or later into the given output stream.
+     *
+     * @param outputStream The stream the packet shall be written to.
+     * @param opcode       The packet opcode (see Protocol).
+     * @param body         The binary body to be sent.
+     * @param crypto       The crypto context of the session.
+     */
+    public static void sendPacketV2(DataOutputStream outputStream, byte opcode, byte[] body, CryptoContext crypto) throws IOException
+    {
+        ByteBuffer encrypted = crypto.encryptPacket(opcode, body);
+        if (encrypted == null)
+            throw new IOException("Could not encrypt packet.");
+
+        // Write packet length and payload
+        outputStream.writeInt(encrypted.remaining());
+        outputStream.write(encrypted.array(), 0, encrypted.limit());
+    }
+
+    /**
+     * Writes the given text message encrypted with AES into the given output stream, using the given protocol version.
+     *
+     * @param outputStream    The stream the packet shall be written to.
+     * @param message         The message to be sent.
+     * @param crypto          The crypto context of the session.
+     * @param protocolVersion The negotiated protocol version.
+     */
+    public static void sendMessage(DataOutputStream outputStream, String message, CryptoContext crypto, int protocolVersion) throws IOException
+    {
+        if (protocolVersion >= Protocol.VERSION_2)
+        {
+            safeDebugPrintln("Sending '" + message + "'");
+            sendPacketV2(outputStream, Protocol.OPCODE_MESSAGE, message.getBytes(StandardCharsets.UTF_8), crypto);
+        }
+        else
+            sendPacketAES(outputStream, message, crypto);
+    }
+
     /**
      * Sends package RSA encrypted.
      * @param socketOutputStream
@@ -192,6 +237,18 @@ public class Utility
         byte[] payloadEncoded = new byte[inputStream.readInt()];
         inputStream.readFully(payloadEncoded);
 
+        return decodePacketRSA(payloadEncoded, privateKey);
+    }
+
+    /**
+     * Decrypts the payload of an RSA encrypted packet that was already read from the stream.
+     *
+     * @param payloadEncoded The raw packet payload.
+     * @param privateKey     The private key used for decryption.
+     * @return The decrypted payload.
+     */
+    public static String decodePacketRSA(byte[] payloadEncoded, PrivateKey privateKey)
+    {
         // Decode payload
         String payload = new String(payloadEncoded);
 
@@ -206,24 +263,119 @@ public class Utility
      * @param inputStream The stream where the packet shall be retrieved.
      * @return The payload of the received packet.
      */
-    public static String receivePacketAES(DataInputStream inputStream, SecretKey symmetricKey) throws IOException
+    public static String receivePacketAES(DataInputStream inputStream, CryptoContext crypto) throws IOException
     {
         // Prepare payload buffer
         byte[] payloadEncoded = new byte[inputStream.readInt()];
         inputStream.readFully(payloadEncoded);
 
+        return decodePacketAES(payloadEncoded, crypto);
+    }
+
+    /**
+     * Decrypts the payload of an AES encrypted packet that was already read from the stream.
+     *
+     * @param payloadEncoded The raw packet payload.
+     * @param crypto         The crypto context of the session.
+     * @return The decrypted payload, or null if the packet could not be decrypted.
+     */
+    public static String decodePacketAES(byte[] payloadEncoded, CryptoContext crypto)
+    {
         // Decode payload
         String payload = new String(payloadEncoded);
 
-        String ivString = payload.split(" ")[0];
-        String msgString = payload.split(" ")[1];
-        IvParameterSpec iv= AESHelper.stringToIv(ivString);
-        String encrypted = AESHelper.decrypt(msgString,symmetricKey,iv);
+        String[] payloadParts = payload.split(" ");
+        if (payloadParts.length < 2)
+            return null;
+        byte[] iv = Base64.getDecoder().decode(payloadParts[0]);
+        byte[] cipherText = Base64.getDecoder().decode(payloadParts[1]);
+        if (iv.length != Protocol.IV_SIZE)
+            return null;
+
+        // Decrypt IV and cipher text as one block
+        byte[] ivAndCipherText = Arrays.copyOf(iv, iv.length + cipherText.length);
+        System.arraycopy(cipherText, 0, ivAndCipherText, iv.length, cipherText.length);
+        ByteBuffer plainText = crypto.decrypt(ivAndCipherText, 0, ivAndCipherText.length);
+        if (plainText == null)
+            return null;
+        String encrypted = new String(plainText.array(), 0, plainText.limit());
 
         safeDebugPrintln("Received '" + encrypted + "'");
         return encrypted;
     }
 
+    /**
+     * Decrypts the payload of a protocol version 2 or later packet that was already read from the stream.
+     *
+     * @param payload The raw packet payload.
+     * @param crypto  The crypto context of the session.
+     * @return The decrypted packet, or null if the packet could not be decrypted.
+     */
+    public static Packet decodePacketV2(byte[] payload, CryptoContext crypto)
+    {
+        return crypto.decryptPacket(payload);
+    }
+
+    /**
+     * Receives the next protocol version 2 or later packet from the given input stream.
+     *
+     * @param inputStream  The stream where the packet shall be retrieved.
+     * @param crypto       The crypto context of the session.
+     * @return The decrypted packet.
+     */
+    public static Packet receivePacketV2(DataInputStream inputStream, CryptoContext crypto) throws IOException
+    {
+        // Prepare payload buffer
+        byte[] payload = new byte[inputStream.readInt()];
+        inputStream.readFully(payload);
+
+        Packet packet = decodePacketV2(payload, crypto);
+        if (packet == null)
+            throw new IOException("Could not decrypt packet.");
+        return packet;
+    }
+
+    /**
+     * Decrypts the text message contained in a packet that was already read from the stream.
+     *
+     * @param payload         The raw packet payload.
+     * @param crypto          The crypto context of the session.
+     * @param protocolVersion The negotiated protocol version.
+     * @return The decrypted message, or null if the packet could not be decrypted.
+     */
+    public static String decodeMessage(byte[] payload, CryptoContext crypto, int protocolVersion)
+    {
+        if (protocolVersion < Protocol.VERSION_2)
+            return decodePacketAES(payload, crypto);
+
+        Packet packet = decodePacketV2(payload, crypto);
+        if (packet == null || packet.getOpcode() != Protocol.OPCODE_MESSAGE)
+            return null;
+        String message = packet.getText();
+        safeDebugPrintln("Received '" + message + "'");
+        return message;
+    }
+
+    /**
+     * Receives the next text message from the given input stream, using the given protocol version.
+     *
+     * @param inputStream     The stream where the packet shall be retrieved.
+     * @param crypto          The crypto context of the session.
+     * @param protocolVersion The negotiated protocol version.
+     * @return The decrypted message.
+     */
+    public static String receiveMessage(DataInputStream inputStream, CryptoContext crypto, int protocolVersion) throws IOException
+    {
+        // Prepare payload buffer
+        byte[] payload = new byte[inputStream.readInt()];
+        inputStream.readFully(payload);
+
+        String message = decodeMessage(payload, crypto, protocolVersion);
+        if (message == null)
+            throw new IOException("Could not decrypt packet.");
+        return message;
+    }
+
     /*
     public static String receivePacketNoEncryption(DataInputStream inputStream) throws IOException
     {